@@ -0,0 +1,22 @@
+package com.android.gl2jni;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Both speckle versions, preblur + blur and the fused kernel over several
+ * frames of its alternating accumulator sets, against the serial version with
+ * edge pixels repeated at the borders. Needs a debug build of the library and
+ * an OpenCL device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SpeckleKernelsTest {
+    @Test
+    public void kernelsMatchSerialVersion() {
+        assertEquals("values off the serial version, see logcat", 0, GL2JNILib.checkSpeckleKernels());
+    }
+}
@@ -17,6 +17,7 @@
 #include <sys/mman.h>
 #include <unistd.h>
 
+#include <algorithm>
 #include <cstring>
 #include <cstdlib>
 #include <iostream>
@@ -148,6 +149,16 @@ cl_kernel cl_wrapper::make_kernel(const std::string &kernel_name, cl_program pro
     return kernel;
 }
 
+void cl_wrapper::release_kernel(cl_kernel kernel)
+{
+    auto it = std::find(m_kernels.begin(), m_kernels.end(), kernel);
+    if (it != m_kernels.end())
+    {
+        m_kernels.erase(it);
+        clReleaseKernel(kernel);
+    }
+}
+
 cl_context cl_wrapper::get_context() const
 {
     return m_context;
@@ -158,8 +169,22 @@ cl_command_queue cl_wrapper::get_command_queue() const
     return m_cmd_queue;
 }
 
-cl_program cl_wrapper::make_program(const char **program_source, cl_uint program_source_len)
+cl_program cl_wrapper::make_program(const char **program_source, cl_uint program_source_len,
+                                    const std::string &options)
 {
+    std::string key;
+    for (cl_uint i = 0; i < program_source_len; ++i)
+    {
+        key += program_source[i];
+    }
+    key += '\0';
+    key += options;
+    auto cached = m_program_cache.find(key);
+    if (cached != m_program_cache.end())
+    {
+        return cached->second;
+    }
+
     cl_int err = 0;
     cl_program program = clCreateProgramWithSource(m_context, program_source_len, program_source, NULL, &err);
     if (err != CL_SUCCESS)
@@ -168,10 +193,10 @@ cl_program cl_wrapper::make_program(const char **program_source, cl_uint program
         std::exit(err);
     }
 
-    err = clBuildProgram(program, 0, NULL, NULL, NULL, NULL);
+    err = clBuildProgram(program, 0, NULL, options.empty() ? NULL : options.c_str(), NULL, NULL);
     if (err != CL_SUCCESS)
     {
-        std::cerr << "Error " << err << " with clBuildProgram.\n";
+        std::cerr << "Error " << err << " with clBuildProgram " << options << ".\n";
         static const size_t LOG_SIZE = 2048;
         char log[LOG_SIZE];
         log[0] = 0;
@@ -188,6 +213,7 @@ cl_program cl_wrapper::make_program(const char **program_source, cl_uint program
     }
 
     m_programs.push_back(program);
+    m_program_cache[key] = program;
 
     return program;
 }
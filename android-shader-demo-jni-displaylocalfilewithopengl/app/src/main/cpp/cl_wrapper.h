@@ -11,6 +11,7 @@
 
 #ifndef SDK_EXAMPLES_CL_WRAPPER_H
 #define SDK_EXAMPLES_CL_WRAPPER_H
+#include <map>
 #include <string>
 #include <vector>
 #include <utility>
@@ -68,14 +69,27 @@ public:
      */
     cl_kernel           make_kernel(const std::string &kernel_name, cl_program program);
 
+    /**
+     * \brief Releases a kernel from make_kernel before the wrapper is destroyed.
+     *
+     * @param kernel
+     */
+    void                release_kernel(cl_kernel kernel);
+
     /**
      * Makes a cl_program (whose lifetime is managed by cl_wrapper) from the given source code strings.
      *
+     * Programs are cached by source text and build options, so asking again for the same
+     * sources and options returns the program already built instead of compiling it again.
+     * Kernels specialized with -D options are built once per distinct set of options.
+     *
      * @param program_source - The source code strings.
      * @param program_source_len - The length of program_source
+     * @param options - Build options passed to clBuildProgram, e.g. "-D WIDTH=1440"
      * @return
      */
-    cl_program          make_program(const char **program_source, cl_uint program_source_len);
+    cl_program          make_program(const char **program_source, cl_uint program_source_len,
+                                     const std::string &options = std::string());
 
     /**
      * \brief Makes an uncached ion buffer that can be used for a YUV 4:2:0 image.
@@ -157,6 +171,8 @@ private:
     cl_context m_context;
     cl_command_queue m_cmd_queue;
     std::vector<cl_program> m_programs;
+    // sources and options joined by a NUL, to the program built from them
+    std::map<std::string, cl_program> m_program_cache;
     std::vector<cl_kernel> m_kernels;
 
     // ION stuff
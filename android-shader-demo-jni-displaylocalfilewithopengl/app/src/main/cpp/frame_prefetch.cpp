@@ -0,0 +1,257 @@
+//
+// Raw frame read ahead, see frame_prefetch.h.
+//
+// In copy mode a slot goes around: mapped (non blocking, behind the kernels
+// that last read it) -> filled by the reader once the map completes ->
+// unmapped by the render thread in front of the kernels -> mapped again. Only
+// the render thread enqueues; the reader just waits on the map event and
+// copies. In zero copy mode a slot only carries a frame index.
+//
+
+#include "frame_prefetch.h"
+
+#include <android/log.h>
+#include <string.h>
+
+#include "stage_metrics.h"
+
+#define  LOG_TAG    "frame_prefetch"
+#define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
+#define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
+
+bool frame_prefetcher::start(cl_context context, cl_command_queue queue, raw_video *source)
+{
+    stop();
+    m_context = context;
+    m_queue = queue;
+    m_source = source;
+    if (source->frame_count() == 0) {
+        return false;
+    }
+    if (!PREFETCH_BUFFER_PER_FRAME) {
+        wrap_frames(context);
+    }
+    for (int i = 0; i < PREFETCH_SLOTS; i++) {
+        slot &s = m_slots[i];
+        s.frame = -1;
+        if (PREFETCH_BUFFER_PER_FRAME) {
+            s.data.resize(source->frame_size());
+            continue;
+        }
+        if (zero_copy()) {
+            continue;
+        }
+        cl_int err;
+        s.buffer = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_ALLOC_HOST_PTR, source->frame_size(), NULL, &err);
+        if (err != CL_SUCCESS) {
+            LOGE("clCreateBuffer for slot %d: %d", i, err);
+            return false;
+        }
+        if (!map(s)) {
+            return false;
+        }
+    }
+    clFlush(m_queue);
+    m_filled = m_taken = 0;
+    m_released = PREFETCH_SLOTS;
+    m_stopping = false;
+    m_reader = std::thread(&frame_prefetcher::run, this);
+    LOGI("%s, %d frames of %d bytes",
+         PREFETCH_BUFFER_PER_FRAME ? "buffer per frame" : zero_copy() ? "zero copy" : "copying", source->frame_count(),
+         (int) source->frame_size());
+    return true;
+}
+
+void frame_prefetcher::wrap_frames(cl_context context)
+{
+    cl_device_id device;
+    cl_bool unified = CL_FALSE;
+    cl_uint align_bits = 0;
+    if (clGetCommandQueueInfo(m_queue, CL_QUEUE_DEVICE, sizeof(device), &device, NULL) != CL_SUCCESS
+            || clGetDeviceInfo(device, CL_DEVICE_HOST_UNIFIED_MEMORY, sizeof(unified), &unified, NULL) != CL_SUCCESS
+            || clGetDeviceInfo(device, CL_DEVICE_MEM_BASE_ADDR_ALIGN, sizeof(align_bits), &align_bits, NULL) != CL_SUCCESS) {
+        return;
+    }
+    // a discrete device would copy the host pointer over anyway, and misaligned ones always
+    if (!unified || !m_source->frames_aligned(align_bits / 8)) {
+        LOGI("no zero copy: unified %d, frames aligned to %d bytes %d", unified, align_bits / 8,
+             m_source->frames_aligned(align_bits / 8));
+        return;
+    }
+    for (int i = 0; i < m_source->frame_count(); i++) {
+        cl_int err;
+        // the mapping is read only, and so are the kernels' inputs
+        cl_mem frame = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_USE_HOST_PTR, m_source->frame_size(),
+                                      (void *) m_source->frame(i), &err);
+        if (err != CL_SUCCESS) {
+            LOGI("no zero copy: clCreateBuffer over frame %d: %d", i, err);
+            for (size_t f = 0; f < m_frames.size(); f++) {
+                clReleaseMemObject(m_frames[f]);
+            }
+            m_frames.clear();
+            return;
+        }
+        m_frames.push_back(frame);
+    }
+}
+
+bool frame_prefetcher::map(slot &s)
+{
+    // the previous frame is not needed, so the driver has nothing to copy back to the host
+    cl_int err;
+    s.host = clEnqueueMapBuffer(m_queue, s.buffer, CL_FALSE, CL_MAP_WRITE_INVALIDATE_REGION, 0,
+                                m_source->frame_size(), 0, NULL, &s.mapped, &err);
+    if (err != CL_SUCCESS) {
+        LOGE("clEnqueueMapBuffer: %d", err);
+        s.mapped = NULL;
+        return false;
+    }
+    return true;
+}
+
+void frame_prefetcher::stop()
+{
+    if (m_reader.joinable()) {
+        {
+            std::lock_guard<std::mutex> guard(m_lock);
+            m_stopping = true;
+        }
+        m_changed.notify_all();
+        m_reader.join();
+    }
+    if (m_queue) {
+        // pending maps and the kernels in front of them
+        clFinish(m_queue);
+    }
+    for (int i = 0; i < PREFETCH_SLOTS; i++) {
+        slot &s = m_slots[i];
+        if (s.mapped) {
+            clReleaseEvent(s.mapped);
+        }
+        if (s.buffer) {
+            if (s.host) {
+                clEnqueueUnmapMemObject(m_queue, s.buffer, s.host, 0, NULL, NULL);
+            }
+            clReleaseMemObject(s.buffer);
+        }
+        s = slot();
+    }
+    for (size_t f = 0; f < m_frames.size(); f++) {
+        clReleaseMemObject(m_frames[f]);
+    }
+    m_frames.clear();
+    if (m_queue) {
+        clFinish(m_queue);
+    }
+    m_source = NULL;
+}
+
+void frame_prefetcher::run()
+{
+    for (;;) {
+        long n;
+        {
+            std::unique_lock<std::mutex> guard(m_lock);
+            m_changed.wait(guard, [this] { return m_stopping || m_filled < m_released; });
+            if (m_stopping) {
+                return;
+            }
+            n = m_filled;
+        }
+        slot &s = m_slots[n % PREFETCH_SLOTS];
+        bool jumped = false;
+        int frame = m_source->next(&jumped);
+        int64_t readStart = stage_now_ns();
+        if (frame >= 0) {
+            if (zero_copy()) {
+                // the kernels would otherwise take the page faults
+                m_source->prefault(frame);
+            } else if (PREFETCH_BUFFER_PER_FRAME) {
+                // behind the kernels that read the frame this slot held before
+                if (s.mapped) {
+                    clWaitForEvents(1, &s.mapped);
+                }
+                memcpy(s.data.data(), m_source->frame(frame), m_source->frame_size());
+            } else if (s.mapped && clWaitForEvents(1, &s.mapped) == CL_SUCCESS) {
+                memcpy(s.host, m_source->frame(frame), m_source->frame_size());
+            } else {
+                frame = -1;
+            }
+            stage_metrics_record(STAGE_FILE_READ, stage_now_ns() - readStart);
+        }
+        s.frame = frame;
+        s.jumped = jumped;
+        {
+            std::lock_guard<std::mutex> guard(m_lock);
+            m_filled++;
+        }
+        m_changed.notify_all();
+    }
+}
+
+cl_mem frame_prefetcher::acquire(bool *jumped)
+{
+    if (!m_reader.joinable()) {
+        return NULL;
+    }
+    {
+        stage_timer t(STAGE_INPUT_WAIT);
+        std::unique_lock<std::mutex> guard(m_lock);
+        m_changed.wait(guard, [this] { return m_filled > m_taken; });
+    }
+    stage_timer t(STAGE_CL_INPUT);
+    slot &s = m_slots[m_taken % PREFETCH_SLOTS];
+    m_taken++;
+    if (s.frame < 0) {
+        // stopped at the end of the file, or a slot that could not be mapped
+        release();
+        return NULL;
+    }
+    *jumped = s.jumped;
+    if (zero_copy()) {
+        return m_frames[s.frame];
+    }
+    if (PREFETCH_BUFFER_PER_FRAME) {
+        if (s.mapped) {
+            clReleaseEvent(s.mapped);
+            s.mapped = NULL;
+        }
+        cl_int err;
+        s.buffer = clCreateBuffer(m_context, CL_MEM_READ_ONLY | CL_MEM_USE_HOST_PTR, m_source->frame_size(),
+                                  s.data.data(), &err);
+        if (err != CL_SUCCESS) {
+            LOGE("clCreateBuffer for frame %d: %d", s.frame, err);
+            s.buffer = NULL;
+            release();
+            return NULL;
+        }
+        return s.buffer;
+    }
+    clReleaseEvent(s.mapped);
+    s.mapped = NULL;
+    // in order queue: kernels enqueued after this see the data
+    clEnqueueUnmapMemObject(m_queue, s.buffer, s.host, 0, NULL, NULL);
+    s.host = NULL;
+    return s.buffer;
+}
+
+void frame_prefetcher::release()
+{
+    slot &s = m_slots[(m_taken - 1) % PREFETCH_SLOTS];
+    if (PREFETCH_BUFFER_PER_FRAME && s.buffer) {
+        // the kernels keep the buffer alive; the reader must not refill data before they are done
+        clReleaseMemObject(s.buffer);
+        s.buffer = NULL;
+        clEnqueueMarkerWithWaitList(m_queue, 0, NULL, &s.mapped);
+        clFlush(m_queue);
+    } else if (!PREFETCH_BUFFER_PER_FRAME && !zero_copy() && !s.host) {
+        map(s);
+        // the reader waits on the map event, which needs the queue flushed to ever complete
+        clFlush(m_queue);
+    }
+    {
+        std::lock_guard<std::mutex> guard(m_lock);
+        m_released++;
+    }
+    m_changed.notify_all();
+}
@@ -0,0 +1,84 @@
+//
+// Raw frames read ahead on a reader thread. While the kernels run on one
+// frame the reader gets the next ones ready, so a frame costs max(I/O,
+// compute) rather than their sum.
+//
+// Where the device shares memory with the host and the file's frames are
+// aligned as it requires, every frame is wrapped once in a CL_MEM_USE_HOST_PTR
+// buffer over the mapped file and the reader only faults pages in; otherwise
+// frames are copied from the mapping into mapped CL_MEM_ALLOC_HOST_PTR slots.
+//
+// PREFETCH_BUFFER_PER_FRAME brings back what the slots replaced: frames copied
+// into plain host memory and a CL_MEM_USE_HOST_PTR buffer created around each
+// one as it is acquired and released after, so the cl_input stage of both can
+// be compared on the same device with dumpStageMetrics.
+//
+
+#ifndef ANDROID_SHADER_DEMO_JNI_FRAME_PREFETCH_H
+#define ANDROID_SHADER_DEMO_JNI_FRAME_PREFETCH_H
+
+#include <condition_variable>
+#include <mutex>
+#include <thread>
+#include <vector>
+
+#include "CL/cl.h"
+#include "raw_video.h"
+
+#define PREFETCH_SLOTS 3
+// 1 creates a buffer per frame instead of reusing mapped slots, to compare cl_input against
+#define PREFETCH_BUFFER_PER_FRAME 0
+
+class frame_prefetcher {
+public:
+    ~frame_prefetcher() { stop(); }
+
+    // starts reading frames of an open source, which must outlive stop()
+    bool start(cl_context context, cl_command_queue queue, raw_video *source);
+
+    // waits for the reader, drains the queue and frees the buffers
+    void stop();
+
+    // the next frame's buffer, ready for kernels enqueued after this call;
+    // jumped is set when it does not follow the previous frame (see
+    // raw_video::next). Blocks while the reader is behind. NULL when the
+    // source has stopped or cannot be read.
+    cl_mem acquire(bool *jumped);
+
+    // hands the acquired frame's slot back to the reader; call once the
+    // kernels that read it are enqueued
+    void release();
+
+    bool zero_copy() const { return !m_frames.empty(); }
+
+private:
+    struct slot {
+        cl_mem buffer;          // copy mode only; per frame mode: the acquired frame's buffer
+        void *host;             // valid once mapped has completed
+        cl_event mapped;        // per frame mode: the kernels that last read data
+        std::vector<unsigned char> data;    // per frame mode only
+        int frame;              // source frame, -1 for none
+        bool jumped;
+    };
+
+    void run();
+    bool map(slot &s);
+    void wrap_frames(cl_context context);
+
+    cl_context m_context = NULL;
+    cl_command_queue m_queue = NULL;
+    raw_video *m_source = NULL;
+    std::vector<cl_mem> m_frames;   // zero copy mode: one buffer per frame of the source
+    slot m_slots[PREFETCH_SLOTS] = {};
+    std::thread m_reader;
+
+    std::mutex m_lock;
+    std::condition_variable m_changed;
+    // frames the reader has filled, the render thread has taken, and slots handed to the reader
+    long m_filled = 0;
+    long m_taken = 0;
+    long m_released = 0;
+    bool m_stopping = false;
+};
+
+#endif //ANDROID_SHADER_DEMO_JNI_FRAME_PREFETCH_H
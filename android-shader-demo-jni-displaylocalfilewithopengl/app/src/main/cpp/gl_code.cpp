@@ -30,8 +30,14 @@
 #include <iostream>
 #include <fstream>
 #include <vector>
+#include <algorithm>
 #include "cl_code.h"
 #include "speckle_utils.h"
+#include "stage_metrics.h"
+#include "program_cache.h"
+#include "shader_chain.h"
+#include "frame_prefetch.h"
+#include "raw_video.h"
 #define  LOG_TAG    "libgl2jni"
 #define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
 #define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
@@ -196,11 +202,16 @@ static const char *PROGRAM_COUNTS_SOURCE[] = {
         "                    float one_minus_beta\n",
         "                   ){\n",
         "    uint wid_x = get_global_id(0);\n",
+        "#if STRIDE == WIDTH\n",
+        "    uint src_x = wid_x;\n",
+        "#else\n",
+        "    uint src_x = (wid_x / WIDTH) * STRIDE + wid_x % WIDTH;\n",
+        "#endif\n",
         //"    uint id_y = get_global_id(1);\n",
         //"    uint wid_x = (id_y * 1440) + (id_x);\n",
         //"    float squarebuffer = src[wid_x]*src[wid_x];\n",
-        "    float squarebuffer = native_powr(src[wid_x],2);\n",
-        "    imageCounts[wid_x] = one_minus_alpha*src[wid_x] + alpha*imageCounts[wid_x];\n",
+        "    float squarebuffer = (float) src[src_x] * src[src_x];\n",
+        "    imageCounts[wid_x] = one_minus_alpha*src[src_x] + alpha*imageCounts[wid_x];\n",
         "    imageSquaredCounts[wid_x] = one_minus_alpha*squarebuffer + alpha*imageSquaredCounts[wid_x];\n",
         "    lascaCounts[wid_x] = one_minus_beta*imageCounts[wid_x]+ beta*lascaCounts[wid_x];\n",
         "    lascaSquaredCounts[wid_x] = one_minus_beta*imageSquaredCounts[wid_x] + beta*lascaSquaredCounts[wid_x];\n",
@@ -260,8 +271,21 @@ static const char* PROGRAM_BLUR_SOURCE[] = {
         "                    float contrast\n",
         "                   ){\n",
         "    uint wid_x = get_global_id(0);\n",
-        "    lascaCountsBlur[wid_x] = 0.111111*(lascaCounts[wid_x]+lascaCounts[wid_x+1]+lascaCounts[wid_x-1]+lascaCounts[wid_x+1440]+lascaCounts[wid_x+1441]+lascaCounts[wid_x+1439]+lascaCounts[wid_x-1440]+lascaCounts[wid_x-1441]+lascaCounts[wid_x-1439]);\n",
-        "    lascaSquaredCountsBlur[wid_x] = 0.111111*(lascaSquaredCounts[wid_x]+lascaSquaredCounts[wid_x+1]+lascaSquaredCounts[wid_x-1]+lascaSquaredCounts[wid_x+1440]+lascaSquaredCounts[wid_x+1441]+lascaSquaredCounts[wid_x+1439]+lascaSquaredCounts[wid_x-1440]+lascaSquaredCounts[wid_x-1441]+lascaSquaredCounts[wid_x-1439]);\n",
+        "    int x = wid_x % WIDTH;\n",
+        "    int y = wid_x / WIDTH;\n",
+        "    float sum = 0.0f;\n",
+        "    float sumSquared = 0.0f;\n",
+        // edge pixels repeated at the borders, as in speckle_fused
+        "    for (int dy = -(WINDOW / 2); dy <= WINDOW / 2; dy++) {\n",
+        "        int row = clamp(y + dy, 0, HEIGHT - 1) * WIDTH;\n",
+        "        for (int dx = -(WINDOW / 2); dx <= WINDOW / 2; dx++) {\n",
+        "            int g = row + clamp(x + dx, 0, WIDTH - 1);\n",
+        "            sum += lascaCounts[g];\n",
+        "            sumSquared += lascaSquaredCounts[g];\n",
+        "        }\n",
+        "    }\n",
+        "    lascaCountsBlur[wid_x] = sum * (1.0f / (WINDOW * WINDOW));\n",
+        "    lascaSquaredCountsBlur[wid_x] = sumSquared * (1.0f / (WINDOW * WINDOW));\n",
         "    if(lascaCountsBlur[wid_x] < 5 ) {\n",
         "       nanMask[wid_x] = 0;\n",
         //"       wid_x = wid_x*3;\n",
@@ -271,8 +295,7 @@ static const char* PROGRAM_BLUR_SOURCE[] = {
         "    } else if ( lascaCountsBlur[wid_x] > 250) {\n",
         "       nanMask[wid_x] = 0;\n",
         "    } else {\n",
-        //"       float lascaBuffer = lascaCountsBlur[wid_x]*lascaCountsBlur[wid_x];\n",
-        "       float lascaBuffer = native_powr(lascaCountsBlur[wid_x],2);\n",
+        "       float lascaBuffer = lascaCountsBlur[wid_x]*lascaCountsBlur[wid_x];\n",
         "       float tempfloat  = contrast * native_divide((lascaSquaredCountsBlur[wid_x] - lascaBuffer),lascaBuffer);\n",
         //"       uint temp = select(select(tempfloat, 255.0f, isgreater(tempfloat,255.0f)), 0.0f, isgreater(0.0f,tempfloat));\n",
         //"       uchar temp = ;\n",
@@ -282,7 +305,100 @@ static const char* PROGRAM_BLUR_SOURCE[] = {
         "}\n"
 };//should change to 2,1,0
 
-std::vector<char> image_buf(1555200);
+// preblur and blur in one pass over TILE x TILE tiles: each work group runs the
+// running averages for its tile plus a halo of half the window (edge pixels
+// repeated at the borders), keeps the lasca values in local memory for the
+// window and stores each accumulator of its own pixels once. Neighbouring
+// groups need the previous frame's values for their halo, so accumulators are
+// read from one set and written to the other, alternating every frame.
+//
+// All three programs take the frame layout as -D options (see
+// speckle_build_options), so each layout gets its own build with constant
+// strides and loop bounds; cl_wrapper caches the builds per layout.
+#define SPECKLE_TILE 16
+static const char* PROGRAM_FUSED_SOURCE[] = {
+        "#define RADIUS (WINDOW / 2)\n",
+        "#define SPAN (TILE + WINDOW - 1)\n",
+        "__kernel __attribute__((reqd_work_group_size(TILE, TILE, 1)))\n",
+        "void speckle_fused(__global const uchar *src,\n",
+        "                   __global const float *imageCountsIn,\n",
+        "                   __global const float *imageSquaredCountsIn,\n",
+        "                   __global const float *lascaCountsIn,\n",
+        "                   __global const float *lascaSquaredCountsIn,\n",
+        "                   __global float *imageCountsOut,\n",
+        "                   __global float *imageSquaredCountsOut,\n",
+        "                   __global float *lascaCountsOut,\n",
+        "                   __global float *lascaSquaredCountsOut,\n",
+        "                   __global uchar *nanMask,\n",
+        "                    float alpha,\n",
+        "                    float one_minus_alpha,\n",
+        "                    float beta,\n",
+        "                    float one_minus_beta,\n",
+        "                    float contrast\n",
+        "                   ){\n",
+        "    __local float lasca[SPAN][SPAN];\n",
+        "    __local float lascaSquared[SPAN][SPAN];\n",
+        "    int lx = get_local_id(0);\n",
+        "    int ly = get_local_id(1);\n",
+        "    int x0 = get_group_id(0) * TILE - RADIUS;\n",
+        "    int y0 = get_group_id(1) * TILE - RADIUS;\n",
+        "    for (int i = ly * TILE + lx; i < SPAN * SPAN; i += TILE * TILE) {\n",
+        "        int cx = i % SPAN;\n",
+        "        int cy = i / SPAN;\n",
+        "        int x = x0 + cx;\n",
+        "        int y = y0 + cy;\n",
+        "        int sx = clamp(x, 0, WIDTH - 1);\n",
+        "        int sy = clamp(y, 0, HEIGHT - 1);\n",
+        "        int g = sy * WIDTH + sx;\n",
+        "        float s = src[sy * STRIDE + sx];\n",
+        "        float counts = one_minus_alpha * s + alpha * imageCountsIn[g];\n",
+        "        float squaredCounts = one_minus_alpha * s * s + alpha * imageSquaredCountsIn[g];\n",
+        "        float l = one_minus_beta * counts + beta * lascaCountsIn[g];\n",
+        "        float lSquared = one_minus_beta * squaredCounts + beta * lascaSquaredCountsIn[g];\n",
+        "        lasca[cy][cx] = l;\n",
+        "        lascaSquared[cy][cx] = lSquared;\n",
+        "        if (cx >= RADIUS && cx < TILE + RADIUS && cy >= RADIUS && cy < TILE + RADIUS && x < WIDTH && y < HEIGHT) {\n",
+        "            imageCountsOut[g] = counts;\n",
+        "            imageSquaredCountsOut[g] = squaredCounts;\n",
+        "            lascaCountsOut[g] = l;\n",
+        "            lascaSquaredCountsOut[g] = lSquared;\n",
+        "        }\n",
+        "    }\n",
+        "    barrier(CLK_LOCAL_MEM_FENCE);\n",
+        "    int x = get_global_id(0);\n",
+        "    int y = get_global_id(1);\n",
+        "    if (x >= WIDTH || y >= HEIGHT) {\n",
+        "        return;\n",
+        "    }\n",
+        "    float sum = 0.0f;\n",
+        "    float sumSquared = 0.0f;\n",
+        "    for (int dy = 0; dy < WINDOW; dy++) {\n",
+        "        for (int dx = 0; dx < WINDOW; dx++) {\n",
+        "            sum += lasca[ly + dy][lx + dx];\n",
+        "            sumSquared += lascaSquared[ly + dy][lx + dx];\n",
+        "        }\n",
+        "    }\n",
+        "    float blur = sum * (1.0f / (WINDOW * WINDOW));\n",
+        "    float squaredBlur = sumSquared * (1.0f / (WINDOW * WINDOW));\n",
+        "    uchar mask = 0;\n",
+        "    if (blur >= 5.0f && blur <= 250.0f) {\n",
+        "        float lascaBuffer = blur * blur;\n",
+        "        mask = convert_uchar_sat_rte(contrast * native_divide(squaredBlur - lascaBuffer, lascaBuffer));\n",
+        "    }\n",
+        "    nanMask[y * WIDTH + x] = mask;\n",
+        "}\n"
+};
+
+// frame layout of the speckle input, built into the kernels as -D options
+struct speckle_geometry {
+    int width;
+    int height;
+    int stride;     // bytes from one input row to the next, at least width
+    int window;     // side of the square blur window, odd
+};
+static speckle_geometry g_geometry = { 1440, 1080, 1440, 3 };
+
+std::vector<char> image_buf;
 float bw, bh;
 void *img;
 
@@ -317,8 +433,9 @@ void init_cl()
 
     memset(&imageDesc, '\0', sizeof(cl_image_desc));
     imageDesc.image_type = CL_MEM_OBJECT_IMAGE2D;
-    imageDesc.image_width = 1440;
-    imageDesc.image_height = 1080;
+    imageDesc.image_width = g_geometry.width;
+    imageDesc.image_height = g_geometry.height;
+    imageDesc.image_row_pitch = g_geometry.stride;
 
     imageFormat.image_channel_data_type = CL_UNSIGNED_INT8;
     imageFormat.image_channel_order = CL_R;
@@ -334,10 +451,16 @@ void init_cl()
     const auto        fin_end = fin.tellg();
     const size_t      buf_size = static_cast<size_t>(fin_end - fin_begin);
     fin.seekg(0, std::ios::beg);
+    // the image is the file's first frame; a shorter file cannot back it
+    if (buf_size < (size_t) g_geometry.stride * g_geometry.height) {
+        DPRINTF("%s is smaller than one %dx%d frame", src_filename.c_str(), g_geometry.width, g_geometry.height);
+        std::exit(EXIT_FAILURE);
+    }
+    image_buf.resize(buf_size);
     fin.read(image_buf.data(), buf_size);
-    bw = 1440;
-    bh = 1080;
-    outputImageData2D = (unsigned char*)malloc(1440* 1080);
+    bw = g_geometry.width;
+    bh = g_geometry.height;
+    outputImageData2D = (unsigned char*)malloc(g_geometry.width * g_geometry.height);
     inputImage2D = clCreateImage(context,
                                  CL_MEM_READ_ONLY | CL_MEM_USE_HOST_PTR,
                                  &imageFormat,
@@ -359,7 +482,7 @@ void execute_cl()
     cl_mem objs[] = { outputImage2D };
     status = clSetKernelArg(program_image_2d_kernel,0,sizeof(cl_mem),&inputImage2D);
     status = clSetKernelArg(program_image_2d_kernel,1,sizeof(cl_mem),&outputImage2D);
-    size_t globalThreads[] = { 1440, 1080 };
+    size_t globalThreads[] = { imageDesc.image_width, imageDesc.image_height };
 
     struct timeval startNDKKernel, endNDKKernel;
     gettimeofday(&startNDKKernel, NULL);
@@ -372,9 +495,9 @@ void execute_cl()
     static int count = 0;
     if( count > 50 && count < 70 ) {
         size_t origin[] = { 0, 0, 0 };
-        size_t region[] = { 1440, 1080, 1 };
+        size_t region[] = { imageDesc.image_width, imageDesc.image_height, 1 };
 
-        unsigned char *outputImageData2D = (unsigned char*)malloc(1440* 1080);
+        unsigned char *outputImageData2D = (unsigned char*)malloc(imageDesc.image_width * imageDesc.image_height);
         // Read output of 2D copy
         clEnqueueAcquireGLObjects(command_queue, 1, objs, 0, NULL, NULL);
         status = clEnqueueReadImage(command_queue, outputImage2D, 1,
@@ -403,7 +526,7 @@ void execute_cl()
 #endif
 #if 1
     size_t origin[] = { 0, 0, 0 };
-    size_t region[] = { 1440, 1080, 1 };
+    size_t region[] = { imageDesc.image_width, imageDesc.image_height, 1 };
     // Read output of 2D copy
     status = clEnqueueReadImage(command_queue, outputImage2D, 1, origin, region, 0, 0, outputImageData2D, 0, 0, 0);
     clFinish(command_queue);
@@ -430,15 +553,13 @@ void execute_cl()
 #endif
 }
 
-unsigned char * rawData = NULL;
-FILE *fp = NULL;
-size_t  buf_size;
+size_t  buf_size;        // one output or accumulator plane, width * height
+size_t  frame_size;      // one input frame, stride * height
 
 std::ofstream fout;
 struct timeval startNDKKernel, endNDKKernel;
-size_t global_preblur[] = {1440, 1080};
-size_t global_size = 1552317;
-size_t offset = 1441;
+// the two kernel version runs one work item per pixel, borders included
+size_t global_size;
 
 cl_int err = CL_SUCCESS;
 
@@ -449,6 +570,15 @@ cl_kernel        blur_kernel;
 
 cl_mem turbo_buffer;
 cl_mem src_buffer = nullptr;
+
+// frame N + 1 is read on its own thread while the kernels run on frame N and
+// the render thread shows frame N - 1, which has its own output buffer
+raw_video speckle_video;
+frame_prefetcher src_prefetch;
+unsigned char *speckle_out[2];
+size_t speckle_out_size = 0;
+cl_event speckle_out_read[2];
+int speckle_frame = 0;
 cl_mem imageCounts_buffer;
 //cl_mem imageCounts_Image2D;
 cl_mem imageSquaredCounts_buffer;
@@ -459,9 +589,21 @@ cl_mem lascaSquaredCountsBlur_buffer;
 //cl_mem imageContrast_buffer;
 cl_mem nanMask_buffer;
 
-cl_mem temp_buffer;
-
 cl_event k_events_k1[1];
+
+// the fused kernel, one object per direction of the accumulator sets so no argument but src changes per frame
+cl_program       fused_program;
+cl_kernel        fused_kernels[2];
+cl_mem imageCounts_back_buffer;
+cl_mem imageSquaredCounts_back_buffer;
+// the two kernel version runs unless the fused one was asked for and fits the device
+bool speckle_fused = false;
+bool speckle_fused_requested = false;
+bool speckle_fused_fits = false;
+int speckle_parity = 0;
+// the layout the kernels and buffers were created for, none yet
+static speckle_geometry speckle_created_geometry = { 0, 0, 0, 0 };
+static void reset_accumulators();
 cl_event k_events_k2[1];
 
 void set_parameters()
@@ -473,41 +615,75 @@ void set_parameters()
     _contrast = 2600.0f;
 }
 void setKernelArguments();
-void speckle_init()
+
+static std::string speckle_build_options(const speckle_geometry &g)
 {
-    DPRINTF("read input file");
-    std::string FileName("/storage/emulated/0/opencvTesting/tina60-120");
-    fp = fopen(FileName.c_str(),"r+b");
-    if(NULL == fp) {
-        DPRINTF(" fopen() Error!!!\n");
-    }
-    bw = 1440;
-    bh = 1080 ;
-    buf_size = bw*bh;
-    //Allocate Buffer for rawData
-    rawData = (unsigned char *)malloc(buf_size);
-    if (NULL == rawData) {
-        DPRINTF("Rawdata is NULL\n");
+    char options[128];
+    snprintf(options, sizeof(options), "-D WIDTH=%d -D HEIGHT=%d -D STRIDE=%d -D WINDOW=%d -D TILE=%d",
+             g.width, g.height, g.stride, g.window, SPECKLE_TILE);
+    return options;
+}
+
+static bool same_geometry(const speckle_geometry &a, const speckle_geometry &b)
+{
+    return a.width == b.width && a.height == b.height && a.stride == b.stride && a.window == b.window;
+}
+
+static void release_mem(cl_mem &mem)
+{
+    if (mem) {
+        clReleaseMemObject(mem);
+        mem = NULL;
     }
+}
 
-    /*std::string Filename = "/storage/emulated/0/opencvTesting/SpeckleOutputCL_new.raw";
-    fout = std::ofstream(Filename, std::ios::binary);
-    if (!fout) {
-        printf("Cannot save the video to a SpeckleOutputCL.raw file");
-        std::exit(EXIT_FAILURE);
-    }*/
+static void release_kernel(cl_kernel &kernel)
+{
+    if (kernel) {
+        wrapper.release_kernel(kernel);
+        kernel = NULL;
+    }
+}
 
-    outputImageData2D = (unsigned char*)malloc(1440* 1080);
+// the kernels and buffers of the last layout; the programs stay in the wrapper's cache
+static void speckle_release()
+{
+    release_kernel(preblur_kernel);
+    release_kernel(blur_kernel);
+    release_kernel(fused_kernels[0]);
+    release_kernel(fused_kernels[1]);
+    release_mem(turbo_buffer);
+    release_mem(imageCounts_buffer);
+    release_mem(imageSquaredCounts_buffer);
+    release_mem(lascaCounts_buffer);
+    release_mem(lascaSquaredCounts_buffer);
+    release_mem(lascaCountsBlur_buffer);
+    release_mem(lascaSquaredCountsBlur_buffer);
+    release_mem(nanMask_buffer);
+    release_mem(imageCounts_back_buffer);
+    release_mem(imageSquaredCounts_back_buffer);
+}
 
+// kernels and buffers for g_geometry, with the accumulators cleared
+static void speckle_create()
+{
     static const cl_uint PROGRAM_COUNTS_SOURCE_LEN = sizeof(PROGRAM_COUNTS_SOURCE) / sizeof(const char*);
     static const cl_uint PROGRAM_BLUR_SOURCE_LEN = sizeof(PROGRAM_BLUR_SOURCE) / sizeof(const char*);
 
-    context = wrapper.get_context();
-    command_queue = wrapper.get_command_queue();
-    preblur_program = wrapper.make_program(PROGRAM_COUNTS_SOURCE, PROGRAM_COUNTS_SOURCE_LEN);
+    // built on the first use of this layout, taken from the wrapper's cache after that
+    std::string options = speckle_build_options(g_geometry);
+    DPRINTF("speckle geometry %s", options.c_str());
+    preblur_program = wrapper.make_program(PROGRAM_COUNTS_SOURCE, PROGRAM_COUNTS_SOURCE_LEN, options);
     preblur_kernel = wrapper.make_kernel("preblur", preblur_program);
-    blur_program = wrapper.make_program(PROGRAM_BLUR_SOURCE, PROGRAM_BLUR_SOURCE_LEN);
+    blur_program = wrapper.make_program(PROGRAM_BLUR_SOURCE, PROGRAM_BLUR_SOURCE_LEN, options);
     blur_kernel = wrapper.make_kernel("blur", blur_program);
+    static const cl_uint PROGRAM_FUSED_SOURCE_LEN = sizeof(PROGRAM_FUSED_SOURCE) / sizeof(const char*);
+    fused_program = wrapper.make_program(PROGRAM_FUSED_SOURCE, PROGRAM_FUSED_SOURCE_LEN, options);
+    fused_kernels[0] = wrapper.make_kernel("speckle_fused", fused_program);
+    fused_kernels[1] = wrapper.make_kernel("speckle_fused", fused_program);
+    // a 16x16 group may not fit where the kernel needs many registers; the two kernel version always does
+    speckle_fused_fits = wrapper.get_max_workgroup_size(fused_kernels[0]) >= SPECKLE_TILE * SPECKLE_TILE;
+    speckle_parity = 0;
 
     turbo_buffer = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_USE_HOST_PTR, 768, turbo_array, &err);
     if (err != CL_SUCCESS) {
@@ -560,6 +736,70 @@ void speckle_init()
         DPRINTF("clCreateBuffer for nanMask_buffer %d",err);
         std::exit(err);
     }
+    // the fused kernel's second accumulator set; it never stores the blurred sums, so the blur
+    // outputs of the two kernel version serve as its lasca buffers
+    imageCounts_back_buffer = clCreateBuffer(context, CL_MEM_READ_WRITE | CL_MEM_ALLOC_HOST_PTR, buf_size * sizeof(float), NULL, &err);
+    if (err != CL_SUCCESS) {
+        DPRINTF("clCreateBuffer for imageCounts_back_buffer %d",err);
+        std::exit(err);
+    }
+    imageSquaredCounts_back_buffer = clCreateBuffer(context, CL_MEM_READ_WRITE | CL_MEM_ALLOC_HOST_PTR, buf_size * sizeof(float), NULL, &err);
+    if (err != CL_SUCCESS) {
+        DPRINTF("clCreateBuffer for imageSquaredCounts_back_buffer %d",err);
+        std::exit(err);
+    }
+}
+
+void speckle_init()
+{
+    // a previous surface's frames may still be in flight
+    src_prefetch.stop();
+    for (int i = 0; i < 2; i++) {
+        if (speckle_out_read[i]) {
+            clReleaseEvent(speckle_out_read[i]);
+            speckle_out_read[i] = NULL;
+        }
+    }
+    speckle_frame = 0;
+    bw = g_geometry.width;
+    bh = g_geometry.height;
+    buf_size = (size_t) g_geometry.width * g_geometry.height;
+    frame_size = (size_t) g_geometry.stride * g_geometry.height;
+    global_size = buf_size;
+
+    /*std::string Filename = "/storage/emulated/0/opencvTesting/SpeckleOutputCL_new.raw";
+    fout = std::ofstream(Filename, std::ios::binary);
+    if (!fout) {
+        printf("Cannot save the video to a SpeckleOutputCL.raw file");
+        std::exit(EXIT_FAILURE);
+    }*/
+
+    if (speckle_out_size != buf_size) {
+        for (int i = 0; i < 2; i++) {
+            free(speckle_out[i]);
+            speckle_out[i] = (unsigned char*)calloc(1, buf_size);
+        }
+        speckle_out_size = buf_size;
+    }
+    outputImageData2D = speckle_out[0];
+
+    context = wrapper.get_context();
+    command_queue = wrapper.get_command_queue();
+    // a new surface with the same layout keeps everything but the running averages
+    if (!same_geometry(speckle_created_geometry, g_geometry)) {
+        speckle_release();
+        speckle_create();
+        speckle_created_geometry = g_geometry;
+    } else {
+        reset_accumulators();
+    }
+    speckle_fused = speckle_fused_requested && speckle_fused_fits;
+    DPRINTF("speckle kernels: %s", speckle_fused ? "fused" : "preblur + blur");
+    DPRINTF("read input file");
+    if (!speckle_video.open("/storage/emulated/0/opencvTesting/tina60-120", frame_size)
+            || !src_prefetch.start(context, command_queue, &speckle_video)) {
+        DPRINTF(" fopen() Error!!!\n");
+    }
 }
 
 void setKernelArguments()
@@ -653,90 +893,396 @@ void setKernelArguments()
         DPRINTF("clSetKernelArg for argument 7 with error %d", err);
         std::exit(err);
     }
+
+    // fused_kernels[p] reads set p and writes the other one
+    cl_mem sets[2][4] = {
+            { imageCounts_buffer, imageSquaredCounts_buffer, lascaCounts_buffer, lascaSquaredCounts_buffer },
+            { imageCounts_back_buffer, imageSquaredCounts_back_buffer, lascaCountsBlur_buffer, lascaSquaredCountsBlur_buffer }
+    };
+    for (int p = 0; p < 2; p++) {
+        cl_kernel k = fused_kernels[p];
+        for (int a = 0; a < 4; a++) {
+            err |= clSetKernelArg(k, 1 + a, sizeof(cl_mem), &sets[p][a]);
+            err |= clSetKernelArg(k, 5 + a, sizeof(cl_mem), &sets[1 - p][a]);
+        }
+        err |= clSetKernelArg(k, 9, sizeof(nanMask_buffer), &nanMask_buffer);
+        err |= clSetKernelArg(k, 10, sizeof(_alpha), &_alpha);
+        err |= clSetKernelArg(k, 11, sizeof(_one_minus_alpha), &_one_minus_alpha);
+        err |= clSetKernelArg(k, 12, sizeof(_beta), &_beta);
+        err |= clSetKernelArg(k, 13, sizeof(_one_minus_beta), &_one_minus_beta);
+        err |= clSetKernelArg(k, 14, sizeof(_contrast), &_contrast);
+    }
+    if (err != CL_SUCCESS) {
+        DPRINTF("clSetKernelArg for speckle_fused with error %d", err);
+        std::exit(err);
+    }
 }
 
-void speckle_execute() {
-    if (!feof(fp)) {
-        fread(rawData, buf_size, 1, fp);
-        static int c = 0;
-        //DPRINTF("processing frame number %d", c);
-
-        // read a new frame from video
-        //bool bSuccess = cap.read(frame);
-        //DPRINTF("Process frame started in CL");
-        gettimeofday(&startNDKKernel, NULL);
-
-        src_buffer = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_USE_HOST_PTR, buf_size, rawData, &err);
-        /*if (err != CL_SUCCESS) {
-            DPRINTF("clCreateBuffer for src_buffer %d ", err);
-            std::exit(err);
-        }*/
-
-        //setKernelArguments();
-        err = clSetKernelArg(preblur_kernel, 0, sizeof(src_buffer), &src_buffer);
-        /*if (err != CL_SUCCESS) {
-            DPRINTF("clSetKernelArg for argument 0 with error %d", err);
-            std::exit(err);
-        }*/
-
-        /******* pre blur Kernel execution********************/
-        //DPRINTF("start of pre-blur kernel");
-        // global_blur[] = { 1338, 1078 };
-        err = clEnqueueNDRangeKernel(command_queue, preblur_kernel, 1, &offset, &global_size, NULL, 0, NULL, &k_events_k1[0]);
-        /*if (err != CL_SUCCESS) {
-            DPRINTF("preblur_kernel clEnqueueNDRangeKernel with error %d", err);
-            std::exit(err);
-        }*/
-        /******* blur Kernel execution********************/
-        //DPRINTF("start of blur kernel");
-        err = clEnqueueNDRangeKernel(command_queue, blur_kernel, 1, &offset, &global_size, NULL, 1, k_events_k1, NULL);
-        /*if (err != CL_SUCCESS) {
-            DPRINTF("blur_kernel clEnqueueNDRangeKernel with error %d", err);
-            std::exit(err);
-        }*/
-
-        temp_buffer = lascaCounts_buffer;
-        lascaCounts_buffer = lascaCountsBlur_buffer;
-        lascaCountsBlur_buffer = temp_buffer;
-
-        temp_buffer = lascaSquaredCounts_buffer;
-        lascaSquaredCounts_buffer = lascaSquaredCountsBlur_buffer;
-        lascaSquaredCountsBlur_buffer = temp_buffer;
-
-        //dump_buffer_GPU_space<char>(command_queue, imageContrast_buffer, fout, buf_size * 3);
-        status = clEnqueueReadBuffer(command_queue, nanMask_buffer, 1, NULL, buf_size, outputImageData2D, 0, 0, 0);
-        clReleaseMemObject(src_buffer);
+// enqueues one frame of the speckle kernels on src; returns the last kernel's event if asked for
+static void enqueue_speckle(cl_mem src, bool fused, cl_event *done)
+{
+    if (fused) {
+        cl_kernel k = fused_kernels[speckle_parity];
+        size_t local[] = { SPECKLE_TILE, SPECKLE_TILE };
+        size_t global[] = {
+                ((size_t) bw + SPECKLE_TILE - 1) / SPECKLE_TILE * SPECKLE_TILE,
+                ((size_t) bh + SPECKLE_TILE - 1) / SPECKLE_TILE * SPECKLE_TILE
+        };
+        err = clSetKernelArg(k, 0, sizeof(src), &src);
+        err = clEnqueueNDRangeKernel(command_queue, k, 2, NULL, global, local, 0, NULL, done);
+        speckle_parity ^= 1;
+        return;
+    }
+    err = clSetKernelArg(preblur_kernel, 0, sizeof(src), &src);
+
+    /******* pre blur Kernel execution********************/
+    //DPRINTF("start of pre-blur kernel");
+    // global_blur[] = { 1338, 1078 };
+    err = clEnqueueNDRangeKernel(command_queue, preblur_kernel, 1, NULL, &global_size, NULL, 0, NULL, &k_events_k1[0]);
+    /*if (err != CL_SUCCESS) {
+        DPRINTF("preblur_kernel clEnqueueNDRangeKernel with error %d", err);
+        std::exit(err);
+    }*/
+    /******* blur Kernel execution********************/
+    //DPRINTF("start of blur kernel");
+    err = clEnqueueNDRangeKernel(command_queue, blur_kernel, 1, NULL, &global_size, NULL, 1, k_events_k1, done);
+    /*if (err != CL_SUCCESS) {
+        DPRINTF("blur_kernel clEnqueueNDRangeKernel with error %d", err);
+        std::exit(err);
+    }*/
+    clReleaseEvent(k_events_k1[0]);
+}
+
+static void reset_accumulators()
+{
+    initializeBuffer(command_queue, imageCounts_buffer, buf_size, 0.0f);
+    initializeBuffer(command_queue, imageSquaredCounts_buffer, buf_size, 0.0f);
+    initializeBuffer(command_queue, lascaCounts_buffer, buf_size, 0.0f);
+    initializeBuffer(command_queue, lascaSquaredCounts_buffer, buf_size, 0.0f);
+    // the fused kernel starts again from the set just cleared
+    speckle_parity = 0;
+}
+
+#ifndef NDEBUG
+// frames per second of both versions over the first frame of the input, kernels only;
+// debug builds only, started through GL2JNILib.benchmarkSpeckle
+static bool speckle_benchmark()
+{
+    static const int ROUNDS = 100;
+    if (speckle_created_geometry.width == 0 || speckle_video.frame_count() == 0) {
+        return false;
+    }
+    cl_mem src = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, frame_size,
+                                (void *) speckle_video.frame(0), &err);
+    if (err != CL_SUCCESS) {
+        return false;
+    }
+    bool versions[] = { false, true };
+    for (int v = 0; v < 2; v++) {
+        if (versions[v] && !speckle_fused_fits) {
+            continue;
+        }
+        // warm up, then time with the queue drained on both ends
+        enqueue_speckle(src, versions[v], NULL);
+        clFinish(command_queue);
+        int64_t start = stage_now_ns();
+        for (int i = 0; i < ROUNDS; i++) {
+            enqueue_speckle(src, versions[v], NULL);
+        }
         clFinish(command_queue);
-        gettimeofday(&endNDKKernel, NULL);
-        DPRINTF("time taken frame %d :%ld", c,((endNDKKernel.tv_sec * 1000000 + endNDKKernel.tv_usec)-(startNDKKernel.tv_sec * 1000000 + startNDKKernel.tv_usec)));
-        //DPRINTF("Process frame ended in CL");
-        c++;
+        double ms = (stage_now_ns() - start) / 1e6 / ROUNDS;
+        DPRINTF("speckle %s: %.3f ms/frame, %.1f Mpixel/s", versions[v] ? "fused" : "preblur + blur",
+                ms, bw * bh / ms / 1000.0);
     }
-    else
-    {
-        fclose(fp);
-        fp = NULL;
-        std::string FileName("/storage/emulated/0/opencvTesting/tina60-120");
-        fp = fopen(FileName.c_str(),"r+b");
-        if(NULL == fp) {
-            DPRINTF(" fopen() Error!!!\n");
+    clReleaseMemObject(src);
+    reset_accumulators();
+    return true;
+}
+
+// one frame of the speckle kernels done serially: the running averages of every pixel,
+// then the window mean with edge pixels repeated at the borders and the mask from it
+static void speckle_reference_frame(const speckle_geometry &g, const unsigned char *src,
+                                    std::vector<float> *acc, std::vector<float> &blur,
+                                    std::vector<unsigned char> &mask)
+{
+    for (int y = 0; y < g.height; y++) {
+        for (int x = 0; x < g.width; x++) {
+            int i = y * g.width + x;
+            float s = src[y * g.stride + x];
+            acc[0][i] = _one_minus_alpha * s + _alpha * acc[0][i];
+            acc[1][i] = _one_minus_alpha * (s * s) + _alpha * acc[1][i];
+            acc[2][i] = _one_minus_beta * acc[0][i] + _beta * acc[2][i];
+            acc[3][i] = _one_minus_beta * acc[1][i] + _beta * acc[3][i];
         }
-        fout.close();
+    }
+    int radius = g.window / 2;
+    for (int y = 0; y < g.height; y++) {
+        for (int x = 0; x < g.width; x++) {
+            float sum = 0.0f;
+            float sumSquared = 0.0f;
+            for (int dy = -radius; dy <= radius; dy++) {
+                int sy = std::min(std::max(y + dy, 0), g.height - 1);
+                for (int dx = -radius; dx <= radius; dx++) {
+                    int sx = std::min(std::max(x + dx, 0), g.width - 1);
+                    sum += acc[2][sy * g.width + sx];
+                    sumSquared += acc[3][sy * g.width + sx];
+                }
+            }
+            int i = y * g.width + x;
+            float b = sum * (1.0f / (g.window * g.window));
+            float squared = sumSquared * (1.0f / (g.window * g.window));
+            blur[i] = b;
+            mask[i] = 0;
+            if (b >= 5.0f && b <= 250.0f) {
+                float contrast = _contrast * (squared - b * b) / (b * b);
+                mask[i] = contrast <= 0.0f ? 0 : contrast >= 255.0f ? 255 : (unsigned char) lrintf(contrast);
+            }
+        }
+    }
+}
 
-        initializeBuffer(command_queue, imageCounts_buffer, buf_size, 0.0f);
-        initializeBuffer(command_queue, imageSquaredCounts_buffer, buf_size, 0.0f);
-        initializeBuffer(command_queue, lascaCounts_buffer, buf_size, 0.0f);
-        initializeBuffer(command_queue, lascaSquaredCounts_buffer, buf_size, 0.0f);
-        //clReleaseMemObject(imageCounts_Image2D);
-        /*clReleaseMemObject(nanMask_buffer);
-        //clReleaseMemObject(imageContrast_buffer);
-        clReleaseMemObject(imageCounts_buffer);
-        clReleaseMemObject(imageSquaredCounts_buffer);
-        clReleaseMemObject(lascaCountsBlur_buffer);
-        clReleaseMemObject(lascaSquaredCountsBlur_buffer);
-        clReleaseMemObject(lascaCounts_buffer);
-        clReleaseMemObject(lascaSquaredCounts_buffer);*/
+// runs frames of synthetic input through one speckle version at layout g on kernels and
+// buffers of its own and compares every frame's mask and accumulators with the serial
+// version; the number of values off it, -1 if the kernels could not run
+static int speckle_check_version(const speckle_geometry &g, bool fused)
+{
+    // the running averages start at zero; it takes this long for the mask to leave saturation
+    static const int FRAMES = 48;
+    static const cl_uint PROGRAM_COUNTS_SOURCE_LEN = sizeof(PROGRAM_COUNTS_SOURCE) / sizeof(const char*);
+    static const cl_uint PROGRAM_BLUR_SOURCE_LEN = sizeof(PROGRAM_BLUR_SOURCE) / sizeof(const char*);
+    static const cl_uint PROGRAM_FUSED_SOURCE_LEN = sizeof(PROGRAM_FUSED_SOURCE) / sizeof(const char*);
+    cl_context ctx = wrapper.get_context();
+    cl_command_queue queue = wrapper.get_command_queue();
+    std::string options = speckle_build_options(g);
+    cl_kernel kernels[2];
+    if (fused) {
+        cl_program program = wrapper.make_program(PROGRAM_FUSED_SOURCE, PROGRAM_FUSED_SOURCE_LEN, options);
+        kernels[0] = wrapper.make_kernel("speckle_fused", program);
+        kernels[1] = wrapper.make_kernel("speckle_fused", program);
+        if (wrapper.get_max_workgroup_size(kernels[0]) < SPECKLE_TILE * SPECKLE_TILE) {
+            DPRINTF("speckle check %s: fused does not fit this device", options.c_str());
+            release_kernel(kernels[0]);
+            release_kernel(kernels[1]);
+            return 0;
+        }
+    } else {
+        kernels[0] = wrapper.make_kernel("preblur",
+                wrapper.make_program(PROGRAM_COUNTS_SOURCE, PROGRAM_COUNTS_SOURCE_LEN, options));
+        kernels[1] = wrapper.make_kernel("blur",
+                wrapper.make_program(PROGRAM_BLUR_SOURCE, PROGRAM_BLUR_SOURCE_LEN, options));
     }
+
+    size_t pixels = (size_t) g.width * g.height;
+    size_t frame_bytes = (size_t) g.stride * g.height;
+    std::vector<float> zeros(pixels, 0.0f);
+    cl_int e = CL_SUCCESS;
+    cl_int created = CL_SUCCESS;
+    cl_mem src = clCreateBuffer(ctx, CL_MEM_READ_ONLY, frame_bytes, NULL, &created);
+    e |= created;
+    // accumulator sets as speckle_create lays them out: the two kernel version keeps its
+    // running averages in set 0 and writes the blurred sums to the lasca half of set 1
+    cl_mem sets[2][4];
+    for (int s = 0; s < 2; s++) {
+        for (int a = 0; a < 4; a++) {
+            sets[s][a] = clCreateBuffer(ctx, CL_MEM_READ_WRITE | CL_MEM_COPY_HOST_PTR,
+                                        pixels * sizeof(float), &zeros[0], &created);
+            e |= created;
+        }
+    }
+    cl_mem mask = clCreateBuffer(ctx, CL_MEM_READ_WRITE, pixels, NULL, &created);
+    e |= created;
+    cl_mem turbo = clCreateBuffer(ctx, CL_MEM_READ_ONLY | CL_MEM_USE_HOST_PTR, 768, turbo_array, &created);
+    e |= created;
+
+    if (fused) {
+        for (int p = 0; p < 2; p++) {
+            for (int a = 0; a < 4; a++) {
+                e |= clSetKernelArg(kernels[p], 1 + a, sizeof(cl_mem), &sets[p][a]);
+                e |= clSetKernelArg(kernels[p], 5 + a, sizeof(cl_mem), &sets[1 - p][a]);
+            }
+            e |= clSetKernelArg(kernels[p], 9, sizeof(cl_mem), &mask);
+            e |= clSetKernelArg(kernels[p], 10, sizeof(_alpha), &_alpha);
+            e |= clSetKernelArg(kernels[p], 11, sizeof(_one_minus_alpha), &_one_minus_alpha);
+            e |= clSetKernelArg(kernels[p], 12, sizeof(_beta), &_beta);
+            e |= clSetKernelArg(kernels[p], 13, sizeof(_one_minus_beta), &_one_minus_beta);
+            e |= clSetKernelArg(kernels[p], 14, sizeof(_contrast), &_contrast);
+        }
+    } else {
+        for (int a = 0; a < 4; a++) {
+            e |= clSetKernelArg(kernels[0], 1 + a, sizeof(cl_mem), &sets[0][a]);
+        }
+        e |= clSetKernelArg(kernels[0], 5, sizeof(_alpha), &_alpha);
+        e |= clSetKernelArg(kernels[0], 6, sizeof(_one_minus_alpha), &_one_minus_alpha);
+        e |= clSetKernelArg(kernels[0], 7, sizeof(_beta), &_beta);
+        e |= clSetKernelArg(kernels[0], 8, sizeof(_one_minus_beta), &_one_minus_beta);
+        e |= clSetKernelArg(kernels[1], 0, sizeof(cl_mem), &sets[0][2]);
+        e |= clSetKernelArg(kernels[1], 1, sizeof(cl_mem), &sets[0][3]);
+        e |= clSetKernelArg(kernels[1], 2, sizeof(cl_mem), &sets[1][2]);
+        e |= clSetKernelArg(kernels[1], 3, sizeof(cl_mem), &sets[1][3]);
+        e |= clSetKernelArg(kernels[1], 4, sizeof(cl_mem), &mask);
+        e |= clSetKernelArg(kernels[1], 5, sizeof(cl_mem), &turbo);
+        e |= clSetKernelArg(kernels[1], 6, sizeof(_contrast), &_contrast);
+    }
+
+    std::vector<unsigned char> frame(frame_bytes);
+    std::vector<unsigned char> got_mask(pixels);
+    std::vector<unsigned char> want_mask(pixels);
+    std::vector<float> got(pixels);
+    std::vector<float> blur(pixels);
+    std::vector<float> want[4];
+    for (int a = 0; a < 4; a++) {
+        want[a].assign(pixels, 0.0f);
+    }
+    int parity = 0;
+    int mismatches = 0;
+    for (int f = 0; f < FRAMES && e == CL_SUCCESS; f++) {
+        // noise, around the lower mask threshold in the left quarter;
+        // the row padding is bright, a kernel reading it would stand out
+        for (int y = 0; y < g.height; y++) {
+            for (int x = 0; x < g.stride; x++) {
+                unsigned int v = x * 7919u + y * 104729u + f * 15485863u;
+                v ^= v >> 7;
+                v *= 2654435761u;
+                v ^= v >> 13;
+                frame[y * g.stride + x] = (unsigned char) (x >= g.width ? 255
+                        : x < g.width / 4 ? v % 12 : 120 + v % 40);
+            }
+        }
+        e |= clEnqueueWriteBuffer(queue, src, CL_TRUE, 0, frame_bytes, &frame[0], 0, NULL, NULL);
+        cl_mem *out = sets[0];
+        if (fused) {
+            size_t local[] = { SPECKLE_TILE, SPECKLE_TILE };
+            size_t global[] = {
+                    ((size_t) g.width + SPECKLE_TILE - 1) / SPECKLE_TILE * SPECKLE_TILE,
+                    ((size_t) g.height + SPECKLE_TILE - 1) / SPECKLE_TILE * SPECKLE_TILE
+            };
+            e |= clSetKernelArg(kernels[parity], 0, sizeof(cl_mem), &src);
+            e |= clEnqueueNDRangeKernel(queue, kernels[parity], 2, NULL, global, local, 0, NULL, NULL);
+            parity ^= 1;
+            out = sets[parity];
+        } else {
+            cl_event preblurred;
+            e |= clSetKernelArg(kernels[0], 0, sizeof(cl_mem), &src);
+            e |= clEnqueueNDRangeKernel(queue, kernels[0], 1, NULL, &pixels, NULL, 0, NULL, &preblurred);
+            if (e == CL_SUCCESS) {
+                e |= clEnqueueNDRangeKernel(queue, kernels[1], 1, NULL, &pixels, NULL, 1, &preblurred, NULL);
+                clReleaseEvent(preblurred);
+            }
+        }
+        e |= clEnqueueReadBuffer(queue, mask, CL_TRUE, 0, pixels, &got_mask[0], 0, NULL, NULL);
+        speckle_reference_frame(g, &frame[0], want, blur, want_mask);
+        for (size_t i = 0; i < pixels && e == CL_SUCCESS; i++) {
+            // rounding may put a mean right at a threshold on either side of it
+            if (fabsf(blur[i] - 5.0f) < 0.01f || fabsf(blur[i] - 250.0f) < 0.01f) {
+                continue;
+            }
+            if (abs(got_mask[i] - want_mask[i]) > 1) {
+                mismatches++;
+            }
+        }
+        for (int a = 0; a < 4 && e == CL_SUCCESS; a++) {
+            e |= clEnqueueReadBuffer(queue, out[a], CL_TRUE, 0, pixels * sizeof(float), &got[0], 0, NULL, NULL);
+            for (size_t i = 0; i < pixels; i++) {
+                if (fabsf(got[i] - want[a][i]) > 1e-3f * (1.0f + fabsf(want[a][i]))) {
+                    mismatches++;
+                }
+            }
+        }
+    }
+
+    release_kernel(kernels[0]);
+    release_kernel(kernels[1]);
+    release_mem(src);
+    for (int s = 0; s < 2; s++) {
+        for (int a = 0; a < 4; a++) {
+            release_mem(sets[s][a]);
+        }
+    }
+    release_mem(mask);
+    release_mem(turbo);
+    if (e != CL_SUCCESS) {
+        DPRINTF("speckle check %s: OpenCL error %d", options.c_str(), e);
+        return -1;
+    }
+    DPRINTF("speckle check %s %s: %d values off", fused ? "fused" : "preblur + blur", options.c_str(), mismatches);
+    return mismatches;
+}
+
+// both speckle versions against the serial one at layouts with partial tiles, row padding
+// and each window size class; debug builds only, run through GL2JNILib.checkSpeckleKernels
+static int speckle_check()
+{
+    static const speckle_geometry layouts[] = {
+            { 37, 29, 40, 3 },
+            { 50, 21, 50, 5 },
+            { 16, 33, 19, 15 },
+    };
+    set_parameters();
+    int mismatches = 0;
+    for (size_t l = 0; l < sizeof(layouts) / sizeof(layouts[0]); l++) {
+        for (int fused = 0; fused < 2; fused++) {
+            int n = speckle_check_version(layouts[l], fused != 0);
+            if (n < 0) {
+                return -1;
+            }
+            mismatches += n;
+        }
+    }
+    return mismatches;
+}
+#endif
+
+void speckle_execute() {
+    bool jumped = false;
+    src_buffer = src_prefetch.acquire(&jumped);
+    if (!src_buffer) {
+        // stopped: the last frame's read is still outstanding, show it and let the event go
+        for (int i = 0; i < 2; i++) {
+            if (speckle_out_read[i]) {
+                clWaitForEvents(1, &speckle_out_read[i]);
+                outputImageData2D = speckle_out[i];
+                clReleaseEvent(speckle_out_read[i]);
+                speckle_out_read[i] = NULL;
+            }
+        }
+        return;
+    }
+    if (jumped && speckle_frame > 0) {
+        // looped back or seeked: the running averages start over from this frame
+        fout.close();
+        reset_accumulators();
+    }
+    static int c = 0;
+    //DPRINTF("processing frame number %d", c);
+    int64_t kernelsStart = stage_now_ns();
+    // the two kernel version keeps its buffers: preblur accumulates into lascaCounts in place,
+    // blur only writes lascaCountsBlur, so the handles stay those the kernels were given at init
+    enqueue_speckle(src_buffer, speckle_fused, NULL);
+
+    //dump_buffer_GPU_space<char>(command_queue, imageContrast_buffer, fout, buf_size * 3);
+    // in order queue: the read follows the blur, and the next frame's kernels follow the read
+    int cur = speckle_frame & 1;
+    status = clEnqueueReadBuffer(command_queue, nanMask_buffer, CL_FALSE, 0, buf_size, speckle_out[cur],
+                                 0, NULL, &speckle_out_read[cur]);
+    // the slot goes back to the reader behind the kernels that use it
+    src_prefetch.release();
+    int64_t readbackStart = stage_now_ns();
+    stage_metrics_record(STAGE_CL_KERNELS, readbackStart - kernelsStart);
+
+    // show the previous frame, done by now unless the kernels are the bottleneck;
+    // the very first frame has nothing older and is waited for
+    int prev = cur ^ 1;
+    int shown = speckle_out_read[prev] ? prev : cur;
+    clWaitForEvents(1, &speckle_out_read[shown]);
+    outputImageData2D = speckle_out[shown];
+    if (shown == prev) {
+        clReleaseEvent(speckle_out_read[prev]);
+        speckle_out_read[prev] = NULL;
+    }
+    stage_metrics_record(STAGE_CL_READBACK, stage_now_ns() - readbackStart);
+    //DPRINTF("Process frame ended in CL");
+    speckle_frame++;
+    c++;
 }
 
 auto gVertexShader =
@@ -823,16 +1369,8 @@ GLuint createProgram(const char *pVertexSource, const char *pFragmentSource) {
     return program;
 }
 
-GLuint programId;
-GLuint aPosition;
-GLuint aTexCoord;
-GLuint rubyTexture;
-GLuint lut;
-GLuint rubyTextureSize;
-GLuint rubyInputSize;
-GLuint rubyOutputSize;
+shader_chain g_chain;
 
-GLuint texture_map;
 GLuint lut_map;
 
 int scnw, scnh, vw, vh;
@@ -844,20 +1382,19 @@ bool initProgram() {
         gVs = (char *)gVertexShader;
     if(!gFs)
         gFs = (char *)gFragmentShader;
-    programId = createProgram(gVs, gFs);
-    if (!programId) {
+    // a single pass chain: the source scaled straight to the screen
+    std::vector<chain_pass_desc> passes(1);
+    passes[0].vertex = gVs;
+    passes[0].fragment = gFs;
+    passes[0].filter = CHAIN_FILTER_DEFAULT;
+    passes[0].width_mode = passes[0].height_mode = CHAIN_SCALE_VIEWPORT;
+    passes[0].width = passes[0].height = 1.0f;
+    passes[0].history = 0;
+    // every onSurfaceCreated lands here, the cache spares relinking on resume
+    if (!g_chain.load(passes, gVertexShader, createProgram)) {
         LOGE("Could not create program.");
         return false;
     }
-
-    aPosition = glGetAttribLocation(programId, "aPosition");
-    aTexCoord = glGetAttribLocation(programId, "aTexCoord");
-    rubyTexture = glGetUniformLocation(programId, "rubyTexture");
-    lut = glGetUniformLocation(programId, "lut");
-    rubyTextureSize = glGetUniformLocation(programId, "rubyTextureSize");
-    rubyInputSize = glGetUniformLocation(programId, "rubyInputSize");
-    rubyOutputSize = glGetUniformLocation(programId, "rubyOutputSize");
-
     return true;
 }
 
@@ -866,31 +1403,14 @@ bool setupGraphics(int w, int h) {
     scnh = h;
     LOGI("setupGraphics(%d, %d)", w, h);
     glViewport(0, 0, scnw, scnh);
+    g_chain.resize(w, h);
     return true;
 }
 
-const GLfloat gTriangleVertices[] = {
-        -1.0f, -1.0f,
-        1.0f, -1.0f,
-        -1.0f, 1.0f,
-
-        -1.0f, 1.0f,
-        1.0f,-1.0f,
-        1.0f,1.0f
-};
-
-const GLfloat gTexVertices[] = {
-        0.0f, 1.0f,
-        1.0f, 1.0f,
-        0.0f, 0.0f,
-
-        0.0f, 0.0f,
-        1.0f,1.0f,
-        1.0f,0.0f
-};
-
 void renderFrame() // 16.6ms
 {
+    stage_metrics_begin_frame();
+    int64_t frameStart = stage_now_ns();
     float grey;
     grey = 0.00f;
 
@@ -899,34 +1419,24 @@ void renderFrame() // 16.6ms
 
     //execute_cl();
     speckle_execute();
+    int64_t uploadStart = stage_now_ns();
     glActiveTexture(GL_TEXTURE0);
-    glBindTexture(GL_TEXTURE_2D, texture_map);
-    glTexImage2D(GL_TEXTURE_2D, 0, GL_LUMINANCE, bw, bh, 0, GL_LUMINANCE, GL_UNSIGNED_BYTE, outputImageData2D);
+    glBindTexture(GL_TEXTURE_2D, g_chain.begin_frame());
+    // the ring texture is already allocated at this size, only the pixels change
+    glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, bw, bh, GL_LUMINANCE, GL_UNSIGNED_BYTE, outputImageData2D);
     //glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB, bw, bh, 0, GL_RGB, GL_UNSIGNED_BYTE, outputImageData2D);
 
     glActiveTexture(GL_TEXTURE1);
     glBindTexture(GL_TEXTURE_2D, lut_map);
     glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB, 256, 1, 0, GL_RGB, GL_UNSIGNED_BYTE, reverse_turbo_array_1);
-
-    glUseProgram(programId);
-
-    glVertexAttribPointer(aPosition, 2, GL_FLOAT, GL_FALSE, 0, gTriangleVertices);
-    glEnableVertexAttribArray(aPosition);
-
-    glVertexAttribPointer(aTexCoord, 2, GL_FLOAT, GL_FALSE, 0, gTexVertices);
-    glEnableVertexAttribArray(aTexCoord);
-
-    glUniform2f(rubyTextureSize, bw, bh);
-    glUniform1i(rubyTexture, 0);
-    glUniform1i(lut, 1);
-
-    //if(rubyInputSize >= 0)
-    //    glUniform2f(rubyInputSize, bw, bh);
-    //if(rubyOutputSize >= 0)
-    //    glUniform2f(rubyOutputSize, vw, vh);
-
-//    glDrawArrays(GL_TRIANGLE_STRIP, 0, 4);
-    glDrawArrays(GL_TRIANGLES, 0, 6);
+    int64_t drawStart = stage_now_ns();
+    stage_metrics_record(STAGE_TEX_UPLOAD, drawStart - uploadStart);
+
+    g_chain.draw(lut_map);
+    int64_t frameEnd = stage_now_ns();
+    stage_metrics_record(STAGE_DRAW, frameEnd - drawStart);
+    stage_metrics_record(STAGE_FRAME, frameEnd - frameStart);
+    stage_metrics_end_frame();
     static int i = 0;
     /*
     if ( i == 20) {
@@ -955,14 +1465,9 @@ void _init(JNIEnv *env, jobject bmp) {
     //bh = info.height;
     //AndroidBitmap_lockPixels(env, bmp, &img);
 
-    glGenTextures(1, &texture_map);
-    glActiveTexture(GL_TEXTURE0);
-    glBindTexture(GL_TEXTURE_2D, texture_map);
-//    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
-    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
-    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
-    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+    // a new context: the old chain's names died with the previous one
+    g_chain.abandon();
+    g_chain.set_input(bw, bh, GL_LUMINANCE);
 
     glGenTextures(1, &lut_map);
     glActiveTexture(GL_TEXTURE1);
@@ -995,6 +1500,41 @@ void _loadShader(JNIEnv *env, jstring jvs, jstring jfs) {
     initProgram();
 }
 
+void _loadShaderChain(JNIEnv *env, jobjectArray jvs, jobjectArray jfs, jfloatArray jparams) {
+    jsize count = env->GetArrayLength(jfs);
+    if (count == 0 || env->GetArrayLength(jparams) < count * CHAIN_PASS_PARAMS) {
+        LOGE("loadShaderChain: %d passes, bad parameters", count);
+        return;
+    }
+    std::vector<chain_pass_desc> passes(count);
+    std::vector<jfloat> params(count * CHAIN_PASS_PARAMS);
+    env->GetFloatArrayRegion(jparams, 0, count * CHAIN_PASS_PARAMS, &params[0]);
+    for (jsize i = 0; i < count; i++) {
+        jstring jv = (jstring) env->GetObjectArrayElement(jvs, i);
+        if (jv) {
+            const char *v = env->GetStringUTFChars(jv, NULL);
+            passes[i].vertex = v;
+            env->ReleaseStringUTFChars(jv, v);
+            env->DeleteLocalRef(jv);
+        }
+        jstring jf = (jstring) env->GetObjectArrayElement(jfs, i);
+        if (jf) {
+            const char *f = env->GetStringUTFChars(jf, NULL);
+            passes[i].fragment = f;
+            env->ReleaseStringUTFChars(jf, f);
+            env->DeleteLocalRef(jf);
+        }
+        const jfloat *p = &params[i * CHAIN_PASS_PARAMS];
+        passes[i].filter = (int) p[0];
+        passes[i].width_mode = (int) p[1];
+        passes[i].width = p[2];
+        passes[i].height_mode = (int) p[3];
+        passes[i].height = p[4];
+        passes[i].history = (int) p[5];
+    }
+    g_chain.load(passes, gVertexShader, createProgram);
+}
+
 extern "C" {
 JNIEXPORT void JNICALL Java_com_android_gl2jni_GL2JNILib_init(JNIEnv *env, jobject obj, jobject bmp)
 {
@@ -1021,4 +1561,90 @@ JNIEXPORT void JNICALL Java_com_android_gl2jni_GL2JNILib_loadShader(JNIEnv *env,
 {
     _loadShader(env, vs, fs);
 }
+
+JNIEXPORT void JNICALL Java_com_android_gl2jni_GL2JNILib_loadShaderChain(JNIEnv *env, jobject obj, jobjectArray vs, jobjectArray fs, jfloatArray params)
+{
+    _loadShaderChain(env, vs, fs, params);
+}
+
+JNIEXPORT void JNICALL Java_com_android_gl2jni_GL2JNILib_setProgramCacheDir(JNIEnv *env, jobject obj, jstring dir)
+{
+    const char *d = dir ? env->GetStringUTFChars(dir, NULL) : NULL;
+    program_cache_set_dir(d);
+    if (d) {
+        env->ReleaseStringUTFChars(dir, d);
+    }
+}
+
+JNIEXPORT jint JNICALL Java_com_android_gl2jni_GL2JNILib_getStageMetrics(JNIEnv *env, jobject obj, jlongArray out)
+{
+    int64_t stats[STAGE_COUNT * FIELD_PER_STAGE];
+    int capacity = env->GetArrayLength(out);
+    int written = stage_metrics_snapshot(stats, capacity < STAGE_COUNT * FIELD_PER_STAGE ? capacity : STAGE_COUNT * FIELD_PER_STAGE);
+    env->SetLongArrayRegion(out, 0, written, (const jlong *) stats);
+    return written;
+}
+
+JNIEXPORT void JNICALL Java_com_android_gl2jni_GL2JNILib_setRawVideoEnd(JNIEnv *env, jobject obj, jint end)
+{
+    speckle_video.set_end((raw_video_end) end);
+}
+
+JNIEXPORT void JNICALL Java_com_android_gl2jni_GL2JNILib_seekRawVideo(JNIEnv *env, jobject obj, jint frame)
+{
+    speckle_video.seek(frame);
+}
+
+JNIEXPORT void JNICALL Java_com_android_gl2jni_GL2JNILib_setSpeckleGeometry(JNIEnv *env, jobject obj, jint width, jint height, jint stride, jint window)
+{
+    // the fused kernel's local memory holds (16 + window - 1)^2 pixels twice, so the window stays small
+    if (width <= 0 || height <= 0 || stride < width || window < 1 || window > 15 || window % 2 == 0) {
+        DPRINTF("bad speckle geometry %dx%d stride %d window %d", width, height, stride, window);
+        return;
+    }
+    g_geometry.width = width;
+    g_geometry.height = height;
+    g_geometry.stride = stride;
+    g_geometry.window = window;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_android_gl2jni_GL2JNILib_benchmarkSpeckle(JNIEnv *env, jobject obj)
+{
+#ifndef NDEBUG
+    return speckle_benchmark();
+#else
+    return false;
+#endif
+}
+
+JNIEXPORT jint JNICALL Java_com_android_gl2jni_GL2JNILib_checkSpeckleKernels(JNIEnv *env, jobject obj)
+{
+#ifndef NDEBUG
+    return speckle_check();
+#else
+    return -1;
+#endif
+}
+
+JNIEXPORT void JNICALL Java_com_android_gl2jni_GL2JNILib_setSpeckleFused(JNIEnv *env, jobject obj, jboolean fused)
+{
+    speckle_fused_requested = fused;
+}
+
+JNIEXPORT jint JNICALL Java_com_android_gl2jni_GL2JNILib_getGpuMemory(JNIEnv *env, jobject obj, jlongArray out)
+{
+    int64_t bytes[] = { g_chain.history_bytes(), g_chain.target_bytes() };
+    int capacity = env->GetArrayLength(out);
+    int written = capacity < 2 ? capacity : 2;
+    env->SetLongArrayRegion(out, 0, written, (const jlong *) bytes);
+    return written;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_android_gl2jni_GL2JNILib_dumpStageMetrics(JNIEnv *env, jobject obj, jstring path)
+{
+    const char *p = env->GetStringUTFChars(path, NULL);
+    bool ok = stage_metrics_dump(p);
+    env->ReleaseStringUTFChars(path, p);
+    return ok ? JNI_TRUE : JNI_FALSE;
+}
 };
\ No newline at end of file
@@ -0,0 +1,183 @@
+//
+// Program binary cache. Entries are named by a hash of both sources,
+// GL_RENDERER and GL_VERSION, and repeat renderer and version in their header
+// so a file from another driver is recognized before the driver sees it. A
+// binary the driver refuses (typically after a driver update) is deleted and
+// the program is linked from source and stored again.
+//
+
+#include "program_cache.h"
+
+#include <GLES2/gl2ext.h>
+#include <EGL/egl.h>
+#include <android/log.h>
+#include <errno.h>
+#include <stdio.h>
+#include <string.h>
+#include <sys/stat.h>
+#include <string>
+#include <vector>
+
+#define  LOG_TAG    "program_cache"
+#define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
+#define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
+
+namespace {
+
+const uint32_t MAGIC = 0x50524731;  // "PRG1"
+const uint32_t FILE_VERSION = 1;
+
+std::string g_dir;
+PFNGLGETPROGRAMBINARYOESPROC g_get_program_binary;
+PFNGLPROGRAMBINARYOESPROC g_program_binary;
+
+uint64_t fnv1a(uint64_t hash, const char *s, size_t n)
+{
+    for (size_t i = 0; i < n; i++) {
+        hash ^= (unsigned char) s[i];
+        hash *= 0x100000001b3ULL;
+    }
+    return hash;
+}
+
+std::string gl_string(GLenum name)
+{
+    const char *s = (const char *) glGetString(name);
+    return s ? s : "";
+}
+
+// entry points and at least one binary format in the current context
+bool binaries_supported()
+{
+    if (gl_string(GL_EXTENSIONS).find("GL_OES_get_program_binary") == std::string::npos) {
+        return false;
+    }
+    GLint formats = 0;
+    glGetIntegerv(GL_NUM_PROGRAM_BINARY_FORMATS_OES, &formats);
+    if (formats <= 0) {
+        return false;
+    }
+    g_get_program_binary = (PFNGLGETPROGRAMBINARYOESPROC) eglGetProcAddress("glGetProgramBinaryOES");
+    g_program_binary = (PFNGLPROGRAMBINARYOESPROC) eglGetProcAddress("glProgramBinaryOES");
+    return g_get_program_binary && g_program_binary;
+}
+
+bool read_u32(FILE *f, uint32_t *v)
+{
+    return fread(v, sizeof(*v), 1, f) == 1;
+}
+
+GLuint load(const std::string &path, const std::string &driver)
+{
+    FILE *f = fopen(path.c_str(), "rb");
+    if (!f) {
+        return 0;
+    }
+    uint32_t magic = 0, version = 0, driver_length = 0, format = 0, length = 0;
+    std::string stored_driver;
+    std::vector<char> binary;
+    bool ok = read_u32(f, &magic) && magic == MAGIC
+              && read_u32(f, &version) && version == FILE_VERSION
+              && read_u32(f, &driver_length) && driver_length == driver.size();
+    if (ok) {
+        stored_driver.resize(driver_length);
+        ok = fread(&stored_driver[0], 1, driver_length, f) == driver_length && stored_driver == driver
+             && read_u32(f, &format) && read_u32(f, &length) && length > 0;
+    }
+    if (ok) {
+        binary.resize(length);
+        ok = fread(&binary[0], 1, length, f) == length;
+    }
+    fclose(f);
+    if (!ok) {
+        LOGI("%s is stale or truncated", path.c_str());
+        return 0;
+    }
+
+    GLuint program = glCreateProgram();
+    g_program_binary(program, format, &binary[0], length);
+    GLint linked = GL_FALSE;
+    glGetProgramiv(program, GL_LINK_STATUS, &linked);
+    // an unknown format raises GL_INVALID_ENUM, drained here so it is not reported later
+    GLenum error = glGetError();
+    if (linked != GL_TRUE || error != GL_NO_ERROR) {
+        LOGI("driver rejected %s (glError 0x%x)", path.c_str(), error);
+        glDeleteProgram(program);
+        return 0;
+    }
+    return program;
+}
+
+void store(GLuint program, const std::string &path, const std::string &driver)
+{
+    GLint length = 0;
+    glGetProgramiv(program, GL_PROGRAM_BINARY_LENGTH_OES, &length);
+    if (length <= 0) {
+        return;
+    }
+    std::vector<char> binary(length);
+    GLsizei written = 0;
+    GLenum format = 0;
+    g_get_program_binary(program, length, &written, &format, &binary[0]);
+    if (glGetError() != GL_NO_ERROR || written <= 0) {
+        LOGI("no binary for program %u", program);
+        return;
+    }
+    // written aside and renamed, so a crash never leaves a truncated entry
+    std::string tmp = path + ".tmp";
+    FILE *f = fopen(tmp.c_str(), "wb");
+    if (!f) {
+        LOGE("could not create %s: %s", tmp.c_str(), strerror(errno));
+        return;
+    }
+    uint32_t header[] = {MAGIC, FILE_VERSION, (uint32_t) driver.size()};
+    uint32_t trailer[] = {format, (uint32_t) written};
+    bool ok = fwrite(header, sizeof(header), 1, f) == 1
+              && fwrite(driver.data(), 1, driver.size(), f) == driver.size()
+              && fwrite(trailer, sizeof(trailer), 1, f) == 1
+              && fwrite(&binary[0], 1, written, f) == (size_t) written;
+    ok = fclose(f) == 0 && ok;
+    if (!ok || rename(tmp.c_str(), path.c_str()) != 0) {
+        LOGE("could not write %s", path.c_str());
+        remove(tmp.c_str());
+    }
+}
+
+} // namespace
+
+void program_cache_set_dir(const char *dir)
+{
+    g_dir = dir ? dir : "";
+    if (!g_dir.empty() && mkdir(g_dir.c_str(), 0700) != 0 && errno != EEXIST) {
+        LOGE("could not create %s: %s", g_dir.c_str(), strerror(errno));
+        g_dir.clear();
+    }
+}
+
+GLuint program_cache_get(const char *vertex_source, const char *fragment_source, program_linker link)
+{
+    if (g_dir.empty() || !binaries_supported()) {
+        return link(vertex_source, fragment_source);
+    }
+    std::string driver = gl_string(GL_RENDERER) + "\n" + gl_string(GL_VERSION);
+    // the terminating NULs separate the parts, "ab"+"c" and "a"+"bc" hash differently
+    uint64_t hash = 0xcbf29ce484222325ULL;
+    hash = fnv1a(hash, vertex_source, strlen(vertex_source) + 1);
+    hash = fnv1a(hash, fragment_source, strlen(fragment_source) + 1);
+    hash = fnv1a(hash, driver.c_str(), driver.size() + 1);
+    char name[32];
+    snprintf(name, sizeof(name), "/%016llx.bin", (unsigned long long) hash);
+    std::string path = g_dir + name;
+
+    GLuint program = load(path, driver);
+    if (program) {
+        LOGI("program %s from cache", name + 1);
+        return program;
+    }
+    remove(path.c_str());
+    program = link(vertex_source, fragment_source);
+    if (program) {
+        store(program, path, driver);
+    }
+    return program;
+}
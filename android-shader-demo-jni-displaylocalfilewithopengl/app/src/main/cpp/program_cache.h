@@ -0,0 +1,20 @@
+//
+// Linked programs kept on disk as driver binaries (OES_get_program_binary).
+//
+
+#ifndef ANDROID_SHADER_DEMO_JNI_PROGRAM_CACHE_H
+#define ANDROID_SHADER_DEMO_JNI_PROGRAM_CACHE_H
+
+#include <GLES2/gl2.h>
+
+// compiles and links from source, 0 on failure
+typedef GLuint (*program_linker)(const char *vertex_source, const char *fragment_source);
+
+// where binaries go, created if missing; NULL or never called disables the cache
+void program_cache_set_dir(const char *dir);
+
+// the cached binary for these sources on this driver, else link()'s program,
+// which is then stored; GL thread with a current context
+GLuint program_cache_get(const char *vertex_source, const char *fragment_source, program_linker link);
+
+#endif //ANDROID_SHADER_DEMO_JNI_PROGRAM_CACHE_H
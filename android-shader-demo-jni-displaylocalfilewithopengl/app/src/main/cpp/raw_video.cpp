@@ -0,0 +1,129 @@
+//
+// Memory mapped raw video, see raw_video.h.
+//
+
+#include "raw_video.h"
+
+#include <android/log.h>
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#define  LOG_TAG    "raw_video"
+#define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
+#define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
+
+bool raw_video::open(const char *path, size_t frame_size)
+{
+    close();
+    int fd = ::open(path, O_RDONLY);
+    if (fd < 0) {
+        LOGE("cannot open %s", path);
+        return false;
+    }
+    struct stat st;
+    if (fstat(fd, &st) != 0 || (size_t) st.st_size < frame_size || frame_size == 0) {
+        LOGE("%s holds no frame of %d bytes", path, (int) frame_size);
+        ::close(fd);
+        return false;
+    }
+    void *base = mmap(NULL, (size_t) st.st_size, PROT_READ, MAP_SHARED, fd, 0);
+    // the mapping keeps the file open
+    ::close(fd);
+    if (base == MAP_FAILED) {
+        LOGE("cannot map %s", path);
+        return false;
+    }
+    // played front to back, so read ahead is worth what the kernel does by default
+    madvise(base, (size_t) st.st_size, MADV_SEQUENTIAL);
+    m_base = (unsigned char *) base;
+    m_length = (size_t) st.st_size;
+    m_frame_size = frame_size;
+    size_t count = m_length / frame_size;
+    m_offsets.resize(count);
+    for (size_t i = 0; i < count; i++) {
+        m_offsets[i] = i * frame_size;
+    }
+    m_next = 0;
+    m_step = 1;
+    m_started = false;
+    m_seek.store(-1);
+    LOGI("%s: %d frames of %d bytes", path, (int) count, (int) frame_size);
+    return true;
+}
+
+void raw_video::close()
+{
+    if (m_base) {
+        munmap(m_base, m_length);
+        m_base = NULL;
+    }
+    m_length = 0;
+    m_offsets.clear();
+}
+
+bool raw_video::frames_aligned(size_t alignment) const
+{
+    if (!m_base || alignment == 0) {
+        return m_base != NULL;
+    }
+    for (size_t i = 0; i < m_offsets.size(); i++) {
+        if (((size_t) (m_base + m_offsets[i])) % alignment != 0) {
+            return false;
+        }
+    }
+    return true;
+}
+
+int raw_video::next(bool *jumped)
+{
+    int count = frame_count();
+    if (count == 0) {
+        return -1;
+    }
+    *jumped = !m_started;
+    m_started = true;
+    int seek = m_seek.exchange(-1);
+    if (seek >= 0) {
+        m_next = seek < count ? seek : count - 1;
+        m_step = 1;
+        *jumped = true;
+    }
+    if (m_next < 0 || m_next >= count) {
+        switch (m_end.load()) {
+            case RAW_VIDEO_STOP:
+                // stays ended until a seek
+                m_next = count;
+                return -1;
+            case RAW_VIDEO_PING_PONG:
+                // turn around without showing the end frame twice
+                m_step = -m_step;
+                m_next += 2 * m_step;
+                if (m_next < 0 || m_next >= count) {
+                    m_next = 0;
+                }
+                break;
+            default:
+                m_next = 0;
+                m_step = 1;
+                *jumped = true;
+                break;
+        }
+    }
+    int index = m_next;
+    m_next += m_step;
+    return index;
+}
+
+void raw_video::prefault(int index) const
+{
+    static const size_t PAGE = (size_t) sysconf(_SC_PAGESIZE);
+    const volatile unsigned char *p = frame(index);
+    unsigned char sum = 0;
+    for (size_t i = 0; i < m_frame_size; i += PAGE) {
+        sum += p[i];
+    }
+    sum += p[m_frame_size - 1];
+    (void) sum;
+}
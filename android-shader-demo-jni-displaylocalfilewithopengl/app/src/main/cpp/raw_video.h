@@ -0,0 +1,62 @@
+//
+// Raw video file of fixed size frames, memory mapped: any frame is a pointer
+// into the mapping, found through the frame table in O(1). Java reads the
+// same files with RawVideoSource.
+//
+
+#ifndef ANDROID_SHADER_DEMO_JNI_RAW_VIDEO_H
+#define ANDROID_SHADER_DEMO_JNI_RAW_VIDEO_H
+
+#include <stddef.h>
+#include <atomic>
+#include <vector>
+
+// what next() does after the last frame; values shared with GL2JNILib.RAW_VIDEO_*
+enum raw_video_end {
+    RAW_VIDEO_LOOP = 0,         // back to the first frame
+    RAW_VIDEO_PING_PONG,        // play backwards to the first frame, then forwards again
+    RAW_VIDEO_STOP              // no more frames
+};
+
+class raw_video {
+public:
+    ~raw_video() { close(); }
+
+    // maps path; a trailing partial frame is ignored. Keeps the end mode
+    bool open(const char *path, size_t frame_size);
+    void close();
+
+    int frame_count() const { return (int) m_offsets.size(); }
+    size_t frame_size() const { return m_frame_size; }
+
+    // the frame's bytes inside the mapping, valid until close()
+    const unsigned char *frame(int index) const { return m_base + m_offsets[index]; }
+
+    // whether every frame starts on a multiple of alignment bytes
+    bool frames_aligned(size_t alignment) const;
+
+    // any thread; both take effect at the next call of next()
+    void set_end(raw_video_end end) { m_end.store(end); }
+    void seek(int index) { m_seek.store(index); }
+
+    // the frame to play now, -1 when a RAW_VIDEO_STOP file has ended.
+    // jumped is set when the frame does not follow the previous one
+    // (the first frame, a loop back to the start, a seek). One thread only
+    int next(bool *jumped);
+
+    // faults the frame's pages in ahead of use
+    void prefault(int index) const;
+
+private:
+    unsigned char *m_base = NULL;
+    size_t m_length = 0;
+    size_t m_frame_size = 0;
+    std::vector<size_t> m_offsets;      // frame table: byte offset of every frame
+    std::atomic<int> m_end{RAW_VIDEO_LOOP};
+    std::atomic<int> m_seek{-1};
+    int m_next = 0;
+    int m_step = 1;
+    bool m_started = false;
+};
+
+#endif //ANDROID_SHADER_DEMO_JNI_RAW_VIDEO_H
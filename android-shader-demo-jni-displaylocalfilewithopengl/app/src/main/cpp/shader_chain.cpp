@@ -0,0 +1,369 @@
+//
+// Multi pass shader chain, see shader_chain.h.
+//
+// Pass i reads the output of pass i - 1, so a target is live for two passes
+// and the one written by pass i - 2 is free again when pass i is planned:
+// chains ping-pong between as few textures per size as the sizes allow.
+// History is a ring of input textures, as deep as the largest history
+// attribute plus one. Every frame the caller uploads into the oldest slot, which
+// becomes the newest, and the previous uploads stay where they are: only the
+// sampler bindings rotate, nothing is copied.
+//
+
+#include "shader_chain.h"
+
+#include <android/log.h>
+#include <stdio.h>
+
+#define  LOG_TAG    "shader_chain"
+#define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
+#define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
+
+namespace {
+
+const GLfloat POSITIONS[] = {
+        -1.0f, -1.0f,
+        1.0f, -1.0f,
+        -1.0f, 1.0f,
+
+        -1.0f, 1.0f,
+        1.0f, -1.0f,
+        1.0f, 1.0f
+};
+
+// the uploaded input has its first row at the top, FBO outputs are upright
+const GLfloat INPUT_TEX_COORDS[] = {
+        0.0f, 1.0f,
+        1.0f, 1.0f,
+        0.0f, 0.0f,
+
+        0.0f, 0.0f,
+        1.0f, 1.0f,
+        1.0f, 0.0f
+};
+
+const GLfloat TARGET_TEX_COORDS[] = {
+        0.0f, 0.0f,
+        1.0f, 0.0f,
+        0.0f, 1.0f,
+
+        0.0f, 1.0f,
+        1.0f, 0.0f,
+        1.0f, 1.0f
+};
+
+GLint gl_filter(int filter)
+{
+    return filter == CHAIN_FILTER_NEAREST ? GL_NEAREST : GL_LINEAR;
+}
+
+int scaled(int mode, float value, int source, int screen)
+{
+    int size;
+    if (mode == CHAIN_SCALE_ABSOLUTE) {
+        size = (int) value;
+    } else if (mode == CHAIN_SCALE_VIEWPORT) {
+        size = (int) (screen * value + 0.5f);
+    } else {
+        size = (int) (source * value + 0.5f);
+    }
+    return size < 1 ? 1 : size;
+}
+
+int bytes_per_pixel(GLenum format)
+{
+    switch (format) {
+        case GL_LUMINANCE:
+        case GL_ALPHA:
+            return 1;
+        case GL_LUMINANCE_ALPHA:
+            return 2;
+        case GL_RGB:
+            return 3;
+        default:
+            return 4;
+    }
+}
+
+void set_sampling(GLuint texture, int filter)
+{
+    glBindTexture(GL_TEXTURE_2D, texture);
+    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, gl_filter(filter));
+    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, gl_filter(filter));
+    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+}
+
+} // namespace
+
+void shader_chain::set_input(int width, int height, GLenum format)
+{
+    m_input_width = width;
+    m_input_height = height;
+    m_input_format = format;
+    ensure_inputs();
+    plan();
+}
+
+void shader_chain::ensure_inputs()
+{
+    if (!m_input_width || !m_input_height) {
+        return;
+    }
+    size_t needed = 1;
+    for (size_t i = 0; i < m_passes.size(); i++) {
+        if (1 + (size_t) m_passes[i].desc.history > needed) {
+            needed = 1 + m_passes[i].desc.history;
+        }
+    }
+    int filter = m_passes.empty() ? CHAIN_FILTER_DEFAULT : m_passes[0].desc.filter;
+    if (m_inputs.size() == needed && m_inputs_width == m_input_width && m_inputs_height == m_input_height
+            && m_inputs_format == m_input_format) {
+        for (size_t i = 0; i < m_inputs.size(); i++) {
+            set_sampling(m_inputs[i], filter);
+        }
+        return;
+    }
+    if (!m_inputs.empty()) {
+        glDeleteTextures((GLsizei) m_inputs.size(), &m_inputs[0]);
+    }
+    m_inputs.assign(needed, 0);
+    glGenTextures((GLsizei) needed, &m_inputs[0]);
+    glActiveTexture(GL_TEXTURE0);
+    for (size_t i = 0; i < needed; i++) {
+        set_sampling(m_inputs[i], filter);
+        glTexImage2D(GL_TEXTURE_2D, 0, m_input_format, m_input_width, m_input_height, 0,
+                     m_input_format, GL_UNSIGNED_BYTE, NULL);
+    }
+    m_inputs_width = m_input_width;
+    m_inputs_height = m_input_height;
+    m_inputs_format = m_input_format;
+    m_current = 0;
+    m_filled = 0;
+    LOGI("%d input textures of %dx%d, %lld bytes", (int) needed, m_input_width, m_input_height,
+         (long long) history_bytes());
+}
+
+bool shader_chain::load(const std::vector<chain_pass_desc> &descs, const char *default_vertex, program_linker link)
+{
+    std::vector<pass> passes;
+    for (size_t i = 0; i < descs.size(); i++) {
+        pass p = pass();
+        p.desc = descs[i];
+        const char *vertex = p.desc.vertex.empty() ? default_vertex : p.desc.vertex.c_str();
+        p.program = program_cache_get(vertex, p.desc.fragment.c_str(), link);
+        if (!p.program) {
+            LOGE("pass %d does not build, keeping the previous chain", (int) i);
+            delete_programs(passes);
+            return false;
+        }
+        p.a_position = glGetAttribLocation(p.program, "aPosition");
+        p.a_tex_coord = glGetAttribLocation(p.program, "aTexCoord");
+        p.target = -1;
+
+        // units: 0 the pass input, 1..history the previous inputs, then the LUT
+        glUseProgram(p.program);
+        glUniform1i(glGetUniformLocation(p.program, "rubyTexture"), 0);
+        for (int k = 0; k < p.desc.history; k++) {
+            char name[32];
+            snprintf(name, sizeof(name), "historyTexture[%d]", k);
+            glUniform1i(glGetUniformLocation(p.program, name), 1 + k);
+        }
+        p.lut_unit = 1 + p.desc.history;
+        p.u_lut = glGetUniformLocation(p.program, "lut");
+        if (p.u_lut >= 0) {
+            glUniform1i(p.u_lut, p.lut_unit);
+        }
+        passes.push_back(p);
+    }
+    delete_programs(m_passes);
+    m_passes = passes;
+    ensure_inputs();
+    plan();
+    LOGI("chain of %d passes", (int) m_passes.size());
+    return true;
+}
+
+void shader_chain::resize(int screen_width, int screen_height)
+{
+    m_screen_width = screen_width;
+    m_screen_height = screen_height;
+    plan();
+}
+
+void shader_chain::plan()
+{
+    if (m_passes.empty() || !m_screen_width || !m_input_width) {
+        return;
+    }
+    std::vector<bool> live(m_targets.size(), false);
+    int in_width = m_input_width;
+    int in_height = m_input_height;
+    for (size_t i = 0; i < m_passes.size(); i++) {
+        pass &p = m_passes[i];
+        if (i + 1 == m_passes.size()) {
+            // the last pass fills the screen whatever its declared size
+            p.out_width = m_screen_width;
+            p.out_height = m_screen_height;
+            p.target = -1;
+        } else {
+            p.out_width = scaled(p.desc.width_mode, p.desc.width, in_width, m_screen_width);
+            p.out_height = scaled(p.desc.height_mode, p.desc.height, in_height, m_screen_height);
+            // what pass i - 2 wrote has been read by pass i - 1
+            if (i >= 2 && m_passes[i - 2].target >= 0) {
+                live[m_passes[i - 2].target] = false;
+            }
+            p.target = acquire_target(p.out_width, p.out_height, live);
+        }
+        glUseProgram(p.program);
+        glUniform2f(glGetUniformLocation(p.program, "rubyTextureSize"), in_width, in_height);
+        glUniform2f(glGetUniformLocation(p.program, "rubyInputSize"), in_width, in_height);
+        glUniform2f(glGetUniformLocation(p.program, "rubyOutputSize"), p.out_width, p.out_height);
+        in_width = p.out_width;
+        in_height = p.out_height;
+    }
+
+    // targets an earlier, larger plan needed and this one does not
+    std::vector<int> remap(m_targets.size(), -1);
+    for (size_t i = 0; i < m_passes.size(); i++) {
+        if (m_passes[i].target >= 0) {
+            remap[m_passes[i].target] = 0;
+        }
+    }
+    std::vector<target> kept;
+    for (size_t t = 0; t < m_targets.size(); t++) {
+        if (remap[t] < 0) {
+            glDeleteFramebuffers(1, &m_targets[t].fbo);
+            glDeleteTextures(1, &m_targets[t].texture);
+        } else {
+            remap[t] = (int) kept.size();
+            kept.push_back(m_targets[t]);
+        }
+    }
+    m_targets = kept;
+    for (size_t i = 0; i < m_passes.size(); i++) {
+        if (m_passes[i].target >= 0) {
+            m_passes[i].target = remap[m_passes[i].target];
+        }
+    }
+    glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    LOGI("%d passes on %d intermediate targets, %lld bytes", (int) m_passes.size(), (int) m_targets.size(),
+         (long long) target_bytes());
+}
+
+int shader_chain::acquire_target(int width, int height, std::vector<bool> &live)
+{
+    for (size_t t = 0; t < m_targets.size(); t++) {
+        if (!live[t] && m_targets[t].width == width && m_targets[t].height == height) {
+            live[t] = true;
+            return (int) t;
+        }
+    }
+    target t = target();
+    t.width = width;
+    t.height = height;
+    t.filter = -1;
+    glGenTextures(1, &t.texture);
+    glActiveTexture(GL_TEXTURE0);
+    set_sampling(t.texture, CHAIN_FILTER_DEFAULT);
+    t.filter = CHAIN_FILTER_DEFAULT;
+    glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, width, height, 0, GL_RGBA, GL_UNSIGNED_BYTE, NULL);
+    glGenFramebuffers(1, &t.fbo);
+    glBindFramebuffer(GL_FRAMEBUFFER, t.fbo);
+    glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, t.texture, 0);
+    GLenum status = glCheckFramebufferStatus(GL_FRAMEBUFFER);
+    if (status != GL_FRAMEBUFFER_COMPLETE) {
+        LOGE("target %dx%d incomplete: 0x%x", width, height, status);
+    }
+    m_targets.push_back(t);
+    live.push_back(true);
+    return (int) m_targets.size() - 1;
+}
+
+GLuint shader_chain::begin_frame()
+{
+    if (m_inputs.empty()) {
+        return 0;
+    }
+    // the oldest slot becomes the newest
+    m_current = (m_current + 1) % (int) m_inputs.size();
+    if (m_filled < (int) m_inputs.size()) {
+        m_filled++;
+    }
+    return m_inputs[m_current];
+}
+
+void shader_chain::draw(GLuint lut)
+{
+    int ring = (int) m_inputs.size();
+    for (size_t i = 0; i < m_passes.size(); i++) {
+        pass &p = m_passes[i];
+        glBindFramebuffer(GL_FRAMEBUFFER, p.target >= 0 ? m_targets[p.target].fbo : 0);
+        glViewport(0, 0, p.out_width, p.out_height);
+        glUseProgram(p.program);
+
+        glVertexAttribPointer(p.a_position, 2, GL_FLOAT, GL_FALSE, 0, POSITIONS);
+        glEnableVertexAttribArray(p.a_position);
+        glVertexAttribPointer(p.a_tex_coord, 2, GL_FLOAT, GL_FALSE, 0, i == 0 ? INPUT_TEX_COORDS : TARGET_TEX_COORDS);
+        glEnableVertexAttribArray(p.a_tex_coord);
+
+        glActiveTexture(GL_TEXTURE0);
+        if (i == 0) {
+            glBindTexture(GL_TEXTURE_2D, m_inputs[m_current]);
+        } else {
+            target &in = m_targets[m_passes[i - 1].target];
+            glBindTexture(GL_TEXTURE_2D, in.texture);
+            // a pooled target may feed passes with different filters
+            if (in.filter != p.desc.filter) {
+                set_sampling(in.texture, p.desc.filter);
+                in.filter = p.desc.filter;
+            }
+        }
+        for (int k = 0; k < p.desc.history; k++) {
+            // until the ring has filled up, the oldest upload stands in for frames not seen yet
+            int age = k + 1 < m_filled ? k + 1 : m_filled - 1;
+            glActiveTexture(GL_TEXTURE1 + k);
+            glBindTexture(GL_TEXTURE_2D, m_inputs[(m_current - age + ring) % ring]);
+        }
+        if (p.u_lut >= 0 && lut) {
+            glActiveTexture(GL_TEXTURE0 + p.lut_unit);
+            glBindTexture(GL_TEXTURE_2D, lut);
+        }
+        glDrawArrays(GL_TRIANGLES, 0, 6);
+    }
+    glActiveTexture(GL_TEXTURE0);
+}
+
+void shader_chain::delete_programs(std::vector<pass> &passes)
+{
+    for (size_t i = 0; i < passes.size(); i++) {
+        glDeleteProgram(passes[i].program);
+    }
+    passes.clear();
+}
+
+void shader_chain::abandon()
+{
+    m_passes.clear();
+    m_targets.clear();
+    m_inputs.clear();
+    m_current = 0;
+    m_filled = 0;
+    m_inputs_width = 0;
+    m_inputs_height = 0;
+    m_inputs_format = 0;
+}
+
+int64_t shader_chain::history_bytes() const
+{
+    return (int64_t) m_inputs.size() * m_inputs_width * m_inputs_height * bytes_per_pixel(m_inputs_format);
+}
+
+int64_t shader_chain::target_bytes() const
+{
+    int64_t bytes = 0;
+    for (size_t t = 0; t < m_targets.size(); t++) {
+        bytes += (int64_t) m_targets[t].width * m_targets[t].height * 4;
+    }
+    return bytes;
+}
@@ -0,0 +1,113 @@
+//
+// Multi pass shader chain: every <fragment> of a .shader file is a pass that
+// renders into a pooled FBO texture for the next one, the last pass renders to
+// the screen. Targets are planned once per size change, so frames allocate
+// nothing.
+//
+
+#ifndef ANDROID_SHADER_DEMO_JNI_SHADER_CHAIN_H
+#define ANDROID_SHADER_DEMO_JNI_SHADER_CHAIN_H
+
+#include <GLES2/gl2.h>
+#include <stdint.h>
+#include <string>
+#include <vector>
+
+#include "program_cache.h"
+
+// values shared with GL2JNILib.FILTER_* and SCALE_*
+enum chain_filter {
+    CHAIN_FILTER_DEFAULT = 0,   // linear
+    CHAIN_FILTER_LINEAR,
+    CHAIN_FILTER_NEAREST
+};
+
+enum chain_scale {
+    CHAIN_SCALE_SOURCE = 0,     // factor of the pass input size, "200%"
+    CHAIN_SCALE_ABSOLUTE,       // pixels, "640"
+    CHAIN_SCALE_VIEWPORT        // factor of the screen size
+};
+
+// floats per pass in GL2JNILib.loadShaderChain's params:
+// filter, width mode, width, height mode, height, history
+#define CHAIN_PASS_PARAMS 6
+
+struct chain_pass_desc {
+    std::string vertex;         // empty for the default vertex shader
+    std::string fragment;
+    int filter;                 // how this pass samples its input
+    int width_mode;
+    float width;
+    int height_mode;
+    float height;
+    int history;                // previous input frames bound as historyTexture[]
+};
+
+class shader_chain {
+public:
+    // storage of the input ring: size and format of what the caller uploads every frame
+    void set_input(int width, int height, GLenum format);
+
+    // compiles every pass; on failure the previous chain stays in place
+    bool load(const std::vector<chain_pass_desc> &passes, const char *default_vertex, program_linker link);
+
+    // plans pass sizes and assigns pooled targets; called on surface changes and after load
+    void resize(int screen_width, int screen_height);
+
+    // the input texture for this frame, for the caller to glTexSubImage2D into
+    GLuint begin_frame();
+
+    // runs the passes; lut, if non zero, is bound for passes that sample "lut"
+    void draw(GLuint lut);
+
+    // forgets every GL name without deleting it, for when the context is gone
+    void abandon();
+
+    // texture storage held by the input and history ring, and by the pass targets
+    int64_t history_bytes() const;
+    int64_t target_bytes() const;
+
+    bool empty() const { return m_passes.empty(); }
+
+private:
+    struct pass {
+        chain_pass_desc desc;
+        GLuint program;
+        GLint a_position;
+        GLint a_tex_coord;
+        GLint u_lut;
+        int lut_unit;
+        int out_width;
+        int out_height;
+        int target;             // index into m_targets, -1 for the screen
+    };
+
+    struct target {
+        int width;
+        int height;
+        GLuint texture;
+        GLuint fbo;
+        int filter;             // sampling currently set on the texture
+    };
+
+    void ensure_inputs();
+    void plan();
+    int acquire_target(int width, int height, std::vector<bool> &live);
+    void delete_programs(std::vector<pass> &passes);
+
+    std::vector<pass> m_passes;
+    std::vector<target> m_targets;
+    std::vector<GLuint> m_inputs;   // ring: this frame's input plus history
+    int m_current = 0;
+    int m_filled = 0;           // ring slots uploaded since allocation
+    int m_inputs_width = 0;     // what the ring was allocated with
+    int m_inputs_height = 0;
+    GLenum m_inputs_format = 0;
+    int m_input_width = 0;
+    int m_input_height = 0;
+    GLenum m_input_format = 0;
+    int m_screen_width = 0;
+    int m_screen_height = 0;
+};
+
+#endif //ANDROID_SHADER_DEMO_JNI_SHADER_CHAIN_H
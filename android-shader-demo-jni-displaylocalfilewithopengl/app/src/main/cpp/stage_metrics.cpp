@@ -0,0 +1,188 @@
+//
+// Per stage timing of the native frame loop: lock free counters, log linear
+// latency histograms (8 buckets per power of two, so percentiles are exact to
+// within 12.5%) and a ring of the last frames.
+//
+
+#include "stage_metrics.h"
+
+#include <android/log.h>
+#include <atomic>
+#include <stdio.h>
+
+#define  LOG_TAG    "stage_metrics"
+#define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
+
+namespace {
+
+const int SUB_BUCKET_BITS = 3;
+const int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+const int BUCKETS = 64 * SUB_BUCKETS;
+const int RING_SIZE = 300;
+
+const char *STAGE_NAMES[STAGE_COUNT] = {
+        "file_read", "input_wait", "cl_input", "cl_kernels", "cl_readback", "tex_upload", "draw", "frame"
+};
+
+struct stage_counters {
+    std::atomic<int64_t> count;
+    std::atomic<int64_t> total_ns;
+    std::atomic<int64_t> max_ns;
+    std::atomic<int64_t> histogram[BUCKETS];
+};
+
+struct frame_record {
+    int64_t frame;
+    int64_t stage_ns[STAGE_COUNT];
+};
+
+// zero initialized as statics
+stage_counters g_stages[STAGE_COUNT];
+
+frame_record g_ring[RING_SIZE];
+std::atomic<int64_t> g_ring_seq[RING_SIZE];
+std::atomic<int64_t> g_frames_recorded;
+frame_record g_current;
+// per thread, so stages recorded from other threads (the frame reader) stay out of the frame ring
+thread_local bool g_in_frame = false;
+
+int bucket_of(int64_t ns)
+{
+    if (ns < SUB_BUCKETS) {
+        return ns < 0 ? 0 : (int) ns;
+    }
+    int octave = 63 - __builtin_clzll((unsigned long long) ns);
+    int sub = (int) (ns >> (octave - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (octave - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+}
+
+int64_t bucket_upper_bound(int bucket)
+{
+    if (bucket < SUB_BUCKETS) {
+        return bucket;
+    }
+    int octave = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    int64_t sub = bucket % SUB_BUCKETS;
+    int64_t width = 1LL << (octave - SUB_BUCKET_BITS);
+    return (1LL << octave) + (sub + 1) * width - 1;
+}
+
+int64_t percentile(const int64_t *histogram, int64_t count, double fraction)
+{
+    if (count == 0) {
+        return 0;
+    }
+    int64_t rank = (int64_t) (count * fraction + 0.999999);
+    int64_t seen = 0;
+    for (int b = 0; b < BUCKETS; b++) {
+        seen += histogram[b];
+        if (seen >= rank) {
+            return bucket_upper_bound(b);
+        }
+    }
+    return bucket_upper_bound(BUCKETS - 1);
+}
+
+} // namespace
+
+void stage_metrics_record(stage_id stage, int64_t ns)
+{
+    stage_counters &c = g_stages[stage];
+    c.count.fetch_add(1, std::memory_order_relaxed);
+    c.total_ns.fetch_add(ns, std::memory_order_relaxed);
+    int64_t max = c.max_ns.load(std::memory_order_relaxed);
+    while (ns > max && !c.max_ns.compare_exchange_weak(max, ns, std::memory_order_relaxed)) {
+    }
+    c.histogram[bucket_of(ns)].fetch_add(1, std::memory_order_relaxed);
+    // the frame ring only follows the render thread, which is the only one that opens frames
+    if (g_in_frame) {
+        g_current.stage_ns[stage] += ns;
+    }
+}
+
+void stage_metrics_begin_frame()
+{
+    g_current = frame_record();
+    g_current.frame = g_frames_recorded.load(std::memory_order_relaxed);
+    g_in_frame = true;
+}
+
+void stage_metrics_end_frame()
+{
+    g_in_frame = false;
+    int64_t n = g_frames_recorded.load(std::memory_order_relaxed);
+    int slot = (int) (n % RING_SIZE);
+    // odd while the slot is being rewritten, readers skip it
+    g_ring_seq[slot].fetch_add(1, std::memory_order_acq_rel);
+    g_ring[slot] = g_current;
+    g_ring_seq[slot].fetch_add(1, std::memory_order_release);
+    g_frames_recorded.store(n + 1, std::memory_order_release);
+}
+
+int stage_metrics_snapshot(int64_t *out, int capacity)
+{
+    int written = 0;
+    int64_t histogram[BUCKETS];
+    for (int s = 0; s < STAGE_COUNT && written + FIELD_PER_STAGE <= capacity; s++) {
+        stage_counters &c = g_stages[s];
+        int64_t count = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            histogram[b] = c.histogram[b].load(std::memory_order_relaxed);
+            count += histogram[b];
+        }
+        int64_t *o = out + written;
+        o[FIELD_COUNT] = count;
+        o[FIELD_TOTAL_NS] = c.total_ns.load(std::memory_order_relaxed);
+        o[FIELD_MAX_NS] = c.max_ns.load(std::memory_order_relaxed);
+        o[FIELD_P50_NS] = percentile(histogram, count, 0.50);
+        o[FIELD_P95_NS] = percentile(histogram, count, 0.95);
+        o[FIELD_P99_NS] = percentile(histogram, count, 0.99);
+        written += FIELD_PER_STAGE;
+    }
+    return written;
+}
+
+bool stage_metrics_dump(const char *path)
+{
+    FILE *f = fopen(path, "w");
+    if (!f) {
+        return false;
+    }
+    int64_t stats[STAGE_COUNT * FIELD_PER_STAGE];
+    stage_metrics_snapshot(stats, STAGE_COUNT * FIELD_PER_STAGE);
+    fprintf(f, "stage,count,mean_ns,p50_ns,p95_ns,p99_ns,max_ns\n");
+    for (int s = 0; s < STAGE_COUNT; s++) {
+        const int64_t *o = stats + s * FIELD_PER_STAGE;
+        fprintf(f, "%s,%lld,%lld,%lld,%lld,%lld,%lld\n", STAGE_NAMES[s],
+                (long long) o[FIELD_COUNT],
+                (long long) (o[FIELD_COUNT] ? o[FIELD_TOTAL_NS] / o[FIELD_COUNT] : 0),
+                (long long) o[FIELD_P50_NS], (long long) o[FIELD_P95_NS],
+                (long long) o[FIELD_P99_NS], (long long) o[FIELD_MAX_NS]);
+    }
+
+    fprintf(f, "\nframe");
+    for (int s = 0; s < STAGE_COUNT; s++) {
+        fprintf(f, ",%s_ns", STAGE_NAMES[s]);
+    }
+    fprintf(f, "\n");
+    int64_t recorded = g_frames_recorded.load(std::memory_order_acquire);
+    int64_t first = recorded > RING_SIZE ? recorded - RING_SIZE : 0;
+    int frames = 0;
+    for (int64_t n = first; n < recorded; n++) {
+        int slot = (int) (n % RING_SIZE);
+        int64_t seq = g_ring_seq[slot].load(std::memory_order_acquire);
+        frame_record r = g_ring[slot];
+        if ((seq & 1) != 0 || g_ring_seq[slot].load(std::memory_order_acquire) != seq) {
+            continue;
+        }
+        fprintf(f, "%lld", (long long) r.frame);
+        for (int s = 0; s < STAGE_COUNT; s++) {
+            fprintf(f, ",%lld", (long long) r.stage_ns[s]);
+        }
+        fprintf(f, "\n");
+        frames++;
+    }
+    fclose(f);
+    LOGI("dumped %d frames to %s", frames, path);
+    return true;
+}
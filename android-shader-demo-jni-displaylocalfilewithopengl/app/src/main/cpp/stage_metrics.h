@@ -0,0 +1,64 @@
+//
+// Per stage timing of the native frame loop.
+//
+
+#ifndef ANDROID_SHADER_DEMO_JNI_STAGE_METRICS_H
+#define ANDROID_SHADER_DEMO_JNI_STAGE_METRICS_H
+
+#include <stdint.h>
+#include <time.h>
+
+enum stage_id {
+    STAGE_FILE_READ = 0,    // fread of a raw frame, on the reader thread
+    STAGE_INPUT_WAIT,       // render thread waiting for the reader to have the next frame
+    STAGE_CL_INPUT,         // driver side cost of handing that frame to the kernels
+    STAGE_CL_KERNELS,       // enqueue of pre-blur, blur and the result read
+    STAGE_CL_READBACK,      // wait for the previous frame's result
+    STAGE_TEX_UPLOAD,       // glTexImage2D of the result and the LUT
+    STAGE_DRAW,             // program setup and draw call submission
+    STAGE_FRAME,            // whole renderFrame
+    STAGE_COUNT
+};
+
+// per stage values copied out by stage_metrics_snapshot()
+enum stage_field {
+    FIELD_COUNT = 0,
+    FIELD_TOTAL_NS,
+    FIELD_MAX_NS,
+    FIELD_P50_NS,
+    FIELD_P95_NS,
+    FIELD_P99_NS,
+    FIELD_PER_STAGE
+};
+
+inline int64_t stage_now_ns()
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (int64_t) ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+// lock free, callable from any thread
+void stage_metrics_record(stage_id stage, int64_t ns);
+
+// frame ring, render thread only
+void stage_metrics_begin_frame();
+void stage_metrics_end_frame();
+
+// fills STAGE_COUNT * FIELD_PER_STAGE values, returns how many were written
+int stage_metrics_snapshot(int64_t *out, int capacity);
+
+// stage table plus the last frames as CSV, returns false if the file could not be written
+bool stage_metrics_dump(const char *path);
+
+// times a scope into one stage
+class stage_timer {
+public:
+    explicit stage_timer(stage_id stage) : m_stage(stage), m_start(stage_now_ns()) {}
+    ~stage_timer() { stage_metrics_record(m_stage, stage_now_ns() - m_start); }
+private:
+    stage_id m_stage;
+    int64_t m_start;
+};
+
+#endif //ANDROID_SHADER_DEMO_JNI_STAGE_METRICS_H
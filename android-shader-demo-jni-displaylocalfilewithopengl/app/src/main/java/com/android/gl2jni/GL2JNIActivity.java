@@ -39,9 +39,7 @@ public class GL2JNIActivity extends Activity implements View.OnClickListener {
     @Override
     public void onClick(View v) {
         if(names == null)
-            try {
-                names = getAssets().list("shaders");
-            } catch (Exception e) {}
+            names = ShaderLibrary.get(this).getNames();
 
         new AlertDialog.Builder(this)
                 .setTitle("Shaders")
@@ -67,6 +65,8 @@ public class GL2JNIActivity extends Activity implements View.OnClickListener {
     protected void onCreate(Bundle icicle) {
         super.onCreate(icicle);
         setContentView(R.layout.main);
+        // parses the shader assets in the background while the view comes up
+        ShaderLibrary.get(this);
 
         FrameLayout ll = findViewById(R.id.root);
         findViewById(R.id.btn).setOnClickListener(this);
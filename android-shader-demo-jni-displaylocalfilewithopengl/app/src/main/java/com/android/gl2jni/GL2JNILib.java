@@ -34,6 +34,86 @@ public class GL2JNILib {
      public static native void resize(int width, int height);
      public static native void step();
      public static native void loadShader(String vs, String fs);
+     /**
+      * Replaces the shader with a chain of passes, each rendering into a texture
+      * the next one samples; the last renders to the screen. vs entries may be
+      * null for the default vertex shader. params holds PASS_PARAMS floats per
+      * pass: filter, width mode, width, height mode, height, history.
+      */
+     public static native void loadShaderChain(String[] vs, String[] fs, float[] params);
+     /** Directory for linked program binaries, null to always compile from source. Call before loadShader. */
+     public static native void setProgramCacheDir(String dir);
+
+     /** Values of shader_chain.h. */
+     public static final int FILTER_DEFAULT = 0;
+     public static final int FILTER_LINEAR = 1;
+     public static final int FILTER_NEAREST = 2;
+     public static final int SCALE_SOURCE = 0;
+     public static final int SCALE_ABSOLUTE = 1;
+     public static final int SCALE_VIEWPORT = 2;
+     public static final int PASS_PARAMS = 6;
+
+     /** Native stages in the order of stage_id in stage_metrics.h. */
+     public static final String[] STAGE_NAMES = {
+             "file_read", "input_wait", "cl_input", "cl_kernels", "cl_readback", "tex_upload", "draw", "frame"
+     };
+     /** Values per stage: count, total, max, p50, p95, p99, all in nanoseconds except count. */
+     public static final int STAGE_FIELDS = 6;
+
+     /** Fills out with STAGE_FIELDS values per stage and returns how many were written. */
+     public static native int getStageMetrics(long[] out);
+     /** Writes the stage table and the last frames as CSV; false if the file could not be opened. */
+     public static native boolean dumpStageMetrics(String path);
+
+     /** Values of raw_video_end in raw_video.h. */
+     public static final int RAW_VIDEO_LOOP = 0;
+     public static final int RAW_VIDEO_PING_PONG = 1;
+     public static final int RAW_VIDEO_STOP = 2;
+
+     /** What the speckle input does after its last frame, one of RAW_VIDEO_*. Any thread. */
+     public static native void setRawVideoEnd(int end);
+     /**
+      * Plays the speckle input from this frame on; the frames already read
+      * ahead, a few at most, are shown first. Any thread.
+      */
+     public static native void seekRawVideo(int frame);
+     /**
+      * Layout of the speckle input frames, 1440x1080 with a 3x3 window until set:
+      * stride is the bytes from one row to the next, window the odd side of the
+      * blur window, at most 15. Takes effect at the next init; until it changes,
+      * new surfaces keep the kernels and buffers, and programs built for a
+      * layout are reused when it comes back.
+      */
+     public static native void setSpeckleGeometry(int width, int height, int stride, int window);
+     /**
+      * Runs the fused speckle kernel instead of preblur + blur where the device
+      * fits its 16x16 work groups; off until set, as it has not been measured
+      * against the two kernel version yet. Takes effect at the next init.
+      */
+     public static native void setSpeckleFused(boolean fused);
+     /** Intent extra that runs benchmarkSpeckle after every init, debug builds only. */
+     public static final String EXTRA_BENCHMARK_SPECKLE = "benchmark_speckle";
+     /**
+      * Times both speckle versions over the first input frame and logs them.
+      * Compiled into debug builds only, false in release builds or before init.
+      * GL thread.
+      */
+     public static native boolean benchmarkSpeckle();
+     /**
+      * Runs several frames of synthetic input through both speckle versions,
+      * alternating the fused kernel's accumulator sets, at a few small layouts
+      * and compares every mask and accumulator with a serial version that
+      * repeats edge pixels at the borders. Returns the number of values off,
+      * -1 if the kernels could not run or in release builds. Any thread, uses
+      * kernels and buffers of its own.
+      */
+     public static native int checkSpeckleKernels();
+
+     /** Texture storage of the shader chain, in the order of getGpuMemory's values. */
+     public static final String[] GPU_MEMORY_NAMES = {"history_ring", "pass_targets"};
+
+     /** Fills out with bytes per GPU_MEMORY_NAMES entry and returns how many were written. GL thread. */
+     public static native int getGpuMemory(long[] out);
 
      public static void readAssets(Context c, String assetPath, String[] ss) {
           try {
@@ -76,9 +156,61 @@ public class GL2JNILib {
           } catch (Exception e){e.printStackTrace();}
      }
 
+     /** Loads assets/shaders/name from the pre-parsed ShaderLibrary rather than reading the XML again. */
      public static void loadShaderAsset(Context c, String name) {
+          ShaderLibrary.Entry entry = ShaderLibrary.get(c).getEntry(name);
+          if (entry != null) {
+               loadShaderChain(entry.getPasses());
+               return;
+          }
+          // not indexed, e.g. a file the library could not parse
           String[] vf = new String[2];
           readAssets(c, "shaders/" + name, vf);
           loadShader(vf[0], vf[1]);
      }
+
+     private static void loadShaderChain(ShaderLibrary.Pass[] passes) {
+          String[] vs = new String[passes.length];
+          String[] fs = new String[passes.length];
+          float[] params = new float[passes.length * PASS_PARAMS];
+          for (int i = 0; i < passes.length; i++) {
+               ShaderLibrary.Pass pass = passes[i];
+               vs[i] = pass.getVertex();
+               fs[i] = pass.getFragment();
+               int p = i * PASS_PARAMS;
+               params[p] = parseFilter(pass.getFilter());
+               parseScale(pass.getOutputWidth(), params, p + 1);
+               parseScale(pass.getOutputHeight(), params, p + 3);
+               params[p + 5] = pass.getHistory();
+          }
+          loadShaderChain(vs, fs, params);
+     }
+
+     private static int parseFilter(String filter) {
+          if ("nearest".equalsIgnoreCase(filter)) {
+               return FILTER_NEAREST;
+          }
+          return "linear".equalsIgnoreCase(filter) ? FILTER_LINEAR : FILTER_DEFAULT;
+     }
+
+     // "200%" scales the pass input, "640" is pixels, unspecified keeps the input size
+     private static void parseScale(String value, float[] out, int at) {
+          out[at] = SCALE_SOURCE;
+          out[at + 1] = 1.0f;
+          if (value == null) {
+               return;
+          }
+          String v = value.trim();
+          try {
+               if (v.endsWith("%")) {
+                    out[at + 1] = Float.parseFloat(v.substring(0, v.length() - 1)) / 100.0f;
+               } else {
+                    out[at] = SCALE_ABSOLUTE;
+                    out[at + 1] = Float.parseFloat(v);
+               }
+          } catch (NumberFormatException e) {
+               out[at] = SCALE_SOURCE;
+               out[at + 1] = 1.0f;
+          }
+     }
 }
@@ -32,6 +32,7 @@ package com.android.gl2jni;
  */
 
 
+import android.app.Activity;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -42,6 +43,8 @@ import android.util.Xml;
 
 import org.xmlpull.v1.XmlPullParser;
 
+import java.io.File;
+
 import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.egl.EGLContext;
@@ -349,7 +352,14 @@ class GL2JNIView extends GLSurfaceView {
 
         public void onSurfaceCreated(GL10 gl, EGLConfig config) {
             GL2JNILib.init(bitmap);
+            // adb shell am start -n com.android.gl2jni/.GL2JNIActivity --ez benchmark_speckle true
+            if (context instanceof Activity
+                    && ((Activity) context).getIntent().getBooleanExtra(GL2JNILib.EXTRA_BENCHMARK_SPECKLE, false)
+                    && !GL2JNILib.benchmarkSpeckle()) {
+                Log.w(TAG, "speckle benchmark not run: release build or no input");
+            }
 
+            GL2JNILib.setProgramCacheDir(new File(context.getCacheDir(), "programs").getPath());
             GL2JNILib.loadShaderAsset(context,"2xbr.shader");
         }
     }
@@ -0,0 +1,137 @@
+package com.android.gl2jni;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Raw video file of fixed size frames, memory mapped, the Java side of
+ * raw_video.cpp: the same frame table (frame i at i * frameSize, a trailing
+ * partial frame ignored) and the same {@code GL2JNILib.RAW_VIDEO_*} end modes
+ * for {@link #next}. Frames are views into the mapping, nothing is copied.
+ * <p>
+ * One mapping covers the file, so files of 2 GB and more are not supported.
+ */
+public class RawVideoSource implements Closeable {
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mMapping;
+    private final int mFrameSize;
+    // frame table: byte offset of every frame
+    private final int[] mOffsets;
+    private volatile int mEnd = GL2JNILib.RAW_VIDEO_LOOP;
+    private volatile int mSeek = -1;
+    private int mNext;
+    private int mStep = 1;
+    private boolean mStarted;
+    private boolean mJumped;
+
+    public RawVideoSource(File file, int frameSize) throws IOException {
+        if (frameSize <= 0) {
+            throw new IllegalArgumentException("frame size " + frameSize);
+        }
+        mFile = new RandomAccessFile(file, "r");
+        try {
+            long length = mFile.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large to map at once");
+            }
+            mMapping = mFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mFrameSize = frameSize;
+        mOffsets = new int[mMapping.capacity() / frameSize];
+        for (int i = 0; i < mOffsets.length; i++) {
+            mOffsets[i] = i * frameSize;
+        }
+    }
+
+    public int getFrameCount() {
+        return mOffsets.length;
+    }
+
+    public int getFrameSize() {
+        return mFrameSize;
+    }
+
+    /** A read only view of frame index, positioned at its first byte. */
+    public ByteBuffer getFrame(int index) {
+        if (index < 0 || index >= mOffsets.length) {
+            throw new IndexOutOfBoundsException("frame " + index + " of " + mOffsets.length);
+        }
+        ByteBuffer frame = mMapping.asReadOnlyBuffer();
+        frame.position(mOffsets[index]);
+        frame.limit(mOffsets[index] + mFrameSize);
+        return frame.slice();
+    }
+
+    /** One of GL2JNILib.RAW_VIDEO_*, used when next() runs past the last frame. Any thread. */
+    public void setEnd(int end) {
+        mEnd = end;
+    }
+
+    /** Makes index the frame next() returns, clamped to the last frame. Any thread. */
+    public void seek(int index) {
+        mSeek = index;
+    }
+
+    /**
+     * The index of the frame to play now, -1 when a RAW_VIDEO_STOP file has
+     * ended. One thread only.
+     */
+    public int next() {
+        int count = mOffsets.length;
+        if (count == 0) {
+            return -1;
+        }
+        mJumped = !mStarted;
+        mStarted = true;
+        int seek = mSeek;
+        if (seek >= 0) {
+            mSeek = -1;
+            mNext = Math.min(seek, count - 1);
+            mStep = 1;
+            mJumped = true;
+        }
+        if (mNext < 0 || mNext >= count) {
+            switch (mEnd) {
+                case GL2JNILib.RAW_VIDEO_STOP:
+                    // stays ended until a seek
+                    mNext = count;
+                    return -1;
+                case GL2JNILib.RAW_VIDEO_PING_PONG:
+                    // turn around without showing the end frame twice
+                    mStep = -mStep;
+                    mNext += 2 * mStep;
+                    if (mNext < 0 || mNext >= count) {
+                        mNext = 0;
+                    }
+                    break;
+                default:
+                    mNext = 0;
+                    mStep = 1;
+                    mJumped = true;
+                    break;
+            }
+        }
+        int index = mNext;
+        mNext += mStep;
+        return index;
+    }
+
+    /** Whether the last next() did not follow the frame before it: the first frame, a loop, a seek. */
+    public boolean jumped() {
+        return mJumped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // the mapping stays valid until it is collected
+        mFile.close();
+    }
+}
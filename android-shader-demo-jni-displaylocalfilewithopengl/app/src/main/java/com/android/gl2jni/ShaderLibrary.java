@@ -0,0 +1,373 @@
+package com.android.gl2jni;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.util.Log;
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every .shader file under assets/shaders, parsed once on a background
+ * thread and kept in memory, so choosing a shader is a map lookup. The parsed
+ * index is also written to the cache directory and read back on the next
+ * start instead of the XML, until the app is updated.
+ */
+public class ShaderLibrary {
+    private static final String TAG = "ShaderLibrary";
+    private static final String ASSET_DIR = "shaders";
+    private static final String INDEX_FILE = "shaders.idx";
+    private static final int INDEX_MAGIC = 0x53484458;  // "SHDX"
+    private static final int INDEX_VERSION = 2;
+
+    /** One shader file: a pass per fragment element, in file order. */
+    public static final class Entry {
+        private final String mName;
+        private final Pass[] mPasses;
+
+        Entry(String name, Pass[] passes) {
+            mName = name;
+            mPasses = passes;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public Pass[] getPasses() {
+            return mPasses;
+        }
+    }
+
+    /** One fragment element: its sources plus its attributes, or the shader element's. */
+    public static final class Pass {
+        private final String mVertex;
+        private final String mFragment;
+        private final String mFilter;
+        private final String mOutputWidth;
+        private final String mOutputHeight;
+        private final int mHistory;
+
+        Pass(String vertex, String fragment, String filter,
+             String outputWidth, String outputHeight, int history) {
+            mVertex = vertex;
+            mFragment = fragment;
+            mFilter = filter;
+            mOutputWidth = outputWidth;
+            mOutputHeight = outputHeight;
+            mHistory = history;
+        }
+
+        /** Null when no vertex element precedes the fragment; the native side then uses its default. */
+        public String getVertex() {
+            return mVertex;
+        }
+
+        public String getFragment() {
+            return mFragment;
+        }
+
+        /** "nearest", "linear" or null when unspecified. */
+        public String getFilter() {
+            return mFilter;
+        }
+
+        /** As written, e.g. "200%" or "640"; null when unspecified. */
+        public String getOutputWidth() {
+            return mOutputWidth;
+        }
+
+        public String getOutputHeight() {
+            return mOutputHeight;
+        }
+
+        /** Previous frames the shader samples, 0 for most. */
+        public int getHistory() {
+            return mHistory;
+        }
+    }
+
+    private static ShaderLibrary sInstance;
+
+    private final Context mContext;
+    private final Object mLock = new Object();
+    private Map<String, Entry> mEntries;
+
+    private ShaderLibrary(Context context) {
+        mContext = context;
+    }
+
+    /** The process wide library; the first call starts loading it in the background. */
+    public static synchronized ShaderLibrary get(Context context) {
+        if (sInstance == null) {
+            sInstance = new ShaderLibrary(context.getApplicationContext());
+            sInstance.startLoading();
+        }
+        return sInstance;
+    }
+
+    private void startLoading() {
+        Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Map<String, Entry> entries = load();
+                synchronized (mLock) {
+                    mEntries = entries;
+                    mLock.notifyAll();
+                }
+            }
+        }, "ShaderLibrary");
+        loader.setPriority(Thread.MIN_PRIORITY);
+        loader.start();
+    }
+
+    private Map<String, Entry> awaitEntries() {
+        synchronized (mLock) {
+            boolean interrupted = false;
+            while (mEntries == null) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return mEntries;
+        }
+    }
+
+    /** File names in asset order; waits for the first load. */
+    public String[] getNames() {
+        return awaitEntries().keySet().toArray(new String[0]);
+    }
+
+    /** The entry for a file name such as "2xbr.shader", or null; waits for the first load. */
+    public Entry getEntry(String name) {
+        return awaitEntries().get(name);
+    }
+
+    private Map<String, Entry> load() {
+        long start = System.nanoTime();
+        long stamp = packageStamp();
+        File index = new File(mContext.getCacheDir(), INDEX_FILE);
+        Map<String, Entry> entries = readIndex(index, stamp);
+        if (entries != null) {
+            Log.d(TAG, entries.size() + " shaders from index in " + (System.nanoTime() - start) / 1000 + " us");
+            return entries;
+        }
+        entries = parseAssets();
+        writeIndex(index, stamp, entries);
+        Log.d(TAG, entries.size() + " shaders parsed in " + (System.nanoTime() - start) / 1000 + " us");
+        return entries;
+    }
+
+    // assets only change with the APK, so its install time tells whether the index is current
+    private long packageStamp() {
+        try {
+            return mContext.getPackageManager().getPackageInfo(mContext.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return -1;
+        }
+    }
+
+    private Map<String, Entry> parseAssets() {
+        Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        String[] names;
+        try {
+            names = mContext.getAssets().list(ASSET_DIR);
+        } catch (IOException e) {
+            Log.e(TAG, "cannot list " + ASSET_DIR, e);
+            return entries;
+        }
+        for (String name : names) {
+            if (!name.endsWith(".shader")) {
+                continue;
+            }
+            Entry entry = parse(name);
+            if (entry != null) {
+                entries.put(name, entry);
+            }
+        }
+        return entries;
+    }
+
+    private Entry parse(String name) {
+        InputStream in = null;
+        try {
+            in = mContext.getAssets().open(ASSET_DIR + "/" + name);
+            XmlPullParser xp = Xml.newPullParser();
+            xp.setInput(in, "UTF-8");
+            List<Pass> passes = new ArrayList<Pass>();
+            // a vertex element belongs to the fragment that follows it
+            String vertex = null;
+            // fragment attributes win over the same ones on the shader element
+            String[] defaults = new String[ATTRIBUTES.length];
+            for (int e = xp.getEventType(); e != XmlPullParser.END_DOCUMENT; e = xp.next()) {
+                if (e == XmlPullParser.END_TAG && xp.getName().equalsIgnoreCase("shader")) {
+                    break;
+                }
+                if (e != XmlPullParser.START_TAG) {
+                    continue;
+                }
+                String tag = xp.getName();
+                if (tag.equalsIgnoreCase("shader")) {
+                    readAttributes(xp, defaults);
+                } else if (tag.equalsIgnoreCase("vertex")) {
+                    vertex = xp.nextText();
+                } else if (tag.equalsIgnoreCase("fragment")) {
+                    String[] attributes = defaults.clone();
+                    readAttributes(xp, attributes);
+                    passes.add(new Pass(vertex, xp.nextText(), attributes[0], attributes[1], attributes[2],
+                            parseHistory(name, attributes[3])));
+                    vertex = null;
+                }
+            }
+            if (passes.isEmpty()) {
+                Log.w(TAG, name + " has no fragment shader");
+                return null;
+            }
+            return new Entry(name, passes.toArray(new Pass[passes.size()]));
+        } catch (Exception e) {
+            Log.e(TAG, "cannot parse " + name, e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static final String[] ATTRIBUTES = {"filter", "output_width", "output_height", "history"};
+
+    private static void readAttributes(XmlPullParser xp, String[] out) {
+        for (int i = 0; i < ATTRIBUTES.length; i++) {
+            String value = xp.getAttributeValue(null, ATTRIBUTES[i]);
+            if (value != null) {
+                out[i] = value;
+            }
+        }
+    }
+
+    private static int parseHistory(String name, String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            Log.w(TAG, name + ": bad history " + value);
+            return 0;
+        }
+    }
+
+    private static Map<String, Entry> readIndex(File file, long stamp) {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION || in.readLong() != stamp) {
+                Log.d(TAG, "index is out of date");
+                return null;
+            }
+            int count = in.readInt();
+            Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                Pass[] passes = new Pass[in.readInt()];
+                for (int p = 0; p < passes.length; p++) {
+                    passes[p] = new Pass(readString(in), readString(in), readString(in),
+                            readString(in), readString(in), in.readInt());
+                }
+                entries.put(name, new Entry(name, passes));
+            }
+            return entries;
+        } catch (IOException e) {
+            Log.w(TAG, "cannot read index", e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void writeIndex(File file, long stamp, Map<String, Entry> entries) {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(stamp);
+            out.writeInt(entries.size());
+            for (Entry entry : entries.values()) {
+                out.writeUTF(entry.mName);
+                out.writeInt(entry.mPasses.length);
+                for (Pass pass : entry.mPasses) {
+                    writeString(out, pass.mVertex);
+                    writeString(out, pass.mFragment);
+                    writeString(out, pass.mFilter);
+                    writeString(out, pass.mOutputWidth);
+                    writeString(out, pass.mOutputHeight);
+                    out.writeInt(pass.mHistory);
+                }
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "cannot rename " + tmp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "cannot write index", e);
+        } finally {
+            closeQuietly(out);
+            tmp.delete();
+        }
+    }
+
+    // nullable, and without writeUTF's 64k limit, which long shader sources could hit
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // nothing left to do with it
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.android.gl2jni;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RawVideoSourceTest {
+    private static final int FRAME_SIZE = 16;
+    private static final int FRAMES = 4;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private RawVideoSource mSource;
+
+    @Before
+    public void setUp() throws IOException {
+        // every byte of frame i is i, followed by half a frame that is not played
+        File file = mFolder.newFile("frames.raw");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (int i = 0; i < FRAMES; i++) {
+                byte[] frame = new byte[FRAME_SIZE];
+                Arrays.fill(frame, (byte) i);
+                out.write(frame);
+            }
+            out.write(new byte[FRAME_SIZE / 2]);
+        } finally {
+            out.close();
+        }
+        mSource = new RawVideoSource(file, FRAME_SIZE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mSource.close();
+    }
+
+    private void assertPlays(int... frames) {
+        for (int i = 0; i < frames.length; i++) {
+            assertEquals("call " + i, frames[i], mSource.next());
+        }
+    }
+
+    @Test
+    public void frameTableSkipsTrailingPartialFrame() {
+        assertEquals(FRAMES, mSource.getFrameCount());
+        for (int i = 0; i < FRAMES; i++) {
+            ByteBuffer frame = mSource.getFrame(i);
+            assertEquals(FRAME_SIZE, frame.remaining());
+            assertEquals(i, frame.get(0));
+            assertEquals(i, frame.get(FRAME_SIZE - 1));
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getFramePastTheTableThrows() {
+        mSource.getFrame(FRAMES);
+    }
+
+    @Test
+    public void loopGoesBackToTheFirstFrame() {
+        assertEquals(0, mSource.next());
+        assertTrue("first frame", mSource.jumped());
+        assertPlays(1, 2, 3);
+        assertFalse(mSource.jumped());
+        assertEquals(0, mSource.next());
+        assertTrue("looped", mSource.jumped());
+        assertPlays(1, 2);
+    }
+
+    @Test
+    public void pingPongTurnsWithoutRepeatingTheEndFrames() {
+        mSource.setEnd(GL2JNILib.RAW_VIDEO_PING_PONG);
+        assertPlays(0, 1, 2, 3, 2, 1, 0, 1, 2, 3, 2);
+        assertFalse("a turnaround follows the previous frame", mSource.jumped());
+    }
+
+    @Test
+    public void stopStaysEndedUntilSeek() {
+        mSource.setEnd(GL2JNILib.RAW_VIDEO_STOP);
+        assertPlays(0, 1, 2, 3, -1, -1);
+        mSource.seek(2);
+        assertEquals(2, mSource.next());
+        assertTrue("seeked", mSource.jumped());
+        assertPlays(3, -1);
+    }
+
+    @Test
+    public void seekClampsToTheLastFrame() {
+        mSource.setEnd(GL2JNILib.RAW_VIDEO_STOP);
+        assertPlays(0);
+        mSource.seek(FRAMES + 10);
+        assertPlays(FRAMES - 1, -1);
+    }
+
+    @Test
+    public void seekPlaysForwardAfterPingPongTurned() {
+        mSource.setEnd(GL2JNILib.RAW_VIDEO_PING_PONG);
+        assertPlays(0, 1, 2, 3, 2);
+        mSource.seek(1);
+        assertPlays(1, 2, 3, 2);
+    }
+}
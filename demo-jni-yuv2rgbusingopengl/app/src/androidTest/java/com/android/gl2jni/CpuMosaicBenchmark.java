@@ -0,0 +1,90 @@
+package com.android.gl2jni;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Throughput of {@link CpuMosaicRenderer} on the default 1080p four tile
+ * mosaic (three I420 tiles, one BGR) for every pool size from one thread up to
+ * the number of cores. Logs output megapixels per second per thread count,
+ * and checks that every pool size renders the frame one thread does.
+ */
+public class CpuMosaicBenchmark {
+    public final static String TAG = "CpuMosaicBenchmark";
+
+    private static final int WARMUP_FRAMES = 3;
+    private static final int TIMED_FRAMES = 20;
+
+    private final DirectBufferPool mBufferPool;
+    private final int mWidth;
+    private final int mHeight;
+
+    public CpuMosaicBenchmark(DirectBufferPool bufferPool, int width, int height) {
+        mBufferPool = bufferPool;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /** The number of pool sizes whose frame differed from the single threaded one, 0 when all agree. */
+    public int run() {
+        DecodedFrame[] frames = {
+                syntheticFrame(DecodedFrame.FORMAT_I420),
+                syntheticFrame(DecodedFrame.FORMAT_I420),
+                syntheticFrame(DecodedFrame.FORMAT_BGR),
+                syntheticFrame(DecodedFrame.FORMAT_I420)
+        };
+        MosaicLayout layout = MosaicLayout.grid(2, 2, frames.length);
+        ByteBuffer out = ByteBuffer.allocateDirect(mWidth * mHeight * 4).order(ByteOrder.nativeOrder());
+        ByteBuffer single = ByteBuffer.allocateDirect(out.capacity());
+        int differing = 0;
+        double megapixels = (double) mWidth * mHeight / 1e6;
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        double singleMps = 0;
+        for (int threads = 1; threads <= cores; threads++) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                CpuMosaicRenderer renderer = new CpuMosaicRenderer(pool);
+                for (int i = 0; i < WARMUP_FRAMES; i++) {
+                    renderer.render(layout, frames, out, mWidth, mHeight);
+                }
+                long start = System.nanoTime();
+                for (int i = 0; i < TIMED_FRAMES; i++) {
+                    renderer.render(layout, frames, out, mWidth, mHeight);
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                double mps = megapixels * TIMED_FRAMES / seconds;
+                if (threads == 1) {
+                    singleMps = mps;
+                    single.put(out);
+                    single.clear();
+                    out.clear();
+                } else if (!out.equals(single)) {
+                    // bands split the rows differently, the pixels must not change
+                    Log.e(TAG, threads + " threads rendered a different frame than one thread");
+                    differing++;
+                }
+                Log.i(TAG, String.format("%d threads: %.1f MP/s, %.2f ms/frame, %.2fx", threads, mps,
+                        seconds * 1000 / TIMED_FRAMES, mps / singleMps));
+            } finally {
+                pool.shutdown();
+            }
+        }
+        for (DecodedFrame frame : frames) {
+            frame.release();
+        }
+        return differing;
+    }
+
+    // content does not affect the cost, a gradient keeps the samples from being all equal
+    private DecodedFrame syntheticFrame(int format) {
+        ByteBuffer buffer = mBufferPool.acquire(DecodedFrame.bufferSize(format, mWidth, mHeight));
+        for (int i = 0; i < buffer.capacity(); i++) {
+            buffer.put(i, (byte) i);
+        }
+        return new DecodedFrame(format, mWidth, mHeight, null, buffer, mBufferPool);
+    }
+}
@@ -0,0 +1,21 @@
+package com.android.gl2jni;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs {@link CpuMosaicBenchmark} at 1080p; the numbers go to logcat under
+ * its tag. Every pool size has to render the same frame.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CpuMosaicBenchmarkTest {
+    @Test
+    public void cpuMosaic() {
+        assertEquals("pool sizes rendering a different frame", 0,
+                new CpuMosaicBenchmark(new DirectBufferPool(6), 1920, 1080).run());
+    }
+}
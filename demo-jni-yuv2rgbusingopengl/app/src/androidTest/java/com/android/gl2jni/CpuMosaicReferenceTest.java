@@ -0,0 +1,197 @@
+package com.android.gl2jni;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Renders a small mosaic of I420, NV12 and BGR tiles through
+ * {@link HeadlessRenderer} and compares the frame read back with what
+ * {@link CpuMosaicRenderer} makes of the same inputs. GPUs filter with fewer
+ * bits of weight than the float reference; the inputs are smooth gradients so
+ * that this stays within a couple of LSB.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CpuMosaicReferenceTest {
+    private static final int TOLERANCE = 2;
+    // I420 and NV12 side by side, BGR below with its edges off the pixel grid, the rest black
+    private static final MosaicLayout LAYOUT = MosaicLayout.of(
+            0.0f, 0.0f, 0.5f, 0.5f,
+            0.5f, 0.0f, 0.5f, 0.5f,
+            0.1003f, 0.5517f, 0.3701f, 0.4012f);
+
+    /** The same frame every time. */
+    private static final class StillSource implements FrameSource {
+        private final DecodedFrame mFrame;
+
+        StillSource(DecodedFrame frame) {
+            mFrame = frame;
+        }
+
+        @Override
+        public DecodedFrame acquire() {
+            return mFrame;
+        }
+
+        @Override
+        public int getFormat() {
+            return mFrame.getFormat();
+        }
+
+        @Override
+        public String getName() {
+            return "still" + mFrame.getFormat();
+        }
+
+        @Override
+        public void setListener(Listener listener) {
+        }
+    }
+
+    /** Keeps a copy of the first frame the sink stage hands over. */
+    private static final class CaptureSink implements FrameSink {
+        final CountDownLatch mCaptured = new CountDownLatch(1);
+        volatile ByteBuffer mRgba;
+        volatile int mWidth;
+        volatile int mHeight;
+
+        @Override
+        public long consume(OutputFrame frame) {
+            if (mRgba == null) {
+                ByteBuffer copy = ByteBuffer.allocateDirect(frame.getSizeBytes());
+                copy.put(frame.getRgba());
+                mWidth = frame.getWidth();
+                mHeight = frame.getHeight();
+                mRgba = copy;
+                mCaptured.countDown();
+            }
+            return frame.getSizeBytes();
+        }
+
+        @Override
+        public String getName() {
+            return "capture";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final DirectBufferPool mPool = new DirectBufferPool(1);
+    private DecodedFrame[] mFrames;
+    private CaptureSink mSink;
+    private GLMergerWithShader mMerger;
+    private HeadlessRenderer mRenderer;
+
+    @Before
+    public void setUp() throws Exception {
+        mFrames = new DecodedFrame[] {i420(64, 48), nv12(64, 48), bgr(48, 36)};
+        mSink = new CaptureSink();
+        mMerger = new GLMergerWithShader(true, mSink);
+        mMerger.SetMosaic(LAYOUT, new StillSource(mFrames[0]), new StillSource(mFrames[1]), new StillSource(mFrames[2]));
+        mRenderer = new HeadlessRenderer(mMerger);
+        mRenderer.start().get(10, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mRenderer.release().get(10, TimeUnit.SECONDS);
+        mMerger.Close();
+    }
+
+    @Test
+    public void gpuMatchesCpuReference() throws Exception {
+        mRenderer.render(1).get(10, TimeUnit.SECONDS);
+        assertTrue("nothing read back", mSink.mCaptured.await(10, TimeUnit.SECONDS));
+        int width = mSink.mWidth;
+        int height = mSink.mHeight;
+        ByteBuffer expected = ByteBuffer.allocateDirect(width * height * 4);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            new CpuMosaicRenderer(pool).render(LAYOUT, mFrames, expected, width, height);
+        } finally {
+            pool.shutdown();
+        }
+        int worst = 0;
+        int at = 0;
+        for (int i = 0; i < width * height * 4; i++) {
+            int diff = Math.abs((mSink.mRgba.get(i) & 0xff) - (expected.get(i) & 0xff));
+            if (diff > worst) {
+                worst = diff;
+                at = i;
+            }
+        }
+        assertTrue("off by " + worst + " at x " + at / 4 % width + ", row " + at / 4 / width + ", byte " + at % 4,
+                worst <= TOLERANCE);
+    }
+
+    private DecodedFrame allocate(int format, int width, int height) {
+        ByteBuffer buffer = mPool.acquire(DecodedFrame.bufferSize(format, width, height));
+        buffer.clear();
+        return new DecodedFrame(format, width, height, null, buffer, mPool);
+    }
+
+    // neighbouring texels differ by a few levels at most in every plane
+
+    private DecodedFrame i420(int width, int height) {
+        DecodedFrame frame = allocate(DecodedFrame.FORMAT_I420, width, height);
+        ByteBuffer y = frame.getPlane(DecodedFrame.PLANE_Y);
+        ByteBuffer u = frame.getPlane(DecodedFrame.PLANE_U);
+        ByteBuffer v = frame.getPlane(DecodedFrame.PLANE_V);
+        for (int r = 0; r < height; r++) {
+            for (int c = 0; c < width; c++) {
+                y.put(r * width + c, (byte) (40 + 2 * c + r));
+            }
+        }
+        for (int r = 0; r < height / 2; r++) {
+            for (int c = 0; c < width / 2; c++) {
+                u.put(r * width / 2 + c, (byte) (100 + 2 * c - r));
+                v.put(r * width / 2 + c, (byte) (150 - c + 2 * r));
+            }
+        }
+        return frame;
+    }
+
+    private DecodedFrame nv12(int width, int height) {
+        DecodedFrame frame = allocate(DecodedFrame.FORMAT_NV12, width, height);
+        ByteBuffer y = frame.getPlane(DecodedFrame.PLANE_Y);
+        ByteBuffer uv = frame.getPlane(DecodedFrame.PLANE_UV);
+        for (int r = 0; r < height; r++) {
+            for (int c = 0; c < width; c++) {
+                y.put(r * width + c, (byte) (200 - c - 2 * r));
+            }
+        }
+        for (int r = 0; r < height / 2; r++) {
+            for (int c = 0; c < width / 2; c++) {
+                uv.put(r * width + 2 * c, (byte) (90 + 3 * c));
+                uv.put(r * width + 2 * c + 1, (byte) (170 - 3 * r));
+            }
+        }
+        return frame;
+    }
+
+    private DecodedFrame bgr(int width, int height) {
+        DecodedFrame frame = allocate(DecodedFrame.FORMAT_BGR, width, height);
+        ByteBuffer bgr = frame.getPlane(0);
+        for (int r = 0; r < height; r++) {
+            for (int c = 0; c < width; c++) {
+                int o = (r * width + c) * 3;
+                bgr.put(o, (byte) (30 + 4 * c));
+                bgr.put(o + 1, (byte) (60 + 4 * r));
+                bgr.put(o + 2, (byte) (200 - 2 * c - r));
+            }
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,113 @@
+package com.android.gl2jni;
+
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Time to bring 4, 9 and 16 file sources up to date, decoding one after the
+ * other on the calling thread (what GLDrawFrame did) against handing one task
+ * per source to the decode pool. Every source has its own cache, so each run
+ * decodes the file once per source. Logs the speedup next to the best one the
+ * pool can reach, min(sources, workers), and counts the sources that ended a
+ * run without a frame.
+ */
+public class DecodeBenchmark {
+    public final static String TAG = "DecodeBenchmark";
+
+    private static final int[] SOURCE_COUNTS = {4, 9, 16};
+    private static final int ROUNDS = 3;
+
+    private final ForkJoinPool mDecodePool;
+    private final DirectBufferPool mBufferPool;
+    private final String mPath;
+    private final FrameMetrics mMetrics = new FrameMetrics(1);
+    private int mMissing;
+
+    public DecodeBenchmark(ForkJoinPool decodePool, DirectBufferPool bufferPool, String path) {
+        mDecodePool = decodePool;
+        mBufferPool = bufferPool;
+        mPath = path;
+    }
+
+    /** The number of sources, over all runs, that had no frame once their decode was done; 0 when all decoded. */
+    public int run() {
+        mMissing = 0;
+        // warms up the codec and fills the buffer pool
+        decodeInline(SOURCE_COUNTS[0]);
+        for (int count : SOURCE_COUNTS) {
+            long inline = Long.MAX_VALUE;
+            long pooled = Long.MAX_VALUE;
+            for (int r = 0; r < ROUNDS; r++) {
+                inline = Math.min(inline, decodeInline(count));
+                pooled = Math.min(pooled, decodePooled(count));
+            }
+            int ideal = Math.min(count, mDecodePool.getParallelism());
+            Log.i(TAG, String.format("%d sources: inline %.1f ms, pool %.1f ms, %.2fx (ideal %dx)", count,
+                    inline / 1e6, pooled / 1e6, (double) inline / pooled, ideal));
+        }
+        if (mMissing != 0) {
+            Log.e(TAG, mMissing + " sources without a frame");
+        }
+        return mMissing;
+    }
+
+    private long decodeInline(int count) {
+        FrameCache[] caches = createCaches(count);
+        long start = System.nanoTime();
+        for (FrameCache cache : caches) {
+            if (new FileFrameSource(mPath, DecodedFrame.FORMAT_I420, cache, mBufferPool, mMetrics).acquire() == null) {
+                mMissing++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        clear(caches);
+        return elapsed;
+    }
+
+    private long decodePooled(int count) {
+        FrameCache[] caches = createCaches(count);
+        FileFrameSource[] sources = new FileFrameSource[count];
+        final CountDownLatch ready = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            sources[i] = new FileFrameSource(mPath, DecodedFrame.FORMAT_I420, caches[i], mBufferPool, mMetrics, mDecodePool);
+            sources[i].setListener(source -> ready.countDown());
+        }
+        long start = System.nanoTime();
+        for (FileFrameSource source : sources) {
+            source.acquire();
+        }
+        try {
+            ready.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // picks the finished frames up, as the next GLDrawFrame would
+        for (FileFrameSource source : sources) {
+            if (source.acquire() == null) {
+                mMissing++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        for (FileFrameSource source : sources) {
+            source.setListener(null);
+        }
+        clear(caches);
+        return elapsed;
+    }
+
+    private static FrameCache[] createCaches(int count) {
+        FrameCache[] caches = new FrameCache[count];
+        for (int i = 0; i < count; i++) {
+            caches[i] = new FrameCache(Long.MAX_VALUE);
+        }
+        return caches;
+    }
+
+    private static void clear(FrameCache[] caches) {
+        for (FrameCache cache : caches) {
+            cache.clear();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.android.gl2jni;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs {@link DecodeBenchmark} on one of the merger's 1080p inputs with a
+ * pool sized like the merger's; the numbers go to logcat under its tag.
+ * Every source has to end each run with its frame decoded.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DecodeBenchmarkTest {
+    private static final String INPUT = "/storage/emulated/0/opencvTesting/apple-jpg-1920x1080.jpg";
+
+    @Test
+    public void decodeInlineAgainstPool() {
+        assumeTrue(INPUT + " not on the device", new File(INPUT).canRead());
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+        try {
+            assertEquals("sources without a frame", 0, new DecodeBenchmark(pool, new DirectBufferPool(6), INPUT).run());
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
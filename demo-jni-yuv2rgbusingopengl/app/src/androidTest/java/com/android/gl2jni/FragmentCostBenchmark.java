@@ -0,0 +1,259 @@
+package com.android.gl2jni;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Measures the fragment cost of composing the 1080p four tile mosaic, once with
+ * the original merge shader (all 12 Y/U/V planes sampled and converted for
+ * every fragment, one result kept) and once with the compositor in each mode.
+ * <p>
+ * Renders offscreen into an FBO and times a run of frames between glFinish
+ * calls, so the numbers are GPU bound wall time per frame. Must run on the GL
+ * thread; it leaves the default framebuffer bound, and throws on a GL error.
+ */
+public class FragmentCostBenchmark {
+    public final static String TAG = "FragmentCostBenchmark";
+
+    private static final int WARMUP_FRAMES = 10;
+    private static final int TIMED_FRAMES = 100;
+
+    // the merge shader as it was before the compositor, kept verbatim as the baseline
+    private static final String LEGACY_VERTEX_SHADER =
+                    "attribute vec2 aPosition;\n" +
+                    "attribute vec2 aTexCoord;\n" +
+                    "varying vec2 vTexCoord;\n" +
+                    "varying vec2 aPositionTexCoord;\n" +
+                    "void main() {\n" +
+                    "vTexCoord = aTexCoord;\n" +
+                    "aPositionTexCoord = vec2(aPosition.x,-aPosition.y);\n" +
+                    "gl_Position = vec4(aPosition.x,-aPosition.y, 0.0, 1.0);\n" +
+                    "}\n";
+
+    private static final String LEGACY_FRAGMENT_SHADER =
+                    "#ifdef GL_FRAGMENT_PRECISION_HIGH\n" +
+                    "precision highp float;\n" +
+                    "#else\n" +
+                    "precision mediump float;\n" +
+                    "#endif\n" +
+                    "uniform sampler2D rubyTexture1Y;\n" +
+                    "uniform sampler2D rubyTexture1U;\n" +
+                    "uniform sampler2D rubyTexture1V;\n" +
+                    "uniform sampler2D rubyTexture2Y;\n" +
+                    "uniform sampler2D rubyTexture2U;\n" +
+                    "uniform sampler2D rubyTexture2V;\n" +
+                    "uniform sampler2D rubyTexture3Y;\n" +
+                    "uniform sampler2D rubyTexture3U;\n" +
+                    "uniform sampler2D rubyTexture3V;\n" +
+                    "uniform sampler2D rubyTexture4Y;\n" +
+                    "uniform sampler2D rubyTexture4U;\n" +
+                    "uniform sampler2D rubyTexture4V;\n" +
+                    "uniform sampler2D rubyTexture5;\n" +
+                    "varying vec2 vTexCoord;\n" +
+                    "varying vec2 aPositionTexCoord;\n" +
+                    "void main() {\n" +
+                            "float r1,g1,b1,y1,u1,v1;\n" +
+                            "float r2,g2,b2,y2,u2,v2;\n" +
+                            "float r3,g3,b3,y3,u3,v3;\n" +
+                            "float r4,g4,b4,y4,u4,v4;\n" +
+                            "y1 = texture2D(rubyTexture1Y, vTexCoord).r;\n" +
+                            "u1 = texture2D(rubyTexture1U, vTexCoord).r;\n" +
+                            "v1 = texture2D(rubyTexture1V, vTexCoord).r;\n"+
+                            "y1 = 1.1643*(y1-0.0625);\n"+
+                            "u1 = u1-0.5;\n" +
+                            "v1 = v1-0.5;\n" +
+                            "r1 = y1+1.5958*v1;\n" +
+                            "g1 = y1-0.39173*u1-0.81290*v1;\n" +
+                            "b1 = y1+2.017*u1;\n" +
+
+                            "y2 = texture2D(rubyTexture2Y, vTexCoord).r;\n" +
+                            "u2 = texture2D(rubyTexture2U, vTexCoord).r;\n" +
+                            "v2 = texture2D(rubyTexture2V, vTexCoord).r;\n"+
+                            "y2 = 1.1643*(y2-0.0625);\n"+
+                            "u2 = u2-0.5;\n" +
+                            "v2 = v2-0.5;\n" +
+                            "r2 = y2+1.5958*v2;\n" +
+                            "g2 = y2-0.39173*u2-0.81290*v2;\n" +
+                            "b2 = y2+2.017*u2;\n" +
+
+                            "y3 = texture2D(rubyTexture3Y, vTexCoord).r;\n" +
+                            "u3 = texture2D(rubyTexture3U, vTexCoord).r;\n" +
+                            "v3 = texture2D(rubyTexture3V, vTexCoord).r;\n"+
+                            "y3 = 1.1643*(y3-0.0625);\n"+
+                            "u3 = u3-0.5;\n" +
+                            "v3 = v3-0.5;\n" +
+                            "r3 = y3+1.5958*v3;\n" +
+                            "g3 = y3-0.39173*u3-0.81290*v3;\n" +
+                            "b3 = y3+2.017*u3;\n" +
+
+                            "y4 = texture2D(rubyTexture4Y, vTexCoord).r;\n" +
+                            "u4 = texture2D(rubyTexture4U, vTexCoord).r;\n" +
+                            "v4 = texture2D(rubyTexture4V, vTexCoord).r;\n"+
+                            "y4 = 1.1643*(y4-0.0625);\n"+
+                            "u4 = u4-0.5;\n" +
+                            "v4 = v4-0.5;\n" +
+                            "r4 = y4+1.5958*v4;\n" +
+                            "g4 = y4-0.39173*u4-0.81290*v4;\n" +
+                            "b4 = y4+2.017*u4;\n" +
+
+                            "if((aPositionTexCoord.x > 0.0)&&(aPositionTexCoord.y > 0.0))\n" +
+                            "gl_FragColor = vec4(b1,g1,r1, 1.0);\n" +
+                            "if((aPositionTexCoord.x > 0.0)&&(aPositionTexCoord.y < 0.0))\n" +
+                            "gl_FragColor = vec4(b2,g2,r2, 1.0);\n" +
+                            "if((aPositionTexCoord.x < 0.0)&&(aPositionTexCoord.y < 0.0))\n" +
+                            "gl_FragColor = vec4(b3,g3,r3, 1.0);\n" +
+                            "if((aPositionTexCoord.x < 0.0)&&(aPositionTexCoord.y > 0.0))\n" +
+                            "gl_FragColor.bgra = texture2D(rubyTexture5, vTexCoord);\n" +
+                    "}\n";
+
+    private static final String[] LEGACY_SAMPLERS = {
+            "rubyTexture1Y", "rubyTexture1U", "rubyTexture1V",
+            "rubyTexture2Y", "rubyTexture2U", "rubyTexture2V",
+            "rubyTexture3Y", "rubyTexture3U", "rubyTexture3V",
+            "rubyTexture4Y", "rubyTexture4U", "rubyTexture4V",
+            "rubyTexture5"
+    };
+
+    // fragment cost only depends on the pixels covered, so one full screen quad stands in for the four tiles
+    private static final float[] FULL_SCREEN = {
+            -1.0f, -1.0f, 0.0f, 0.0f,
+            1.0f, -1.0f, 1.0f, 0.0f,
+            -1.0f, 1.0f, 0.0f, 1.0f,
+            -1.0f, 1.0f, 0.0f, 1.0f,
+            1.0f, -1.0f, 1.0f, 0.0f,
+            1.0f, 1.0f, 1.0f, 1.0f
+    };
+
+    private final GLCapabilities mCaps;
+    private final int mMaxUnits;
+    private final int mWidth;
+    private final int mHeight;
+    private final Map<String, Double> mMsPerFrame = new LinkedHashMap<>();
+
+    public FragmentCostBenchmark(GLCapabilities caps, int width, int height) {
+        mCaps = caps;
+        mMaxUnits = caps.getMaxTextureImageUnits();
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /** Milliseconds per frame of every variant timed, in the order they ran. */
+    public Map<String, Double> run() {
+        mMsPerFrame.clear();
+        int[] ids = new int[1];
+        GLES20.glGenTextures(1, ids, 0);
+        int target = ids[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, target);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mWidth, mHeight, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glGenFramebuffers(1, ids, 0);
+        int fbo = ids[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, fbo);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, target, 0);
+        GLES20.glViewport(0, 0, mWidth, mHeight);
+
+        // texel contents do not change the cost, the inputs are left uninitialized
+        TextureManager textures = new TextureManager(mCaps);
+        TextureManager.Stream[][] yuv = new TextureManager.Stream[4][];
+        for (int i = 0; i < yuv.length; i++) {
+            yuv[i] = new TextureManager.Stream[] {
+                    textures.createStream(TextureManager.CHANNELS_LUMA, mWidth, mHeight, GLES20.GL_LINEAR),
+                    textures.createStream(TextureManager.CHANNELS_LUMA, mWidth / 2, mHeight / 2, GLES20.GL_LINEAR),
+                    textures.createStream(TextureManager.CHANNELS_LUMA, mWidth / 2, mHeight / 2, GLES20.GL_LINEAR)
+            };
+        }
+        TextureManager.Stream rgb = textures.createStream(TextureManager.CHANNELS_RGB, mWidth, mHeight, GLES20.GL_LINEAR);
+
+        if (mMaxUnits >= LEGACY_SAMPLERS.length) {
+            report("legacy merge shader", timeLegacy(yuv, rgb));
+        } else {
+            Log.i(TAG, "legacy merge shader needs " + LEGACY_SAMPLERS.length + " units, device has " + mMaxUnits);
+        }
+        // compiled from source, like the legacy shader it is measured against
+        MosaicCompositor compositor = new MosaicCompositor(mCaps, new ProgramCache(null, mCaps));
+        compositor.setLayout(MosaicLayout.grid(2, 2, 4));
+        compositor.setTileInput(0, DecodedFrame.FORMAT_I420, yuv[0]);
+        compositor.setTileInput(1, DecodedFrame.FORMAT_I420, yuv[1]);
+        compositor.setTileInput(2, DecodedFrame.FORMAT_BGR, rgb);
+        compositor.setTileInput(3, DecodedFrame.FORMAT_I420, yuv[2]);
+        for (MosaicCompositor.Mode mode : MosaicCompositor.Mode.values()) {
+            compositor.setMode(mode);
+            compositor.prepare();
+            report("compositor " + mode + " (" + compositor.getBatchCount() + " draws)", timeCompositor(compositor));
+        }
+        compositor.release();
+
+        for (TextureManager.Stream[] planes : yuv) {
+            for (TextureManager.Stream plane : planes) {
+                textures.release(plane);
+            }
+        }
+        textures.release(rgb);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        ids[0] = fbo;
+        GLES20.glDeleteFramebuffers(1, ids, 0);
+        ids[0] = target;
+        GLES20.glDeleteTextures(1, ids, 0);
+        GLMergerWithShader.checkGlError("FragmentCostBenchmark");
+        return new LinkedHashMap<>(mMsPerFrame);
+    }
+
+    private long timeLegacy(TextureManager.Stream[][] yuv, TextureManager.Stream rgb) {
+        int program = GLMergerWithShader.createProgram(LEGACY_VERTEX_SHADER, LEGACY_FRAGMENT_SHADER);
+        GLES20.glUseProgram(program);
+        for (int unit = 0; unit < LEGACY_SAMPLERS.length; unit++) {
+            GLES20.glUniform1i(GLES20.glGetUniformLocation(program, LEGACY_SAMPLERS[unit]), unit);
+            int texture = unit < 12 ? yuv[unit / 3][unit % 3].getTexture() : rgb.getTexture();
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        }
+        FloatBuffer vertices = ByteBuffer.allocateDirect(FULL_SCREEN.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        vertices.put(FULL_SCREEN);
+        int aPosition = GLES20.glGetAttribLocation(program, "aPosition");
+        int aTexCoord = GLES20.glGetAttribLocation(program, "aTexCoord");
+        vertices.position(0);
+        GLES20.glVertexAttribPointer(aPosition, 2, GLES20.GL_FLOAT, false, 16, vertices);
+        vertices.position(2);
+        GLES20.glVertexAttribPointer(aTexCoord, 2, GLES20.GL_FLOAT, false, 16, vertices);
+        GLES20.glEnableVertexAttribArray(aPosition);
+        GLES20.glEnableVertexAttribArray(aTexCoord);
+
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, 6);
+        }
+        GLES20.glFinish();
+        long start = System.nanoTime();
+        for (int i = 0; i < TIMED_FRAMES; i++) {
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, 6);
+        }
+        GLES20.glFinish();
+        long elapsed = System.nanoTime() - start;
+        GLES20.glDeleteProgram(program);
+        return elapsed;
+    }
+
+    private long timeCompositor(MosaicCompositor compositor) {
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            compositor.draw();
+        }
+        GLES20.glFinish();
+        long start = System.nanoTime();
+        for (int i = 0; i < TIMED_FRAMES; i++) {
+            compositor.draw();
+        }
+        GLES20.glFinish();
+        return System.nanoTime() - start;
+    }
+
+    private void report(String name, long elapsedNs) {
+        double msPerFrame = elapsedNs / 1e6 / TIMED_FRAMES;
+        double nsPerPixel = (double) elapsedNs / TIMED_FRAMES / ((long) mWidth * mHeight);
+        mMsPerFrame.put(name, msPerFrame);
+        Log.i(TAG, String.format("%s: %.3f ms/frame, %.3f ns/pixel at %dx%d", name, msPerFrame, nsPerPixel, mWidth, mHeight));
+    }
+}
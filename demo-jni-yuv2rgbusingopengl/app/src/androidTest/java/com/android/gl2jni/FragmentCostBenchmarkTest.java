@@ -0,0 +1,47 @@
+package com.android.gl2jni;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link FragmentCostBenchmark} on a headless context at 1080p; the
+ * numbers go to logcat under its tag. Every compositor mode has to have been
+ * timed, without a GL error.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FragmentCostBenchmarkTest {
+    private GLMergerWithShader mMerger;
+    private HeadlessRenderer mRenderer;
+
+    @Before
+    public void setUp() throws Exception {
+        mMerger = new GLMergerWithShader(true, new FrameSink[0]);
+        mRenderer = new HeadlessRenderer(mMerger);
+        mRenderer.start().get(10, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mRenderer.release().get(10, TimeUnit.SECONDS);
+        mMerger.Close();
+    }
+
+    @Test
+    public void fragmentCost() throws Exception {
+        Map<String, Double> msPerFrame = mRenderer.run(
+                () -> new FragmentCostBenchmark(mMerger.GetCapabilities(), 1920, 1080).run()).get(5, TimeUnit.MINUTES);
+        assertTrue("timed " + msPerFrame.keySet(), msPerFrame.size() >= MosaicCompositor.Mode.values().length);
+        for (Map.Entry<String, Double> variant : msPerFrame.entrySet()) {
+            assertTrue(variant.getKey() + ": " + variant.getValue() + " ms/frame", variant.getValue() > 0);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.android.gl2jni;
+
+import android.util.Log;
+
+/**
+ * Producer to consumer handoff of {@link FrameMailbox} against the monitor
+ * based two slot chain JavaCameraView's CameraWorker uses (synchronized put,
+ * notify, wait, flip the chain index). One producer publishes as fast as it
+ * can while one consumer takes the newest value, as the GL thread would.
+ * <p>
+ * Payloads are recycled, and the consumer verifies that every payload it
+ * reads is whole and that sequence numbers never go backwards; failures are
+ * counted in the results, which MailboxBenchmarkTest asserts on, as
+ * FrameMailboxTest does on the JVM.
+ */
+public class MailboxBenchmark {
+    public final static String TAG = "MailboxBenchmark";
+
+    private static final long RUN_NS = 2000000000L;
+    // big enough that a torn write would be caught in the middle of it
+    private static final int PAYLOAD_LONGS = 64;
+
+    private static final class Payload {
+        final long[] mData = new long[PAYLOAD_LONGS];
+
+        void fill(long seq) {
+            for (int i = 0; i < mData.length; i++) {
+                mData[i] = seq;
+            }
+        }
+
+        /** The sequence number if the payload is whole, -1 if it is torn. */
+        long check() {
+            long seq = mData[0];
+            for (int i = 1; i < mData.length; i++) {
+                if (mData[i] != seq) {
+                    return -1;
+                }
+            }
+            return seq;
+        }
+    }
+
+    /** What one handoff did over the run. */
+    public static final class Result {
+        private final String mName;
+        private long mProduced;
+        private long mConsumed;
+        private long mErrors;
+
+        Result(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getProduced() {
+            return mProduced;
+        }
+
+        public long getConsumed() {
+            return mConsumed;
+        }
+
+        /** Torn or out of order payloads the consumer saw. */
+        public long getErrors() {
+            return mErrors;
+        }
+    }
+
+    private interface Handoff {
+        void produce(long seq);
+
+        /** Newest payload, null when there is nothing new. May block for the monitor variant. */
+        Payload consume() throws InterruptedException;
+
+        void stop();
+    }
+
+    private static final class MailboxHandoff implements Handoff {
+        private final FrameMailbox<Payload> mMailbox = new FrameMailbox<>();
+        private Payload mSpare = new Payload();
+
+        @Override
+        public void produce(long seq) {
+            mSpare.fill(seq);
+            Payload displaced = mMailbox.publish(mSpare);
+            mSpare = displaced != null ? displaced : new Payload();
+        }
+
+        @Override
+        public Payload consume() {
+            return mMailbox.hasFresh() ? mMailbox.acquire() : null;
+        }
+
+        @Override
+        public void stop() {
+        }
+    }
+
+    private static final class MonitorHandoff implements Handoff {
+        private final Payload[] mChain = {new Payload(), new Payload()};
+        private int mChainIdx;
+        private boolean mReady;
+        private boolean mStopped;
+
+        @Override
+        public synchronized void produce(long seq) {
+            mChain[mChainIdx].fill(seq);
+            mReady = true;
+            notify();
+        }
+
+        @Override
+        public Payload consume() throws InterruptedException {
+            synchronized (this) {
+                while (!mReady && !mStopped) {
+                    wait();
+                }
+                if (mStopped) {
+                    return null;
+                }
+                mChainIdx = 1 - mChainIdx;
+                mReady = false;
+            }
+            // the producer writes the other slot from here on
+            return mChain[1 - mChainIdx];
+        }
+
+        @Override
+        public synchronized void stop() {
+            mStopped = true;
+            notify();
+        }
+    }
+
+    /** Runs the mailbox, then the monitor handoff, and returns their results in that order. */
+    public Result[] run() {
+        Result[] results = {
+                measure("mailbox", new MailboxHandoff()),
+                measure("monitor", new MonitorHandoff())
+        };
+        for (Result result : results) {
+            report(result);
+        }
+        return results;
+    }
+
+    private static void report(Result result) {
+        double seconds = RUN_NS / 1e9;
+        Log.i(TAG, String.format("%s: %.0f published/s, %.0f consumed/s", result.mName,
+                result.mProduced / seconds, result.mConsumed / seconds));
+        if (result.mErrors != 0) {
+            Log.e(TAG, result.mName + ": " + result.mErrors + " torn or out of order payloads");
+        }
+    }
+
+    private static Result measure(String name, final Handoff handoff) {
+        final Result result = new Result(name);
+        final long end = System.nanoTime() + RUN_NS;
+        Thread consumer = new Thread(() -> {
+            long last = -1;
+            try {
+                while (System.nanoTime() < end) {
+                    Payload payload = handoff.consume();
+                    if (payload == null) {
+                        // polling, like a render loop with nothing new; let the producer run on small devices
+                        Thread.yield();
+                        continue;
+                    }
+                    long seq = payload.check();
+                    if (seq < 0 || seq < last) {
+                        result.mErrors++;
+                    }
+                    last = seq;
+                    result.mConsumed++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "MailboxBenchmarkConsumer");
+        consumer.start();
+        long seq = 0;
+        while (System.nanoTime() < end) {
+            handoff.produce(seq++);
+        }
+        handoff.stop();
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        result.mProduced = seq;
+        return result;
+    }
+}
@@ -0,0 +1,25 @@
+package com.android.gl2jni;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link MailboxBenchmark} on the device, whose cores and memory model
+ * the handoff rates are about; the numbers go to logcat under its tag.
+ * Every payload either handoff delivered has to be whole and in order.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MailboxBenchmarkTest {
+    @Test
+    public void mailboxHandoff() {
+        for (MailboxBenchmark.Result result : new MailboxBenchmark().run()) {
+            assertTrue(result.getName() + ": nothing consumed", result.getConsumed() > 0);
+            assertEquals(result.getName() + ": torn or out of order payloads", 0, result.getErrors());
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.android.gl2jni;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Counts Java heap allocations on the GL thread across GLDrawFrame once the
+ * pipeline is warm, with every input changing on every frame. The only ones
+ * allowed are the ByteBuffer wrappers glMapBufferRange creates on ES3, one
+ * mapping per frame read back, as many objects each as a mapping costs on
+ * this device. On ES2 the count has to be zero.
+ * <p>
+ * The merger has no sinks: handing a frame to the sink thread takes the
+ * queue's lock, and a contended lock may allocate its wait node.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RenderLoopAllocationTest {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 360;
+    private static final int WARMUP_FRAMES = 30;
+    private static final int MEASURED_FRAMES = 100;
+
+    private GLMergerWithShader mMerger;
+    private HeadlessRenderer mRenderer;
+    private PushFrameSource[] mSources;
+    private byte[] mFrame;
+
+    @Before
+    public void setUp() throws Exception {
+        mMerger = new GLMergerWithShader(false, new FrameSink[0]);
+        DirectBufferPool pool = new DirectBufferPool(6);
+        mSources = new PushFrameSource[4];
+        for (int i = 0; i < mSources.length; i++) {
+            mSources[i] = new PushFrameSource("push" + i, DecodedFrame.FORMAT_NV21, pool);
+        }
+        mFrame = new byte[DecodedFrame.bufferSize(DecodedFrame.FORMAT_NV21, WIDTH, HEIGHT)];
+        mMerger.SetMosaic(MosaicLayout.grid(2, 2, mSources.length), mSources);
+        mRenderer = new HeadlessRenderer(mMerger);
+        mRenderer.start().get(10, TimeUnit.SECONDS);
+        RenderTrace.AllocCounter.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        RenderTrace.AllocCounter.stop();
+        mRenderer.release().get(10, TimeUnit.SECONDS);
+        mMerger.Close();
+    }
+
+    @Test
+    public void steadyStateFramesAllocateNothing() throws Exception {
+        final long mapAllocs = mRenderer.run(this::countMappingAllocs).get(10, TimeUnit.SECONDS);
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            drawFrame(i);
+        }
+        for (int i = 0; i < MEASURED_FRAMES; i++) {
+            long[] counts = drawFrame(WARMUP_FRAMES + i);
+            assertEquals("frame " + i + " allocated, " + counts[1] + " frames read back",
+                    counts[1] * mapAllocs, counts[0]);
+        }
+        assertTrue("nothing was read back", mRenderer.run(mMerger::GetFramesReadBack).get() > 0);
+    }
+
+    /** Pushes a new frame into every tile, then draws; allocations and frames read back on the GL thread. */
+    private long[] drawFrame(int n) throws Exception {
+        for (PushFrameSource source : mSources) {
+            mFrame[0] = (byte) n;
+            source.push(mFrame, WIDTH, HEIGHT);
+        }
+        return mRenderer.run(() -> {
+            long readBack = mMerger.GetFramesReadBack();
+            int allocs = RenderTrace.AllocCounter.threadCount();
+            mMerger.GLDrawFrame();
+            allocs = RenderTrace.AllocCounter.threadCount() - allocs;
+            return new long[] {allocs, mMerger.GetFramesReadBack() - readBack};
+        }).get(10, TimeUnit.SECONDS);
+    }
+
+    /** Objects one map and unmap of a pixel pack buffer allocates, done the way AsyncReadback does it. */
+    private long countMappingAllocs() {
+        if (!mMerger.GetCapabilities().hasPixelBufferObjects()) {
+            return 0;
+        }
+        int[] pbo = new int[1];
+        GLES20.glGenBuffers(1, pbo, 0);
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pbo[0]);
+        GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, 4096, null, GLES30.GL_STREAM_READ);
+        int allocs = RenderTrace.AllocCounter.threadCount();
+        ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0, 4096, GLES30.GL_MAP_READ_BIT);
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+        GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        allocs = RenderTrace.AllocCounter.threadCount() - allocs;
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        GLES20.glDeleteBuffers(1, pbo, 0);
+        return allocs;
+    }
+}
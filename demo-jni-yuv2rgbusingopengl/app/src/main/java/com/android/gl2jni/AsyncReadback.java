@@ -0,0 +1,283 @@
+package com.android.gl2jni;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads the composited frame back without stalling the frame that issued it.
+ * <p>
+ * On ES3 every frame is packed into one of N pixel pack buffers and guarded by
+ * a fence; the buffer is mapped a few frames later, once the fence signalled.
+ * ES2 has no PBOs or fences, so there the frame is copied GPU side into a ring
+ * of textures with glCopyTexSubImage2D and glReadPixels runs on the oldest copy,
+ * which the GPU has long finished by then.
+ * <p>
+ * All methods must be called on the GL thread.
+ */
+public class AsyncReadback {
+    public final static String TAG = "AsyncReadback";
+    // upper bound for flush(), a healthy GPU finishes a frame well within this
+    private static final long FLUSH_TIMEOUT_NS = 1000L * 1000 * 1000;
+
+    public interface Listener {
+        /**
+         * Called on the GL thread with a tightly packed RGBA frame. The buffer is
+         * only valid for the duration of the call; copy what has to be kept.
+         */
+        void onFrameAvailable(ByteBuffer rgba, int width, int height, long frameId);
+    }
+
+    private final int mRingSize;
+    private final boolean mUsePbo;
+    private final Listener mListener;
+    private boolean mBlockWhenFull;
+
+    private int mWidth;
+    private int mHeight;
+    private int mFrameBytes;
+
+    // ES3 path
+    private int[] mPbos;
+    private long[] mFences;
+    // ES2 path
+    private int[] mCopyTextures;
+    private int[] mCopyFbos;
+    private ByteBuffer mReadBuffer;
+    private final int[] mFboBinding = new int[1];
+
+    private long[] mSlotFrameId;
+    private long[] mSlotQueuedNs;
+    private int mHead;        // next slot to write
+    private int mPending;     // slots written but not delivered yet
+    private long mNextFrameId;
+
+    private volatile long mFramesQueued;
+    private volatile long mFramesDelivered;
+    private volatile long mFramesDropped;
+    private volatile long mLastLatencyNs;
+    private volatile long mMaxLatencyNs;
+    private long mTotalLatencyNs;
+
+    public AsyncReadback(int ringSize, GLCapabilities caps, Listener listener) {
+        mRingSize = ringSize;
+        mUsePbo = caps.hasPixelBufferObjects();
+        mListener = listener;
+    }
+
+    /**
+     * Wait for the GPU instead of dropping the oldest frame when the ring is
+     * full; for batch processing where every frame must reach the listener.
+     */
+    public void setBlockWhenFull(boolean block) {
+        mBlockWhenFull = block;
+    }
+
+    public void resize(int width, int height) {
+        if (width == mWidth && height == mHeight && mSlotFrameId != null) {
+            return;
+        }
+        release();
+        mWidth = width;
+        mHeight = height;
+        mFrameBytes = width * height * 4;
+        mSlotFrameId = new long[mRingSize];
+        mSlotQueuedNs = new long[mRingSize];
+        mHead = 0;
+        mPending = 0;
+        if (mUsePbo) {
+            mPbos = new int[mRingSize];
+            mFences = new long[mRingSize];
+            GLES20.glGenBuffers(mRingSize, mPbos, 0);
+            for (int i = 0; i < mRingSize; i++) {
+                GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPbos[i]);
+                GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, mFrameBytes, null, GLES30.GL_STREAM_READ);
+            }
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        } else {
+            mCopyTextures = new int[mRingSize];
+            mCopyFbos = new int[mRingSize];
+            GLES20.glGenTextures(mRingSize, mCopyTextures, 0);
+            GLES20.glGenFramebuffers(mRingSize, mCopyFbos, 0);
+            for (int i = 0; i < mRingSize; i++) {
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mCopyTextures[i]);
+                GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+                GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+                GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mCopyFbos[i]);
+                GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, mCopyTextures[i], 0);
+            }
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            mReadBuffer = ByteBuffer.allocateDirect(mFrameBytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        GLMergerWithShader.checkGlError("AsyncReadback resize");
+        Log.d(TAG, "ring of " + mRingSize + (mUsePbo ? " PBOs " : " copy textures ") + width + "x" + height);
+    }
+
+    /**
+     * Queues a readback of the currently bound framebuffer and delivers every
+     * earlier frame that is ready. When all slots are still in flight the oldest
+     * one is dropped so the render loop never waits on the GPU, unless
+     * {@link #setBlockWhenFull} asked for waiting.
+     */
+    public void queueFrame() {
+        drain(false);
+        if (mPending == mRingSize && mBlockWhenFull) {
+            drain(true);
+        }
+        if (mPending == mRingSize) {
+            dropOldest();
+        }
+        int slot = mHead;
+        if (mUsePbo) {
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPbos[slot]);
+            GLES30.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            mFences[slot] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        } else {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mCopyTextures[slot]);
+            GLES20.glCopyTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, 0, 0, mWidth, mHeight);
+        }
+        mSlotFrameId[slot] = mNextFrameId++;
+        mSlotQueuedNs[slot] = System.nanoTime();
+        mHead = (mHead + 1) % mRingSize;
+        mPending++;
+        mFramesQueued++;
+    }
+
+    /** Blocks until every queued frame has been delivered, e.g. before the surface goes away. */
+    public void flush() {
+        drain(true);
+    }
+
+    private void drain(boolean block) {
+        while (mPending > 0) {
+            int slot = (mHead - mPending + mRingSize) % mRingSize;
+            if (mUsePbo) {
+                int status = GLES30.glClientWaitSync(mFences[slot],
+                        block ? GLES30.GL_SYNC_FLUSH_COMMANDS_BIT : 0, block ? FLUSH_TIMEOUT_NS : 0);
+                if (status != GLES30.GL_ALREADY_SIGNALED && status != GLES30.GL_CONDITION_SATISFIED) {
+                    return;
+                }
+                GLES30.glDeleteSync(mFences[slot]);
+                mFences[slot] = 0;
+                GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPbos[slot]);
+                // the one allocation left in the frame loop: the binding wraps every mapping in a
+                // new direct ByteBuffer and cannot map into an existing one, RenderLoopAllocationTest allows it
+                ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0, mFrameBytes, GLES30.GL_MAP_READ_BIT);
+                if (mapped != null) {
+                    deliver(slot, mapped.order(ByteOrder.LITTLE_ENDIAN));
+                    GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+                } else {
+                    Log.e(TAG, "glMapBufferRange failed, dropping frame " + mSlotFrameId[slot]);
+                    mFramesDropped++;
+                }
+                GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            } else {
+                // the newest copy is only read once another frame was queued behind it
+                if (!block && mPending < 2) {
+                    return;
+                }
+                GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mFboBinding, 0);
+                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mCopyFbos[slot]);
+                mReadBuffer.clear();
+                GLES20.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mReadBuffer);
+                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFboBinding[0]);
+                deliver(slot, mReadBuffer);
+            }
+            mPending--;
+        }
+    }
+
+    private void deliver(int slot, ByteBuffer rgba) {
+        long latency = System.nanoTime() - mSlotQueuedNs[slot];
+        mLastLatencyNs = latency;
+        mTotalLatencyNs += latency;
+        if (latency > mMaxLatencyNs) {
+            mMaxLatencyNs = latency;
+        }
+        mFramesDelivered++;
+        rgba.position(0);
+        mListener.onFrameAvailable(rgba, mWidth, mHeight, mSlotFrameId[slot]);
+    }
+
+    private void dropOldest() {
+        int slot = (mHead - mPending + mRingSize) % mRingSize;
+        if (mUsePbo && mFences[slot] != 0) {
+            GLES30.glDeleteSync(mFences[slot]);
+            mFences[slot] = 0;
+        }
+        mPending--;
+        mFramesDropped++;
+        if (RenderTrace.ENABLED) {
+            Log.w(TAG, "readback ring full, dropped frame " + mSlotFrameId[slot]);
+        }
+    }
+
+    /** Deletes the ring's GL objects; only on the context that created them. */
+    public void release() {
+        if (mPbos != null) {
+            for (int i = 0; i < mRingSize; i++) {
+                if (mFences[i] != 0) {
+                    GLES30.glDeleteSync(mFences[i]);
+                }
+            }
+            GLES20.glDeleteBuffers(mRingSize, mPbos, 0);
+            mPbos = null;
+            mFences = null;
+        }
+        if (mCopyTextures != null) {
+            GLES20.glDeleteFramebuffers(mRingSize, mCopyFbos, 0);
+            GLES20.glDeleteTextures(mRingSize, mCopyTextures, 0);
+            mCopyTextures = null;
+            mCopyFbos = null;
+            mReadBuffer = null;
+        }
+        mSlotFrameId = null;
+        mPending = 0;
+    }
+
+    /**
+     * Forgets the ring without touching GL, for when its context is gone: the
+     * names would be invalid there or, once reused, belong to the new context.
+     * Frames still in flight are lost and counted as dropped.
+     */
+    public void abandon() {
+        mFramesDropped += mPending;
+        mPbos = null;
+        mFences = null;
+        mCopyTextures = null;
+        mCopyFbos = null;
+        mReadBuffer = null;
+        mSlotFrameId = null;
+        mPending = 0;
+    }
+
+    public long getFramesQueued() {
+        return mFramesQueued;
+    }
+
+    public long getFramesDelivered() {
+        return mFramesDelivered;
+    }
+
+    public long getFramesDropped() {
+        return mFramesDropped;
+    }
+
+    public long getLastLatencyNs() {
+        return mLastLatencyNs;
+    }
+
+    public long getMaxLatencyNs() {
+        return mMaxLatencyNs;
+    }
+
+    public long getAverageLatencyNs() {
+        long delivered = mFramesDelivered;
+        return delivered == 0 ? 0 : mTotalLatencyNs / delivered;
+    }
+}
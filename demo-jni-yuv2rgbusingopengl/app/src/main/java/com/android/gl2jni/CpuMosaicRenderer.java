@@ -0,0 +1,287 @@
+package com.android.gl2jni;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * CPU implementation of what the GL compositor produces, the reference GPU
+ * output is compared against (see CpuMosaicReferenceTest).
+ * <p>
+ * Matches the shaders step by step: the output is cleared to opaque black,
+ * tiles are painted in layout order with the same pixel coverage rule (pixel
+ * centres inside the rectangle), planes are sampled like GL_LINEAR with
+ * GL_CLAMP_TO_EDGE, I420, NV12 and NV21 go through the BT.601 limited range constants of
+ * the merge shader and is written out as b, g, r, and BGR tiles are swizzled
+ * like the .bgra read of a GL_RGB upload. Rows of the output are rows of
+ * glReadPixels, i.e. layout y grows with the row index.
+ * <p>
+ * Rows are split into bands on a ForkJoinPool. Sampling tables are rebuilt
+ * only when the layout, output or input sizes change; the per pixel loops work
+ * on the direct buffers with absolute gets and allocate nothing.
+ */
+public class CpuMosaicRenderer {
+    public final static String TAG = "CpuMosaicRenderer";
+
+    // rows per leaf task, enough work to amortize the fork
+    private static final int BAND_ROWS = 32;
+
+    /** Where the columns or rows of one tile sample a plane: left texel, right texel, weight of the right one. */
+    private static final class Axis {
+        final int mFirst;       // first output pixel of the tile
+        final int mCount;
+        final int[] mLo;
+        final int[] mHi;
+        final float[] mWeight;
+
+        Axis(float start, float end, int outputSize, int textureSize) {
+            int first = Math.max(0, (int) Math.ceil(start - 0.5f));
+            int last = Math.min(outputSize, (int) Math.ceil(end - 0.5f));
+            mFirst = first;
+            mCount = Math.max(0, last - first);
+            mLo = new int[mCount];
+            mHi = new int[mCount];
+            mWeight = new float[mCount];
+            for (int i = 0; i < mCount; i++) {
+                // same interpolation the rasterizer does for the tile's 0..1 texcoord
+                float t = (first + i + 0.5f - start) / (end - start);
+                float s = t * textureSize - 0.5f;
+                int lo = (int) Math.floor(s);
+                mWeight[i] = s - lo;
+                mLo[i] = clamp(lo, textureSize - 1);
+                mHi[i] = clamp(lo + 1, textureSize - 1);
+            }
+        }
+
+        private static int clamp(int v, int max) {
+            return v < 0 ? 0 : (v > max ? max : v);
+        }
+    }
+
+    private static final class TilePlan {
+        int mFormat;
+        int mFrameWidth;
+        int mFrameHeight;
+        Axis mLumaX;
+        Axis mLumaY;
+        Axis mChromaX;
+        Axis mChromaY;
+    }
+
+    private final ForkJoinPool mPool;
+    private MosaicLayout mLayout;
+    private int mWidth;
+    private int mHeight;
+    private TilePlan[] mPlans = new TilePlan[0];
+
+    public CpuMosaicRenderer(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Renders frames[i] into layout tile i; a null frame leaves its tile
+     * black. out receives width*height tightly packed RGBA pixels.
+     */
+    public void render(MosaicLayout layout, DecodedFrame[] frames, ByteBuffer out, int width, int height) {
+        if (frames.length != layout.getTileCount()) {
+            throw new IllegalArgumentException(layout.getTileCount() + " tiles but " + frames.length + " frames");
+        }
+        if (out.capacity() < width * height * 4) {
+            throw new IllegalArgumentException("output buffer holds " + out.capacity() + " bytes, need " + width * height * 4);
+        }
+        plan(layout, frames, width, height);
+        mPool.invoke(new Band(frames, out, 0, height));
+    }
+
+    private void plan(MosaicLayout layout, DecodedFrame[] frames, int width, int height) {
+        boolean sameOutput = layout == mLayout && width == mWidth && height == mHeight;
+        if (!sameOutput) {
+            mLayout = layout;
+            mWidth = width;
+            mHeight = height;
+            mPlans = new TilePlan[layout.getTileCount()];
+        }
+        for (int t = 0; t < frames.length; t++) {
+            DecodedFrame frame = frames[t];
+            if (frame == null) {
+                continue;
+            }
+            TilePlan plan = mPlans[t];
+            if (plan != null && plan.mFormat == frame.getFormat()
+                    && plan.mFrameWidth == frame.getWidth() && plan.mFrameHeight == frame.getHeight()) {
+                continue;
+            }
+            MosaicLayout.Tile tile = layout.getTile(t);
+            float x0 = tile.mX * width;
+            float x1 = (tile.mX + tile.mWidth) * width;
+            float y0 = tile.mY * height;
+            float y1 = (tile.mY + tile.mHeight) * height;
+            plan = new TilePlan();
+            plan.mFormat = frame.getFormat();
+            plan.mFrameWidth = frame.getWidth();
+            plan.mFrameHeight = frame.getHeight();
+            plan.mLumaX = new Axis(x0, x1, width, frame.getWidth());
+            plan.mLumaY = new Axis(y0, y1, height, frame.getHeight());
+            if (plan.mFormat != DecodedFrame.FORMAT_BGR) {
+                plan.mChromaX = new Axis(x0, x1, width, frame.getWidth() / 2);
+                plan.mChromaY = new Axis(y0, y1, height, frame.getHeight() / 2);
+            }
+            mPlans[t] = plan;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private final class Band extends RecursiveAction {
+        private final DecodedFrame[] mFrames;
+        private final ByteBuffer mOut;
+        private final int mRowStart;
+        private final int mRowEnd;
+
+        Band(DecodedFrame[] frames, ByteBuffer out, int rowStart, int rowEnd) {
+            mFrames = frames;
+            mOut = out;
+            mRowStart = rowStart;
+            mRowEnd = rowEnd;
+        }
+
+        @Override
+        protected void compute() {
+            if (mRowEnd - mRowStart > BAND_ROWS) {
+                int mid = (mRowStart + mRowEnd) >>> 1;
+                invokeAll(new Band(mFrames, mOut, mRowStart, mid), new Band(mFrames, mOut, mid, mRowEnd));
+                return;
+            }
+            for (int y = mRowStart; y < mRowEnd; y++) {
+                clearRow(mOut, y);
+                for (int t = 0; t < mFrames.length; t++) {
+                    DecodedFrame frame = mFrames[t];
+                    if (frame == null) {
+                        continue;
+                    }
+                    TilePlan plan = mPlans[t];
+                    int row = y - plan.mLumaY.mFirst;
+                    if (row < 0 || row >= plan.mLumaY.mCount) {
+                        continue;
+                    }
+                    if (plan.mFormat == DecodedFrame.FORMAT_I420) {
+                        i420Row(frame, plan, row, mOut, y);
+                    } else if (DecodedFrame.isSemiPlanar(plan.mFormat)) {
+                        semiPlanarRow(frame, plan, row, mOut, y);
+                    } else {
+                        bgrRow(frame, plan, row, mOut, y);
+                    }
+                }
+            }
+        }
+    }
+
+    private void clearRow(ByteBuffer out, int y) {
+        int base = y * mWidth * 4;
+        for (int x = 0; x < mWidth; x++) {
+            out.putInt(base + x * 4, 0);
+            out.put(base + x * 4 + 3, (byte) 0xff);
+        }
+    }
+
+    private void i420Row(DecodedFrame frame, TilePlan plan, int row, ByteBuffer out, int y) {
+        ByteBuffer yPlane = frame.getPlane(DecodedFrame.PLANE_Y);
+        ByteBuffer uPlane = frame.getPlane(DecodedFrame.PLANE_U);
+        ByteBuffer vPlane = frame.getPlane(DecodedFrame.PLANE_V);
+        int lumaStride = plan.mFrameWidth;
+        int chromaStride = plan.mFrameWidth / 2;
+        int ly0 = plan.mLumaY.mLo[row] * lumaStride;
+        int ly1 = plan.mLumaY.mHi[row] * lumaStride;
+        float lwy = plan.mLumaY.mWeight[row];
+        int cy0 = plan.mChromaY.mLo[row] * chromaStride;
+        int cy1 = plan.mChromaY.mHi[row] * chromaStride;
+        float cwy = plan.mChromaY.mWeight[row];
+        Axis lx = plan.mLumaX;
+        Axis cx = plan.mChromaX;
+        int o = (y * mWidth + lx.mFirst) * 4;
+        for (int i = 0; i < lx.mCount; i++, o += 4) {
+            float yy = bilinear(yPlane, ly0, ly1, lx.mLo[i], lx.mHi[i], lx.mWeight[i], lwy);
+            float u = bilinear(uPlane, cy0, cy1, cx.mLo[i], cx.mHi[i], cx.mWeight[i], cwy);
+            float v = bilinear(vPlane, cy0, cy1, cx.mLo[i], cx.mHi[i], cx.mWeight[i], cwy);
+            yuvToBgr(yy, u, v, out, o);
+        }
+    }
+
+    private void semiPlanarRow(DecodedFrame frame, TilePlan plan, int row, ByteBuffer out, int y) {
+        ByteBuffer yPlane = frame.getPlane(DecodedFrame.PLANE_Y);
+        ByteBuffer uvPlane = frame.getPlane(DecodedFrame.PLANE_UV);
+        // two bytes per chroma texel, so a chroma row is as wide as a luma row
+        int stride = plan.mFrameWidth;
+        int uOffset = plan.mFormat == DecodedFrame.FORMAT_NV12 ? 0 : 1;
+        int vOffset = 1 - uOffset;
+        int ly0 = plan.mLumaY.mLo[row] * stride;
+        int ly1 = plan.mLumaY.mHi[row] * stride;
+        float lwy = plan.mLumaY.mWeight[row];
+        int cy0 = plan.mChromaY.mLo[row] * stride;
+        int cy1 = plan.mChromaY.mHi[row] * stride;
+        float cwy = plan.mChromaY.mWeight[row];
+        Axis lx = plan.mLumaX;
+        Axis cx = plan.mChromaX;
+        int o = (y * mWidth + lx.mFirst) * 4;
+        for (int i = 0; i < lx.mCount; i++, o += 4) {
+            int c0 = cx.mLo[i] * 2;
+            int c1 = cx.mHi[i] * 2;
+            float yy = bilinear(yPlane, ly0, ly1, lx.mLo[i], lx.mHi[i], lx.mWeight[i], lwy);
+            float u = bilinear(uvPlane, cy0 + uOffset, cy1 + uOffset, c0, c1, cx.mWeight[i], cwy);
+            float v = bilinear(uvPlane, cy0 + vOffset, cy1 + vOffset, c0, c1, cx.mWeight[i], cwy);
+            yuvToBgr(yy, u, v, out, o);
+        }
+    }
+
+    /** yuvToBgr() of the compositor, constant for constant, written as b, g, r, 1. */
+    private static void yuvToBgr(float yy, float u, float v, ByteBuffer out, int o) {
+        yy = 1.1643f * (yy - 0.0625f);
+        u = u - 0.5f;
+        v = v - 0.5f;
+        out.put(o, unorm(yy + 2.017f * u));
+        out.put(o + 1, unorm(yy - 0.39173f * u - 0.81290f * v));
+        out.put(o + 2, unorm(yy + 1.5958f * v));
+        out.put(o + 3, (byte) 0xff);
+    }
+
+    private void bgrRow(DecodedFrame frame, TilePlan plan, int row, ByteBuffer out, int y) {
+        ByteBuffer bgr = frame.getPlane(0);
+        int stride = plan.mFrameWidth * 3;
+        int y0 = plan.mLumaY.mLo[row] * stride;
+        int y1 = plan.mLumaY.mHi[row] * stride;
+        float wy = plan.mLumaY.mWeight[row];
+        Axis lx = plan.mLumaX;
+        int o = (y * mWidth + lx.mFirst) * 4;
+        for (int i = 0; i < lx.mCount; i++, o += 4) {
+            int x0 = lx.mLo[i] * 3;
+            int x1 = lx.mHi[i] * 3;
+            float wx = lx.mWeight[i];
+            // GL_RGB upload of BGR bytes read back as .bgra: channel 2 lands in red
+            out.put(o, unorm(bilinear(bgr, y0 + 2, y1 + 2, x0, x1, wx, wy)));
+            out.put(o + 1, unorm(bilinear(bgr, y0 + 1, y1 + 1, x0, x1, wx, wy)));
+            out.put(o + 2, unorm(bilinear(bgr, y0, y1, x0, x1, wx, wy)));
+            out.put(o + 3, (byte) 0xff);
+        }
+    }
+
+    /** GL_LINEAR on an 8 bit plane: row offsets, column offsets and weights, result in 0..1. */
+    private static float bilinear(ByteBuffer plane, int row0, int row1, int col0, int col1, float wx, float wy) {
+        float a = plane.get(row0 + col0) & 0xff;
+        float b = plane.get(row0 + col1) & 0xff;
+        float c = plane.get(row1 + col0) & 0xff;
+        float d = plane.get(row1 + col1) & 0xff;
+        float top = a + (b - a) * wx;
+        float bottom = c + (d - c) * wx;
+        return (top + (bottom - top) * wy) * (1.0f / 255.0f);
+    }
+
+    /** Float to normalized byte the way the framebuffer stores it. */
+    private static byte unorm(float v) {
+        if (v <= 0.0f) {
+            return 0;
+        }
+        if (v >= 1.0f) {
+            return (byte) 0xff;
+        }
+        return (byte) (int) (v * 255.0f + 0.5f);
+    }
+}
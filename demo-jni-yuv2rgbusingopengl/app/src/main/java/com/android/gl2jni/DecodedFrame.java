@@ -0,0 +1,158 @@
+package com.android.gl2jni;
+
+import org.opencv.core.Mat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A decoded input image held in the layout the GL upload path expects.
+ * FORMAT_I420 frames are a single CV_8UC1 Mat of height*3/2 rows (Y, then U, then V),
+ * FORMAT_NV12/FORMAT_NV21 the same size with Y followed by one interleaved
+ * chroma plane (UV or VU pairs, as cameras deliver them), and FORMAT_BGR
+ * frames are the packed 3 channel image returned by imread.
+ * <p>
+ * The Mat is a header over a pooled direct buffer, so {@link #getPlane(int)}
+ * hands out slices that go to glTexImage2D/glTexSubImage2D without any copy.
+ * Frames filled without OpenCV (e.g. synthetic benchmark input) have no Mat.
+ */
+public class DecodedFrame {
+    public static final int FORMAT_I420 = 0;
+    public static final int FORMAT_BGR  = 1;
+    public static final int FORMAT_NV12 = 2;
+    public static final int FORMAT_NV21 = 3;
+
+    public static final int PLANE_Y = 0;
+    public static final int PLANE_U = 1;
+    public static final int PLANE_V = 2;
+    // semi-planar formats: Y is plane 0, the interleaved chroma plane 1
+    public static final int PLANE_UV = 1;
+
+    private static final AtomicLong sNextGeneration = new AtomicLong();
+
+    private final int mFormat;
+    private final int mWidth;
+    private final int mHeight;
+    private final Mat mData;
+    private final ByteBuffer mBuffer;
+    private final DirectBufferPool mPool;
+    private final ByteBuffer[] mPlanes;
+    private final long mGeneration;
+
+    public DecodedFrame(int format, int width, int height, Mat data, ByteBuffer buffer, DirectBufferPool pool) {
+        mFormat = format;
+        mWidth = width;
+        mHeight = height;
+        mData = data;
+        mBuffer = buffer;
+        mPool = pool;
+        mGeneration = sNextGeneration.incrementAndGet();
+        if (format == FORMAT_I420) {
+            int ySize = width * height;
+            int cSize = ySize / 4;
+            mPlanes = new ByteBuffer[] {
+                    slice(0, ySize),
+                    slice(ySize, cSize),
+                    slice(ySize + cSize, cSize)
+            };
+        } else if (isSemiPlanar(format)) {
+            int ySize = width * height;
+            mPlanes = new ByteBuffer[] {
+                    slice(0, ySize),
+                    slice(ySize, ySize / 2)
+            };
+        } else {
+            mPlanes = new ByteBuffer[] { slice(0, width * height * 3) };
+        }
+    }
+
+    /** Bytes needed to hold a frame of the given format and size. */
+    public static int bufferSize(int format, int width, int height) {
+        return format == FORMAT_BGR ? width * height * 3 : width * height * 3 / 2;
+    }
+
+    public static boolean isSemiPlanar(int format) {
+        return format == FORMAT_NV12 || format == FORMAT_NV21;
+    }
+
+    /** Planes, and so textures, a frame of this format is made of. */
+    public static int planeCount(int format) {
+        if (format == FORMAT_I420) {
+            return 3;
+        }
+        return isSemiPlanar(format) ? 2 : 1;
+    }
+
+    /** Bytes per texel of plane: 2 for interleaved chroma, 3 for BGR, 1 otherwise. */
+    public static int planeChannels(int format, int plane) {
+        if (format == FORMAT_BGR) {
+            return 3;
+        }
+        return isSemiPlanar(format) && plane == PLANE_UV ? 2 : 1;
+    }
+
+    /** Width in texels of plane for a frame width; chroma planes are subsampled 2x2. */
+    public static int planeWidth(int format, int plane, int width) {
+        return plane == 0 ? width : width / 2;
+    }
+
+    public static int planeHeight(int format, int plane, int height) {
+        return plane == 0 ? height : height / 2;
+    }
+
+    private ByteBuffer slice(int offset, int length) {
+        ByteBuffer dup = mBuffer.duplicate();
+        dup.position(offset);
+        dup.limit(offset + length);
+        return dup.slice();
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /** Unique per decode, consumers compare it to skip work for a frame they already have. */
+    public long getGeneration() {
+        return mGeneration;
+    }
+
+    public Mat getMat() {
+        return mData;
+    }
+
+    public int getPlaneCount() {
+        return mPlanes.length;
+    }
+
+    public int getPlaneWidth(int index) {
+        return planeWidth(mFormat, index, mWidth);
+    }
+
+    public int getPlaneHeight(int index) {
+        return planeHeight(mFormat, index, mHeight);
+    }
+
+    /** Read-only use only: the returned view aliases the frame's native storage. */
+    public ByteBuffer getPlane(int index) {
+        return mPlanes[index];
+    }
+
+    public long getSizeBytes() {
+        return mBuffer.capacity();
+    }
+
+    public void release() {
+        if (mData != null) {
+            mData.release();
+        }
+        mPool.release(mBuffer);
+    }
+}
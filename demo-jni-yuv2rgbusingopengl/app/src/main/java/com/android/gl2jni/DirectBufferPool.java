@@ -0,0 +1,70 @@
+package com.android.gl2jni;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Recycles direct (native, never moved by the GC) byte buffers by capacity so
+ * frame sized allocations happen once instead of every decode.
+ * <p>
+ * Acquire and release are on the per frame path and allocate nothing once a
+ * size has been seen: there are only a handful of sizes, so they are found by
+ * a linear scan rather than a map keyed by a boxed capacity.
+ */
+public class DirectBufferPool {
+    private static final class SizeClass {
+        final int mCapacity;
+        final ArrayDeque<ByteBuffer> mFree;
+
+        SizeClass(int capacity, int maxFree) {
+            mCapacity = capacity;
+            mFree = new ArrayDeque<>(maxFree);
+        }
+    }
+
+    private final int mMaxPerSize;
+    private final ArrayList<SizeClass> mSizes = new ArrayList<>();
+    private long mAllocatedBytes;
+
+    public DirectBufferPool(int maxPerSize) {
+        mMaxPerSize = maxPerSize;
+    }
+
+    public synchronized ByteBuffer acquire(int capacity) {
+        ByteBuffer buffer = sizeClass(capacity).mFree.pollFirst();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+            mAllocatedBytes += capacity;
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public synchronized void release(ByteBuffer buffer) {
+        ArrayDeque<ByteBuffer> free = sizeClass(buffer.capacity()).mFree;
+        if (free.size() < mMaxPerSize) {
+            free.addFirst(buffer);
+        } else {
+            // let the GC reclaim it
+            mAllocatedBytes -= buffer.capacity();
+        }
+    }
+
+    private SizeClass sizeClass(int capacity) {
+        for (int i = 0; i < mSizes.size(); i++) {
+            SizeClass size = mSizes.get(i);
+            if (size.mCapacity == capacity) {
+                return size;
+            }
+        }
+        SizeClass size = new SizeClass(capacity, mMaxPerSize);
+        mSizes.add(size);
+        return size;
+    }
+
+    public synchronized long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+}
@@ -0,0 +1,209 @@
+package com.android.gl2jni;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.FileObserver;
+import android.util.Log;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Frame source backed by an image file. The file is decoded (and converted to
+ * I420 when asked for) once per modification time; every other acquire is a
+ * stat plus a cache lookup. Decoded pixels land in a buffer from the pool so
+ * the GL side can upload the planes directly.
+ * <p>
+ * With a listener set the parent directory is watched, so a rewritten or
+ * replaced file is announced without anyone having to poll for it.
+ * <p>
+ * Given an executor, decode and conversion run there: acquire starts them and
+ * returns null until the frame is ready, the listener is told when it is, and
+ * the acquiring (GL) thread only ever gets finished plane buffers.
+ */
+public class FileFrameSource implements FrameSource {
+    public final static String TAG = "FileFrameSource";
+
+    private final File mFile;
+    private final String mPath;
+    private final int mFormat;
+    private final FrameCache mCache;
+    private final DirectBufferPool mPool;
+    private final FrameMetrics mMetrics;
+    private final Executor mDecodeExecutor;
+    private FrameCache.Key mKey;
+    private FileObserver mObserver;
+    private volatile Listener mListener;
+    // acquiring thread only: a decode is queued or running, and the version that failed to decode
+    private boolean mDecodeInFlight;
+    private FrameCache.Key mFailedKey;
+    private final AtomicReference<Decoded> mDecoded = new AtomicReference<>();
+
+    /** Announces the file to listener when it is written or renamed into the watched directory. */
+    private final class DirectoryObserver extends FileObserver {
+        // the directory rather than the file, so replacing it by a rename is seen too
+        private static final int MASK = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO;
+        private final String mName = mFile.getName();
+        private final Listener mObserverListener;
+
+        @TargetApi(Build.VERSION_CODES.Q)
+        DirectoryObserver(File directory, Listener listener) {
+            super(directory, MASK);
+            mObserverListener = listener;
+        }
+
+        /** Below API 29, where the File constructor does not exist yet. */
+        @SuppressWarnings("deprecation")
+        DirectoryObserver(String directory, Listener listener) {
+            super(directory, MASK);
+            mObserverListener = listener;
+        }
+
+        @Override
+        public void onEvent(int event, String path) {
+            if (mName.equals(path)) {
+                mObserverListener.onFrameAvailable(FileFrameSource.this);
+            }
+        }
+    }
+
+    private static final class Decoded {
+        final FrameCache.Key mKey;
+        final DecodedFrame mFrame;
+
+        Decoded(FrameCache.Key key, DecodedFrame frame) {
+            mKey = key;
+            mFrame = frame;
+        }
+    }
+
+    public FileFrameSource(String path, int format, FrameCache cache, DirectBufferPool pool, FrameMetrics metrics) {
+        this(path, format, cache, pool, metrics, null);
+    }
+
+    /** decodeExecutor null decodes synchronously inside acquire. */
+    public FileFrameSource(String path, int format, FrameCache cache, DirectBufferPool pool, FrameMetrics metrics,
+                           Executor decodeExecutor) {
+        if (DecodedFrame.isSemiPlanar(format)) {
+            // imread has no semi-planar output, camera frames come in through PushFrameSource
+            throw new IllegalArgumentException("file sources decode to I420 or BGR, not format " + format);
+        }
+        mFile = new File(path);
+        mPath = path;
+        mFormat = format;
+        mCache = cache;
+        mPool = pool;
+        mMetrics = metrics;
+        mDecodeExecutor = decodeExecutor;
+    }
+
+    @Override
+    public String getName() {
+        return mPath;
+    }
+
+    @Override
+    public int getFormat() {
+        return mFormat;
+    }
+
+    @Override
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+        if (mObserver != null) {
+            mObserver.stopWatching();
+            mObserver = null;
+        }
+        if (listener == null) {
+            return;
+        }
+        mObserver = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+                ? new DirectoryObserver(mFile.getParentFile(), listener)
+                : new DirectoryObserver(mFile.getParent(), listener);
+        mObserver.startWatching();
+    }
+
+    @Override
+    public DecodedFrame acquire() {
+        long lastModified = mFile.lastModified();
+        if (mKey == null || mKey.mLastModified != lastModified) {
+            mKey = new FrameCache.Key(mPath, mFormat, lastModified);
+        }
+        DecodedFrame frame = mCache.get(mKey);
+        if (frame != null || mKey.equals(mFailedKey)) {
+            return frame;
+        }
+        if (mDecodeExecutor == null) {
+            return install(mKey, decode());
+        }
+        Decoded done = mDecoded.getAndSet(null);
+        if (done != null) {
+            mDecodeInFlight = false;
+            if (done.mKey.equals(mKey)) {
+                return install(mKey, done.mFrame);
+            }
+            // the file changed again while it was being decoded
+            if (done.mFrame != null) {
+                done.mFrame.release();
+            }
+        }
+        if (!mDecodeInFlight) {
+            mDecodeInFlight = true;
+            final FrameCache.Key key = mKey;
+            mDecodeExecutor.execute(() -> {
+                mDecoded.set(new Decoded(key, decode()));
+                Listener listener = mListener;
+                if (listener != null) {
+                    listener.onFrameAvailable(this);
+                }
+            });
+        }
+        // the textures keep the last upload until the new frame is ready
+        return null;
+    }
+
+    // cache changes stay on the acquiring thread, which is the only one that may release a frame it uploads from
+    private DecodedFrame install(FrameCache.Key key, DecodedFrame frame) {
+        if (frame == null) {
+            mFailedKey = key;
+            return null;
+        }
+        mCache.put(key, frame);
+        mCache.invalidateOlder(key);
+        return frame;
+    }
+
+    private DecodedFrame decode() {
+        Log.d(TAG, "decoding " + mPath);
+        long start = System.nanoTime();
+        Mat bgr = Imgcodecs.imread(mPath, Imgcodecs.IMREAD_COLOR);
+        long decoded = System.nanoTime();
+        mMetrics.record(FrameMetrics.Stage.DECODE, decoded - start);
+        if (bgr == null || bgr.empty()) {
+            Log.e(TAG, "could not decode " + mPath);
+            return null;
+        }
+        int width = bgr.cols();
+        int height = bgr.rows();
+        ByteBuffer buffer = mPool.acquire(DecodedFrame.bufferSize(mFormat, width, height));
+        Mat out;
+        if (mFormat == DecodedFrame.FORMAT_BGR) {
+            out = new Mat(height, width, CvType.CV_8UC3, buffer);
+            bgr.copyTo(out);
+        } else {
+            // cvtColor writes in place because the header already has the I420 size and type
+            out = new Mat(height * 3 / 2, width, CvType.CV_8UC1, buffer);
+            Imgproc.cvtColor(bgr, out, Imgproc.COLOR_RGB2YUV_I420);
+        }
+        bgr.release();
+        mMetrics.record(FrameMetrics.Stage.CONVERT, System.nanoTime() - decoded);
+        return new DecodedFrame(mFormat, width, height, out, buffer, mPool);
+    }
+}
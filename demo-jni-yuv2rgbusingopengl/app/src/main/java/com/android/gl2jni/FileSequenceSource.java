@@ -0,0 +1,82 @@
+package com.android.gl2jni;
+
+import java.util.List;
+
+/**
+ * Frame source that plays a list of image files, one per {@link #advance},
+ * for batch runs over an archive. Decoding is synchronous, so the first
+ * acquire after an advance returns that file's frame, or null if it cannot
+ * be decoded and the tile keeps its previous image.
+ */
+public class FileSequenceSource implements FrameSource {
+    public final static String TAG = "FileSequenceSource";
+
+    private final String[] mPaths;
+    private final int mFormat;
+    private final FrameCache mCache;
+    private final DirectBufferPool mPool;
+    private final FrameMetrics mMetrics;
+    private volatile Listener mListener;
+    private int mIndex;
+    private FileFrameSource mCurrent;
+
+    public FileSequenceSource(List<String> paths, int format, FrameCache cache, DirectBufferPool pool,
+                              FrameMetrics metrics) {
+        if (paths.isEmpty()) {
+            throw new IllegalArgumentException("no files");
+        }
+        mPaths = paths.toArray(new String[0]);
+        mFormat = format;
+        mCache = cache;
+        mPool = pool;
+        mMetrics = metrics;
+        mCurrent = open(0);
+    }
+
+    private FileFrameSource open(int index) {
+        // no executor: the frame drawn after advance has to be this file
+        return new FileFrameSource(mPaths[index], mFormat, mCache, mPool, mMetrics, null);
+    }
+
+    @Override
+    public String getName() {
+        return mCurrent.getName();
+    }
+
+    @Override
+    public int getFormat() {
+        return mFormat;
+    }
+
+    /** Told on every advance, the files themselves are not watched. */
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /** Moves to the next file; false once past the last one, which then stays current. */
+    public boolean advance() {
+        if (mIndex + 1 >= mPaths.length) {
+            return false;
+        }
+        mCurrent = open(++mIndex);
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onFrameAvailable(this);
+        }
+        return true;
+    }
+
+    public int getIndex() {
+        return mIndex;
+    }
+
+    public int getCount() {
+        return mPaths.length;
+    }
+
+    @Override
+    public DecodedFrame acquire() {
+        return mCurrent.acquire();
+    }
+}
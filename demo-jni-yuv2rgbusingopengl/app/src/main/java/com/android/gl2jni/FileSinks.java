@@ -0,0 +1,169 @@
+package com.android.gl2jni;
+
+import android.graphics.Bitmap;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * The file sinks the merger ships with. Each writes one file per frame named by
+ * a pattern; a pattern without %d keeps overwriting the same file.
+ */
+public final class FileSinks {
+    private FileSinks() {
+    }
+
+    public static FrameSink jpeg(File dir, String namePattern, int quality) {
+        return new BitmapSink("jpeg", dir, namePattern, Bitmap.CompressFormat.JPEG, quality);
+    }
+
+    public static FrameSink png(File dir, String namePattern) {
+        return new BitmapSink("png", dir, namePattern, Bitmap.CompressFormat.PNG, 100);
+    }
+
+    public static FrameSink rawRgba(File dir, String namePattern) {
+        return new RawRgbaSink(dir, namePattern);
+    }
+
+    public static FrameSink rawI420(File dir, String namePattern) {
+        return new RawI420Sink(dir, namePattern);
+    }
+
+    private abstract static class FileSink implements FrameSink {
+        private final String mName;
+        private final File mDir;
+        private final String mNamePattern;
+
+        FileSink(String name, File dir, String namePattern) {
+            mName = name;
+            mDir = dir;
+            mNamePattern = namePattern;
+        }
+
+        File fileFor(OutputFrame frame) throws IOException {
+            if (!mDir.isDirectory() && !mDir.mkdirs()) {
+                throw new IOException("could not create " + mDir);
+            }
+            return new File(mDir, String.format(Locale.US, mNamePattern, frame.getFrameId()));
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class BitmapSink extends FileSink {
+        private final Bitmap.CompressFormat mFormat;
+        private final int mQuality;
+        private Bitmap mBitmap;
+
+        BitmapSink(String name, File dir, String namePattern, Bitmap.CompressFormat format, int quality) {
+            super(name, dir, namePattern);
+            mFormat = format;
+            mQuality = quality;
+        }
+
+        @Override
+        public long consume(OutputFrame frame) throws IOException {
+            if (mBitmap == null || mBitmap.getWidth() != frame.getWidth() || mBitmap.getHeight() != frame.getHeight()) {
+                if (mBitmap != null) {
+                    mBitmap.recycle();
+                }
+                mBitmap = Bitmap.createBitmap(frame.getWidth(), frame.getHeight(), Bitmap.Config.ARGB_8888);
+            }
+            mBitmap.copyPixelsFromBuffer(frame.getRgba());
+            File file = fileFor(frame);
+            OutputStream out = new FileOutputStream(file);
+            try {
+                mBitmap.compress(mFormat, mQuality, out);
+                out.flush();
+            } finally {
+                out.close();
+            }
+            return file.length();
+        }
+
+        @Override
+        public void close() {
+            if (mBitmap != null) {
+                mBitmap.recycle();
+                mBitmap = null;
+            }
+        }
+    }
+
+    private static final class RawRgbaSink extends FileSink {
+        RawRgbaSink(File dir, String namePattern) {
+            super("rgba", dir, namePattern);
+        }
+
+        @Override
+        public long consume(OutputFrame frame) throws IOException {
+            return writeFully(fileFor(frame), frame.getRgba());
+        }
+    }
+
+    private static final class RawI420Sink extends FileSink {
+        private ByteBuffer mI420;
+        private Mat mI420Mat;
+
+        RawI420Sink(File dir, String namePattern) {
+            super("i420", dir, namePattern);
+        }
+
+        @Override
+        public long consume(OutputFrame frame) throws IOException {
+            int width = frame.getWidth();
+            int height = frame.getHeight();
+            int size = width * height * 3 / 2;
+            if (mI420 == null || mI420.capacity() != size) {
+                close();
+                mI420 = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+                mI420Mat = new Mat(height * 3 / 2, width, CvType.CV_8UC1, mI420);
+            }
+            Mat rgba = new Mat(height, width, CvType.CV_8UC4, frame.getRgba());
+            Imgproc.cvtColor(rgba, mI420Mat, Imgproc.COLOR_RGBA2YUV_I420);
+            rgba.release();
+            mI420.position(0);
+            return writeFully(fileFor(frame), mI420);
+        }
+
+        @Override
+        public void close() {
+            if (mI420Mat != null) {
+                mI420Mat.release();
+                mI420Mat = null;
+            }
+            mI420 = null;
+        }
+    }
+
+    static long writeFully(File file, ByteBuffer data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            long written = 0;
+            while (data.hasRemaining()) {
+                written += channel.write(data);
+            }
+            return written;
+        } finally {
+            out.close();
+        }
+    }
+}
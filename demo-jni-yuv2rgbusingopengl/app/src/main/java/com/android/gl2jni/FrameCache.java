@@ -0,0 +1,126 @@
+package com.android.gl2jni;
+
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of decoded frames bounded by the total number of bytes held.
+ * Entries are keyed by path, format and modification time, so an input that
+ * changes on disk simply misses and the stale entry ages out.
+ */
+public class FrameCache {
+    public final static String TAG = "FrameCache";
+
+    public static final class Key {
+        final String mPath;
+        final int mFormat;
+        final long mLastModified;
+
+        public Key(String path, int format, long lastModified) {
+            mPath = path;
+            mFormat = format;
+            mLastModified = lastModified;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return mFormat == k.mFormat && mLastModified == k.mLastModified && mPath.equals(k.mPath);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = mPath.hashCode();
+            h = 31 * h + mFormat;
+            h = 31 * h + (int) (mLastModified ^ (mLastModified >>> 32));
+            return h;
+        }
+    }
+
+    private final long mByteBudget;
+    private long mBytesInUse;
+    private long mHits;
+    private long mMisses;
+    // access ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<Key, DecodedFrame> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    public FrameCache(long byteBudget) {
+        mByteBudget = byteBudget;
+    }
+
+    public synchronized DecodedFrame get(Key key) {
+        DecodedFrame frame = mEntries.get(key);
+        if (frame != null) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        return frame;
+    }
+
+    public synchronized void put(Key key, DecodedFrame frame) {
+        DecodedFrame old = mEntries.put(key, frame);
+        if (old != null) {
+            mBytesInUse -= old.getSizeBytes();
+            if (old != frame) {
+                old.release();
+            }
+        }
+        mBytesInUse += frame.getSizeBytes();
+        trimToBudget(key);
+    }
+
+    /** Drops older versions of the input named by keep, e.g. after the file was rewritten. */
+    public synchronized void invalidateOlder(Key keep) {
+        Iterator<Map.Entry<Key, DecodedFrame>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, DecodedFrame> e = it.next();
+            Key k = e.getKey();
+            if (k.mFormat == keep.mFormat && k.mPath.equals(keep.mPath) && k.mLastModified != keep.mLastModified) {
+                mBytesInUse -= e.getValue().getSizeBytes();
+                e.getValue().release();
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        for (DecodedFrame frame : mEntries.values()) {
+            frame.release();
+        }
+        mEntries.clear();
+        mBytesInUse = 0;
+    }
+
+    public synchronized long getBytesInUse() {
+        return mBytesInUse;
+    }
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    private void trimToBudget(Key newest) {
+        Iterator<Map.Entry<Key, DecodedFrame>> it = mEntries.entrySet().iterator();
+        while (mBytesInUse > mByteBudget && it.hasNext()) {
+            Map.Entry<Key, DecodedFrame> e = it.next();
+            // never evict the entry that was just inserted, it is about to be uploaded
+            if (e.getKey().equals(newest)) {
+                continue;
+            }
+            Log.d(TAG, "evicting " + e.getKey().mPath);
+            mBytesInUse -= e.getValue().getSizeBytes();
+            e.getValue().release();
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.android.gl2jni;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Latest value handoff between one producer thread and one consumer thread,
+ * a triple buffer. The producer owns one slot, the consumer another, and the
+ * third sits in the middle; publishing and picking up are a single atomic
+ * swap of the middle slot's index, so neither side ever blocks or waits for
+ * the other, and values published faster than they are consumed are dropped
+ * except for the newest.
+ * <p>
+ * Items given back by {@link #publish} are out of the consumer's hands
+ * (never picked up, or picked up and since replaced) and may be reused or
+ * released by the producer. The item {@link #acquire} returns stays the
+ * consumer's until its next acquire.
+ */
+public final class FrameMailbox<T> {
+    private static final int INDEX_MASK = 3;
+    // set on the middle index while it holds an item the consumer has not seen
+    private static final int FRESH = 4;
+
+    private final Object[] mSlots = new Object[3];
+    private final AtomicInteger mMiddle = new AtomicInteger(1);
+    // producer thread only
+    private int mBack = 0;
+    // consumer thread only
+    private int mFront = 2;
+
+    /**
+     * Makes item the newest value. Returns the item it displaced from the
+     * middle slot, or null; the consumer no longer references it.
+     */
+    @SuppressWarnings("unchecked")
+    public T publish(T item) {
+        mSlots[mBack] = item;
+        // the volatile write orders the slot store before the index becomes visible
+        mBack = mMiddle.getAndSet(mBack | FRESH) & INDEX_MASK;
+        T displaced = (T) mSlots[mBack];
+        mSlots[mBack] = null;
+        return displaced;
+    }
+
+    /** The newest published item, or the previous one again if nothing new arrived; null before the first publish. */
+    @SuppressWarnings("unchecked")
+    public T acquire() {
+        if ((mMiddle.get() & FRESH) != 0) {
+            mFront = mMiddle.getAndSet(mFront) & INDEX_MASK;
+        }
+        return (T) mSlots[mFront];
+    }
+
+    /** Whether acquire would return a new item. Any thread. */
+    public boolean hasFresh() {
+        return (mMiddle.get() & FRESH) != 0;
+    }
+}
@@ -0,0 +1,278 @@
+package com.android.gl2jni;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Where the frame budget goes. Every pipeline stage has lock free nanosecond
+ * counters and a latency histogram that any thread may record into; the stages
+ * recorded on the render thread between {@link #beginFrame} and
+ * {@link #endFrame} are also kept per frame in a ring of the last frames.
+ * <p>
+ * Recording allocates nothing. Histograms are log linear with 8 buckets per
+ * power of two, so percentiles are exact to within 12.5%.
+ */
+public class FrameMetrics {
+    public final static String TAG = "FrameMetrics";
+
+    public enum Stage {
+        /** File decode into BGR. */
+        DECODE,
+        /** BGR to I420 conversion of a decoded frame. */
+        CONVERT,
+        /** Texture uploads of every input that changed. */
+        UPLOAD,
+        /** Compositor draw calls (CPU side submission). */
+        DRAW,
+        /** Readback queueing plus delivery of finished frames. */
+        READBACK,
+        /** Sink thread, one sample per sink and frame. */
+        ENCODE
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private static final class StageCounters {
+        final AtomicLong mCount = new AtomicLong();
+        final AtomicLong mTotalNs = new AtomicLong();
+        final AtomicLong mMaxNs = new AtomicLong();
+        final AtomicLongArray mHistogram = new AtomicLongArray(BUCKETS);
+    }
+
+    /** Aggregate of one stage at snapshot time. */
+    public static final class StageStats {
+        public final Stage mStage;
+        public final long mCount;
+        public final long mTotalNs;
+        public final long mMaxNs;
+        public final long mP50Ns;
+        public final long mP95Ns;
+        public final long mP99Ns;
+
+        StageStats(Stage stage, long count, long totalNs, long maxNs, long p50Ns, long p95Ns, long p99Ns) {
+            mStage = stage;
+            mCount = count;
+            mTotalNs = totalNs;
+            mMaxNs = maxNs;
+            mP50Ns = p50Ns;
+            mP95Ns = p95Ns;
+            mP99Ns = p99Ns;
+        }
+
+        public long getMeanNs() {
+            return mCount == 0 ? 0 : mTotalNs / mCount;
+        }
+    }
+
+    /** One render thread frame; stage times are indexed by Stage.ordinal(), 0 when not recorded. */
+    public static final class FrameRecord {
+        public final long mFrameId;
+        public final long mStartNs;
+        public final long mTotalNs;
+        private final long[] mStageNs;
+
+        FrameRecord(long frameId, long startNs, long totalNs, long[] stageNs) {
+            mFrameId = frameId;
+            mStartNs = startNs;
+            mTotalNs = totalNs;
+            mStageNs = stageNs;
+        }
+
+        public long getStageNs(Stage stage) {
+            return mStageNs[stage.ordinal()];
+        }
+    }
+
+    public static final class Snapshot {
+        public final List<StageStats> mStages;
+        public final List<FrameRecord> mFrames;
+
+        Snapshot(List<StageStats> stages, List<FrameRecord> frames) {
+            mStages = Collections.unmodifiableList(stages);
+            mFrames = Collections.unmodifiableList(frames);
+        }
+    }
+
+    // frame id, start, total, then one slot per stage
+    private static final int RECORD_FIELDS = 3 + STAGES.length;
+
+    private final StageCounters[] mCounters = new StageCounters[STAGES.length];
+    private final int mRingSize;
+    private final AtomicLongArray mRing;
+    // per slot sequence, odd while the render thread is writing it
+    private final AtomicLongArray mRingSeq;
+    private final AtomicLong mFramesRecorded = new AtomicLong();
+
+    // render thread only
+    private final long[] mCurrentStageNs = new long[STAGES.length];
+    private Thread mFrameThread;
+    private long mFrameId;
+    private long mFrameStartNs;
+
+    public FrameMetrics(int ringSize) {
+        for (int i = 0; i < mCounters.length; i++) {
+            mCounters[i] = new StageCounters();
+        }
+        mRingSize = ringSize;
+        mRing = new AtomicLongArray(ringSize * RECORD_FIELDS);
+        mRingSeq = new AtomicLongArray(ringSize);
+    }
+
+    /** Starts a frame record on the calling (render) thread. */
+    public void beginFrame(long frameId) {
+        mFrameThread = Thread.currentThread();
+        mFrameId = frameId;
+        mFrameStartNs = System.nanoTime();
+        for (int i = 0; i < mCurrentStageNs.length; i++) {
+            mCurrentStageNs[i] = 0;
+        }
+    }
+
+    /** Closes the frame started by beginFrame and publishes it to the ring. */
+    public void endFrame() {
+        long total = System.nanoTime() - mFrameStartNs;
+        long n = mFramesRecorded.get();
+        int slot = (int) (n % mRingSize);
+        int base = slot * RECORD_FIELDS;
+        mRingSeq.incrementAndGet(slot);
+        mRing.lazySet(base, mFrameId);
+        mRing.lazySet(base + 1, mFrameStartNs);
+        mRing.lazySet(base + 2, total);
+        for (int i = 0; i < mCurrentStageNs.length; i++) {
+            mRing.lazySet(base + 3 + i, mCurrentStageNs[i]);
+        }
+        mRingSeq.incrementAndGet(slot);
+        mFramesRecorded.set(n + 1);
+        mFrameThread = null;
+    }
+
+    /** Records one sample of stage; safe from any thread. */
+    public void record(Stage stage, long ns) {
+        StageCounters c = mCounters[stage.ordinal()];
+        c.mCount.incrementAndGet();
+        c.mTotalNs.addAndGet(ns);
+        long max = c.mMaxNs.get();
+        while (ns > max && !c.mMaxNs.compareAndSet(max, ns)) {
+            max = c.mMaxNs.get();
+        }
+        c.mHistogram.incrementAndGet(bucketOf(ns));
+        if (Thread.currentThread() == mFrameThread) {
+            mCurrentStageNs[stage.ordinal()] += ns;
+        }
+    }
+
+    static int bucketOf(long ns) {
+        if (ns < SUB_BUCKETS) {
+            return (int) Math.max(ns, 0);
+        }
+        int octave = 63 - Long.numberOfLeadingZeros(ns);
+        int sub = (int) (ns >>> (octave - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (octave - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /** Largest value that falls into bucket, reported as the percentile value. */
+    static long bucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int octave = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long width = 1L << (octave - SUB_BUCKET_BITS);
+        return (1L << octave) + (sub + 1) * width - 1;
+    }
+
+    public Snapshot snapshot() {
+        List<StageStats> stages = new ArrayList<>(STAGES.length);
+        long[] histogram = new long[BUCKETS];
+        for (Stage stage : STAGES) {
+            StageCounters c = mCounters[stage.ordinal()];
+            long count = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                histogram[b] = c.mHistogram.get(b);
+                count += histogram[b];
+            }
+            stages.add(new StageStats(stage, count, c.mTotalNs.get(), c.mMaxNs.get(),
+                    percentile(histogram, count, 0.50), percentile(histogram, count, 0.95), percentile(histogram, count, 0.99)));
+        }
+
+        List<FrameRecord> frames = new ArrayList<>(mRingSize);
+        long recorded = mFramesRecorded.get();
+        long first = Math.max(0, recorded - mRingSize);
+        for (long n = first; n < recorded; n++) {
+            int slot = (int) (n % mRingSize);
+            int base = slot * RECORD_FIELDS;
+            long seq = mRingSeq.get(slot);
+            long[] stageNs = new long[STAGES.length];
+            long frameId = mRing.get(base);
+            long start = mRing.get(base + 1);
+            long total = mRing.get(base + 2);
+            for (int i = 0; i < stageNs.length; i++) {
+                stageNs[i] = mRing.get(base + 3 + i);
+            }
+            // skip a slot the render thread was rewriting meanwhile
+            if ((seq & 1) == 0 && mRingSeq.get(slot) == seq) {
+                frames.add(new FrameRecord(frameId, start, total, stageNs));
+            }
+        }
+        return new Snapshot(stages, frames);
+    }
+
+    private static long percentile(long[] histogram, long count, double fraction) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int b = 0; b < histogram.length; b++) {
+            seen += histogram[b];
+            if (seen >= rank) {
+                return bucketUpperBound(b);
+            }
+        }
+        return bucketUpperBound(histogram.length - 1);
+    }
+
+    /** Writes the stage table and the frame ring as CSV, e.g. on a debug intent. */
+    public void dump(File file) throws IOException {
+        Snapshot snapshot = snapshot();
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            out.println("stage,count,mean_ns,p50_ns,p95_ns,p99_ns,max_ns");
+            for (StageStats s : snapshot.mStages) {
+                out.println(String.format(Locale.US, "%s,%d,%d,%d,%d,%d,%d",
+                        s.mStage, s.mCount, s.getMeanNs(), s.mP50Ns, s.mP95Ns, s.mP99Ns, s.mMaxNs));
+            }
+            out.println();
+            StringBuilder header = new StringBuilder("frame,start_ns,total_ns");
+            for (Stage stage : STAGES) {
+                header.append(',').append(stage.name().toLowerCase(Locale.US)).append("_ns");
+            }
+            out.println(header);
+            for (FrameRecord f : snapshot.mFrames) {
+                StringBuilder line = new StringBuilder();
+                line.append(f.mFrameId).append(',').append(f.mStartNs).append(',').append(f.mTotalNs);
+                for (Stage stage : STAGES) {
+                    line.append(',').append(f.getStageNs(stage));
+                }
+                out.println(line);
+            }
+        } finally {
+            out.close();
+        }
+        Log.d(TAG, "dumped " + snapshot.mFrames.size() + " frames to " + file);
+    }
+}
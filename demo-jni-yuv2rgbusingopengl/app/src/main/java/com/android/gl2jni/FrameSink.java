@@ -0,0 +1,17 @@
+package com.android.gl2jni;
+
+import java.io.IOException;
+
+/**
+ * A consumer of composited frames. Sinks run on the sink stage thread, one frame
+ * at a time, so implementations may keep per-sink scratch state without locking.
+ */
+public interface FrameSink {
+    /** Encodes or stores the frame and returns the number of bytes written. */
+    long consume(OutputFrame frame) throws IOException;
+
+    String getName();
+
+    /** Releases scratch buffers, called once when the stage shuts down. */
+    void close();
+}
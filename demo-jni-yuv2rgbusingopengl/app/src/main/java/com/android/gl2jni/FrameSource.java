@@ -0,0 +1,28 @@
+package com.android.gl2jni;
+
+/**
+ * An input stream for the merger. Implementations hand out the latest decoded
+ * frame and only pay the decode cost again when the underlying input changed.
+ */
+public interface FrameSource {
+    /** Told when a source has a frame newer than the one acquire last returned. */
+    interface Listener {
+        /** Called on the producing thread; must not block. */
+        void onFrameAvailable(FrameSource source);
+    }
+
+    /**
+     * Returns the current frame, or null if the input could not be decoded or
+     * a newer frame is still being decoded; callers keep showing what they had.
+     * The frame stays valid until the next call on the GL thread.
+     */
+    DecodedFrame acquire();
+
+    /** One of the DecodedFrame.FORMAT_ constants, fixed for the lifetime of the source. */
+    int getFormat();
+
+    String getName();
+
+    /** Replaces the listener, null stops notifications. */
+    void setListener(Listener listener);
+}
@@ -78,6 +78,8 @@ class GL2JNIView extends GLSurfaceView {
         init(false, 0, 0);
         mGLMergerWithShaderObj= new GLMergerWithShader();
         mGLMergerWithShaderObj.SetAssetContext(context);
+        // a frame per new input instead of one per vsync
+        mGLMergerWithShaderObj.SetRenderRequester(this::requestRender);
     }
 
     public GL2JNIView(Context context, boolean translucent, int depth, int stencil) {
@@ -112,16 +114,31 @@ class GL2JNIView extends GLSurfaceView {
 
         /* Set the renderer responsible for frame rendering */
         setRenderer(new Renderer(getContext()));
+
+        /* Render only when asked to: the merger requests a frame when one of
+         * its sources has a new one, and the surface still gets redrawn on
+         * creation and resize.
+         */
+        setRenderMode(RENDERMODE_WHEN_DIRTY);
     }
 
     private static class ContextFactory implements GLSurfaceView.EGLContextFactory {
         private static int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
 
         public EGLContext createContext(EGL10 egl, EGLDisplay display, EGLConfig eglConfig) {
-            Log.w(TAG, "creating OpenGL ES 2.0 context");
+            /* Prefer 3.0 so the readback can use pixel pack buffers and fences,
+             * the merger falls back to its 2.0 path when only 2.0 is available.
+             */
+            Log.w(TAG, "creating OpenGL ES 3.0 context");
             checkEglError("Before eglCreateContext", egl);
-            int[] attrib_list = {EGL_CONTEXT_CLIENT_VERSION, 2, EGL10.EGL_NONE};
-            EGLContext context = egl.eglCreateContext(display, eglConfig, EGL10.EGL_NO_CONTEXT, attrib_list);
+            int[] attrib_list3 = {EGL_CONTEXT_CLIENT_VERSION, 3, EGL10.EGL_NONE};
+            EGLContext context = egl.eglCreateContext(display, eglConfig, EGL10.EGL_NO_CONTEXT, attrib_list3);
+            if (context == null || context == EGL10.EGL_NO_CONTEXT) {
+                while (egl.eglGetError() != EGL10.EGL_SUCCESS) ;
+                Log.w(TAG, "creating OpenGL ES 2.0 context");
+                int[] attrib_list = {EGL_CONTEXT_CLIENT_VERSION, 2, EGL10.EGL_NONE};
+                context = egl.eglCreateContext(display, eglConfig, EGL10.EGL_NO_CONTEXT, attrib_list);
+            }
             checkEglError("After eglCreateContext", egl);
             return context;
         }
@@ -344,10 +361,8 @@ class GL2JNIView extends GLSurfaceView {
         }
 
         public void onDrawFrame(GL10 gl) {
-            Log.d(TAG,"onDrawFrame entry");
 //            GL2JNILib.step();
             mGLMergerWithShaderObj.GLDrawFrame();
-            Log.d(TAG,"onDrawFrame exit");
         }
 
         public void onSurfaceChanged(GL10 gl, int width, int height) {
@@ -0,0 +1,247 @@
+package com.android.gl2jni;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * What the current context can do, queried once when the surface is created.
+ * glGet* is synchronous and may stall or flush the pipeline on some drivers, so
+ * nothing on the frame path asks GL directly; it reads this snapshot instead.
+ * <p>
+ * Immutable; a new snapshot is taken for every new context.
+ */
+public final class GLCapabilities {
+    public final static String TAG = "GLCapabilities";
+
+    private final String mVersion;
+    private final String mVendor;
+    private final String mRenderer;
+    private final String mShadingLanguageVersion;
+    private final int mMajorVersion;
+    private final int mMinorVersion;
+    private final Set<String> mExtensions;
+    private final int mMaxTextureImageUnits;
+    private final int mMaxCombinedTextureImageUnits;
+    private final int mMaxTextureSize;
+    private final int mMaxRenderbufferSize;
+    private final int mMaxArrayTextureLayers;
+    private final boolean mHighpFragment;
+    private final int mProgramBinaryFormats;
+
+    private GLCapabilities(String version, String vendor, String renderer, String shadingLanguageVersion,
+                           int majorVersion, int minorVersion, Set<String> extensions,
+                           int maxTextureImageUnits, int maxCombinedTextureImageUnits,
+                           int maxTextureSize, int maxRenderbufferSize, int maxArrayTextureLayers,
+                           boolean highpFragment, int programBinaryFormats) {
+        mVersion = version;
+        mVendor = vendor;
+        mRenderer = renderer;
+        mShadingLanguageVersion = shadingLanguageVersion;
+        mMajorVersion = majorVersion;
+        mMinorVersion = minorVersion;
+        mExtensions = extensions;
+        mMaxTextureImageUnits = maxTextureImageUnits;
+        mMaxCombinedTextureImageUnits = maxCombinedTextureImageUnits;
+        mMaxTextureSize = maxTextureSize;
+        mMaxRenderbufferSize = maxRenderbufferSize;
+        mMaxArrayTextureLayers = maxArrayTextureLayers;
+        mHighpFragment = highpFragment;
+        mProgramBinaryFormats = programBinaryFormats;
+    }
+
+    /** Queries the context current on the calling thread. */
+    public static GLCapabilities query() {
+        String version = nonNull(GLES20.glGetString(GLES20.GL_VERSION));
+        int[] majorMinor = parseVersion(version);
+
+        Set<String> extensions = new HashSet<>();
+        for (String extension : nonNull(GLES20.glGetString(GLES20.GL_EXTENSIONS)).split(" ")) {
+            if (!extension.isEmpty()) {
+                extensions.add(extension);
+            }
+        }
+
+        int[] value = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_IMAGE_UNITS, value, 0);
+        int maxTextureImageUnits = value[0];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_COMBINED_TEXTURE_IMAGE_UNITS, value, 0);
+        int maxCombinedTextureImageUnits = value[0];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, value, 0);
+        int maxTextureSize = value[0];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_RENDERBUFFER_SIZE, value, 0);
+        int maxRenderbufferSize = value[0];
+        int maxArrayTextureLayers = 0;
+        int programBinaryFormats = 0;
+        if (majorMinor[0] >= 3) {
+            GLES20.glGetIntegerv(GLES30.GL_MAX_ARRAY_TEXTURE_LAYERS, value, 0);
+            maxArrayTextureLayers = value[0];
+            // ES 3 has the entry points but may support no format at all
+            GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, value, 0);
+            programBinaryFormats = value[0];
+        }
+
+        // a highp fragment float reports a non zero precision, ES2 GPUs may lack it entirely
+        int[] range = new int[2];
+        int[] precision = new int[1];
+        GLES20.glGetShaderPrecisionFormat(GLES20.GL_FRAGMENT_SHADER, GLES20.GL_HIGH_FLOAT, range, 0, precision, 0);
+        boolean highpFragment = precision[0] != 0;
+
+        GLCapabilities caps = new GLCapabilities(version,
+                nonNull(GLES20.glGetString(GLES20.GL_VENDOR)),
+                nonNull(GLES20.glGetString(GLES20.GL_RENDERER)),
+                nonNull(GLES20.glGetString(GLES20.GL_SHADING_LANGUAGE_VERSION)),
+                majorMinor[0], majorMinor[1], Collections.unmodifiableSet(extensions),
+                maxTextureImageUnits, maxCombinedTextureImageUnits,
+                maxTextureSize, maxRenderbufferSize, maxArrayTextureLayers,
+                highpFragment, programBinaryFormats);
+        GLMergerWithShader.checkGlError("GLCapabilities query");
+        Log.d(TAG, caps.toString());
+        return caps;
+    }
+
+    private static String nonNull(String s) {
+        return s != null ? s : "";
+    }
+
+    /** "OpenGL ES 3.2 V@..." gives {3, 2}; anything unparsable is treated as 2.0. */
+    static int[] parseVersion(String version) {
+        String prefix = "OpenGL ES ";
+        int i = version.indexOf(prefix);
+        if (i >= 0) {
+            i += prefix.length();
+            int dot = version.indexOf('.', i);
+            if (dot > i) {
+                int end = dot + 1;
+                while (end < version.length() && Character.isDigit(version.charAt(end))) {
+                    end++;
+                }
+                try {
+                    return new int[] {
+                            Integer.parseInt(version.substring(i, dot)),
+                            end > dot + 1 ? Integer.parseInt(version.substring(dot + 1, end)) : 0
+                    };
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "unparsable GL_VERSION " + version);
+                }
+            }
+        }
+        return new int[] {2, 0};
+    }
+
+    public boolean isAtLeast(int major, int minor) {
+        return mMajorVersion > major || (mMajorVersion == major && mMinorVersion >= minor);
+    }
+
+    public boolean hasExtension(String name) {
+        return mExtensions.contains(name);
+    }
+
+    /** Immutable glTexStorage2D with sized R8/RGB8 formats. */
+    public boolean hasTexStorage() {
+        return isAtLeast(3, 0);
+    }
+
+    /** GL_RED uploads for single channel planes; ES2 falls back to GL_LUMINANCE. */
+    public boolean hasRedTextures() {
+        return isAtLeast(3, 0);
+    }
+
+    /**
+     * Pixel pack buffers with fences and glMapBufferRange, as the asynchronous
+     * readback uses them. GL_NV_pixel_buffer_object alone is not enough on ES2,
+     * the Java bindings have no way to map the buffer there.
+     */
+    public boolean hasPixelBufferObjects() {
+        return isAtLeast(3, 0);
+    }
+
+    public boolean hasTextureArrays() {
+        return isAtLeast(3, 0) && mMaxArrayTextureLayers > 0;
+    }
+
+    /** Half float textures that can be sampled with linear filtering. */
+    public boolean hasHalfFloatTextures() {
+        return isAtLeast(3, 0) || (hasExtension("GL_OES_texture_half_float") && hasExtension("GL_OES_texture_half_float_linear"));
+    }
+
+    /** Half float color attachments, e.g. for a higher precision intermediate target. */
+    public boolean hasHalfFloatRenderTargets() {
+        return hasExtension("GL_EXT_color_buffer_half_float") || hasExtension("GL_EXT_color_buffer_float");
+    }
+
+    /**
+     * glGetProgramBinary/glProgramBinary with at least one binary format. The
+     * OES_get_program_binary variant on ES2 has no Java binding.
+     */
+    public boolean hasProgramBinaries() {
+        return isAtLeast(3, 0) && mProgramBinaryFormats > 0;
+    }
+
+    public boolean hasHighpFragment() {
+        return mHighpFragment;
+    }
+
+    public String getVersion() {
+        return mVersion;
+    }
+
+    public String getVendor() {
+        return mVendor;
+    }
+
+    public String getRenderer() {
+        return mRenderer;
+    }
+
+    public String getShadingLanguageVersion() {
+        return mShadingLanguageVersion;
+    }
+
+    public int getMajorVersion() {
+        return mMajorVersion;
+    }
+
+    public int getMinorVersion() {
+        return mMinorVersion;
+    }
+
+    public Set<String> getExtensions() {
+        return mExtensions;
+    }
+
+    public int getMaxTextureImageUnits() {
+        return mMaxTextureImageUnits;
+    }
+
+    public int getMaxCombinedTextureImageUnits() {
+        return mMaxCombinedTextureImageUnits;
+    }
+
+    public int getMaxTextureSize() {
+        return mMaxTextureSize;
+    }
+
+    public int getMaxRenderbufferSize() {
+        return mMaxRenderbufferSize;
+    }
+
+    public int getMaxArrayTextureLayers() {
+        return mMaxArrayTextureLayers;
+    }
+
+    @Override
+    public String toString() {
+        return "ES " + mMajorVersion + "." + mMinorVersion + " (" + mVersion + "), " + mVendor + " " + mRenderer
+                + ", GLSL " + mShadingLanguageVersion
+                + ", units " + mMaxTextureImageUnits + "/" + mMaxCombinedTextureImageUnits
+                + ", max texture " + mMaxTextureSize + ", max renderbuffer " + mMaxRenderbufferSize
+                + ", array layers " + mMaxArrayTextureLayers + ", highp " + mHighpFragment
+                + ", binary formats " + mProgramBinaryFormats
+                + ", " + mExtensions.size() + " extensions";
+    }
+}
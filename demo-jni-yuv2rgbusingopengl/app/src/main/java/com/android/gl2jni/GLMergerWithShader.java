@@ -1,13 +1,6 @@
 package com.android.gl2jni;
-import static android.opengl.GLES20.GL_BUFFER_SIZE;
-import static android.opengl.GLES20.GL_BUFFER_USAGE;
-import static android.opengl.GLES20.GL_MAX_RENDERBUFFER_SIZE;
-import static android.opengl.GLES20.GL_MAX_TEXTURE_IMAGE_UNITS;
-import static android.opengl.GLES20.GL_MAX_TEXTURE_SIZE;
-import static android.opengl.GLES20.glGetIntegerv;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.opengl.GLES20;
 import android.opengl.GLUtils;
@@ -15,233 +8,117 @@ import android.os.Environment;
 import android.provider.MediaStore;
 import android.util.Log;
 
-import org.opencv.core.CvType;
-import org.opencv.core.Mat;
-import org.opencv.imgcodecs.Imgcodecs;
-import org.opencv.imgproc.Imgproc;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class GLMergerWithShader {
     public final static String TAG = "GLMergerWithShader";
-    Mat outputReadpixelInMat;
-    Mat mat_RGBA2YUV_I420;
-    Mat testInputImgJPEGmat;
-    Mat testConvertedImgYUVmat;
+    // decoded inputs are kept across frames, enough for the default mosaic with room to spare
+    private static final long FRAME_CACHE_BUDGET_BYTES = 64L * 1024 * 1024;
+    // free buffers retained per frame size: the default inputs plus spares for re-decodes
+    private static final int FRAME_POOL_BUFFERS_PER_SIZE = 6;
+    private final FrameCache mFrameCache = new FrameCache(FRAME_CACHE_BUDGET_BYTES);
+    private final DirectBufferPool mBufferPool = new DirectBufferPool(FRAME_POOL_BUFFERS_PER_SIZE);
+    // per stage timings plus the last few seconds of frames at 60 fps
+    private static final int FRAME_METRICS_RING_SIZE = 300;
+    private final FrameMetrics mMetrics = new FrameMetrics(FRAME_METRICS_RING_SIZE);
+    private long mFrameNumber;
+    private static final String INPUT_DIR = "/storage/emulated/0/opencvTesting/";
+    // decodes run beside the GL thread, one task per changed input, idle workers steal queued ones
+    private final ForkJoinPool mDecodePool = createDecodePool();
+    // frames in flight between glReadPixels and the CPU consumer
+    private static final int READBACK_RING_SIZE = 3;
+    private AsyncReadback mReadback;
+    // composited frames waiting for the sink thread
+    private static final int SINK_QUEUE_CAPACITY = 4;
+    private static final String PROGRAM_CACHE_DIR = "programs";
+    private static final String OUTPUT_DIR = "/storage/emulated/0/opencvTesting/mygltest/";
+    private final SinkStage mSinkStage;
+    // batch mode writes every frame, waiting for the GPU and the sinks instead of dropping
+    private final boolean mBatch;
     private int mScreenWidth  = 1920;
     private int mScreenHeight = 1080;
-    private int mProgramId;
-    private int aPosition;
-    private int aTexCoord;
-    private int rubyTexture1Y;
-    private int rubyTexture1U;
-    private int rubyTexture1V;
-    private int rubyTexture2Y;
-    private int rubyTexture2U;
-    private int rubyTexture2V;
-    private int rubyTexture3Y;
-    private int rubyTexture3U;
-    private int rubyTexture3V;
-    private int rubyTexture4Y;
-    private int rubyTexture4U;
-    private int rubyTexture4V;
-    private int rubyTexture5;
-
-    private int rubyTextureSize;
-    private int texture_map1;
-    private int texture_map2;
-    private int texture_map3;
-    private int texture_map4;
-    private int texture_map5;
-    private int texture_map6;
-    private int texture_map7;
-    private int texture_map8;
-    private int texture_map9;
-    private int texture_map10;
-    private int texture_map11;
-    private int texture_map12;
-    private int texture_map13;
-    private FloatBuffer mPosTriangleVertices;
-    private FloatBuffer mTexVertices;
+    // what goes where, set from any thread and applied on the GL thread
+    private MosaicLayout mLayout;
+    private FrameSource[] mTileSources;
+    private boolean mMosaicChanged;
+    // inputs are uploaded once even when several tiles show them
+    private FrameSource[] mInputs;
+    private TextureManager.Stream[][] mInputStreams;
+    private TextureManager mTextures;
+    private MosaicCompositor mCompositor;
+    // what the current context supports, queried once per context
+    private GLCapabilities mCaps;
     private Context mAssetContext;
+    // on demand rendering: sources announce new frames, one render request is outstanding at a time
+    private volatile Runnable mRenderRequester;
+    private final AtomicBoolean mRenderPending = new AtomicBoolean();
+    private final AtomicLong mCoalescedRequests = new AtomicLong();
+    private final FrameSource.Listener mFrameListener = source -> requestRender();
+    // set when the next frame differs from the last one sent to the sinks even without new input
+    private boolean mOutputDirty = true;
+    private long mSkippedFrames;
 //    private ByteBuffer mglReadPixelBuf;                       // used by saveFrame
-    private static final float[] gTriangleVertices = {
-            -1.0f, 0.0f,
-            0.0f, -0.0f,
-            -1.0f, 1.0f,
-
-            -1.0f, 1.0f,
-            0.0f,-0.0f,
-            0.0f,1.0f,
-//1st img end
-            -0.0f, -0.0f,
-            1.0f, -0.0f,
-            -0.0f, 1.0f,
-
-            -0.0f, 1.0f,
-            1.0f,-0.0f,
-            1.0f,1.0f,
-//2nd img end
-            -1.0f, -1.0f,
-            0.0f, -1.0f,
-            -1.0f, 0.0f,
-
-            -1.0f, 0.0f,
-            0.0f,-1.0f,
-            0.0f,0.0f,
-//3rd image end
-            -0.0f, -1.0f,
-            1.0f, -1.0f,
-            -0.0f, 0.0f,
-
-            -0.0f, 0.0f,
-            1.0f,-1.0f,
-            1.0f,0.0f
-//4th image end
-    };
-
-public static final float[] gTexVertices = {
-            0.0f, 1.0f,
-            1.0f, 1.0f,
-            0.0f, 0.0f,
-
-            0.0f, 0.0f,
-            1.0f,1.0f,
-            1.0f,0.0f,
-//1st img end
-            0.0f, 1.0f,
-            1.0f, 1.0f,
-            0.0f, 0.0f,
-
-            0.0f, 0.0f,
-            1.0f,1.0f,
-            1.0f,0.0f,
-//2nd img end
-            0.0f, 1.0f,
-            1.0f, 1.0f,
-            0.0f, 0.0f,
-
-            0.0f, 0.0f,
-            1.0f,1.0f,
-            1.0f,0.0f,
-//3rd img end
-            0.0f, 1.0f,
-            1.0f, 1.0f,
-            0.0f, 0.0f,
-
-            0.0f, 0.0f,
-            1.0f,1.0f,
-            1.0f,0.0f
-            //4th img end
-    };
-
-    private static final String MERGE_VERTEX_SHADER =
-                    "attribute vec2 aPosition;\n" +
-                    "attribute vec2 aTexCoord;\n" +
-                    "varying vec2 vTexCoord;\n" +
-                    "varying vec2 aPositionTexCoord;\n" +
-                    "void main() {\n" +
-                    "vTexCoord = aTexCoord;\n" +
-                    "aPositionTexCoord = vec2(aPosition.x,-aPosition.y);\n" +
-                    "gl_Position = vec4(aPosition.x,-aPosition.y, 0.0, 1.0);\n" +
-                    "}\n";
-
-    private static final String MERGE_FRAGMENT_SHADER =
-                    "#ifdef GL_FRAGMENT_PRECISION_HIGH\n" +
-                    "precision highp float;\n" +
-                    "#else\n" +
-                    "precision mediump float;\n" +
-                    "#endif\n" +
-                    "uniform sampler2D rubyTexture1Y;\n" +
-                    "uniform sampler2D rubyTexture1U;\n" +
-                    "uniform sampler2D rubyTexture1V;\n" +
-                    "uniform sampler2D rubyTexture2Y;\n" +
-                    "uniform sampler2D rubyTexture2U;\n" +
-                    "uniform sampler2D rubyTexture2V;\n" +
-                    "uniform sampler2D rubyTexture3Y;\n" +
-                    "uniform sampler2D rubyTexture3U;\n" +
-                    "uniform sampler2D rubyTexture3V;\n" +
-                    "uniform sampler2D rubyTexture4Y;\n" +
-                    "uniform sampler2D rubyTexture4U;\n" +
-                    "uniform sampler2D rubyTexture4V;\n" +
-                    "uniform sampler2D rubyTexture5;\n" +
-                    "varying vec2 vTexCoord;\n" +
-                    "varying vec2 aPositionTexCoord;\n" +
-                    "void main() {\n" +
-                            "float r1,g1,b1,y1,u1,v1;\n" +
-                            "float r2,g2,b2,y2,u2,v2;\n" +
-                            "float r3,g3,b3,y3,u3,v3;\n" +
-                            "float r4,g4,b4,y4,u4,v4;\n" +
-                            "y1 = texture2D(rubyTexture1Y, vTexCoord).r;\n" +
-                            "u1 = texture2D(rubyTexture1U, vTexCoord).r;\n" +
-                            "v1 = texture2D(rubyTexture1V, vTexCoord).r;\n"+
-                            "y1 = 1.1643*(y1-0.0625);\n"+
-                            "u1 = u1-0.5;\n" +
-                            "v1 = v1-0.5;\n" +
-                            "r1 = y1+1.5958*v1;\n" +
-                            "g1 = y1-0.39173*u1-0.81290*v1;\n" +
-                            "b1 = y1+2.017*u1;\n" +
-
-                            "y2 = texture2D(rubyTexture2Y, vTexCoord).r;\n" +
-                            "u2 = texture2D(rubyTexture2U, vTexCoord).r;\n" +
-                            "v2 = texture2D(rubyTexture2V, vTexCoord).r;\n"+
-                            "y2 = 1.1643*(y2-0.0625);\n"+
-                            "u2 = u2-0.5;\n" +
-                            "v2 = v2-0.5;\n" +
-                            "r2 = y2+1.5958*v2;\n" +
-                            "g2 = y2-0.39173*u2-0.81290*v2;\n" +
-                            "b2 = y2+2.017*u2;\n" +
-
-                            "y3 = texture2D(rubyTexture3Y, vTexCoord).r;\n" +
-                            "u3 = texture2D(rubyTexture3U, vTexCoord).r;\n" +
-                            "v3 = texture2D(rubyTexture3V, vTexCoord).r;\n"+
-                            "y3 = 1.1643*(y3-0.0625);\n"+
-                            "u3 = u3-0.5;\n" +
-                            "v3 = v3-0.5;\n" +
-                            "r3 = y3+1.5958*v3;\n" +
-                            "g3 = y3-0.39173*u3-0.81290*v3;\n" +
-                            "b3 = y3+2.017*u3;\n" +
-
-                            "y4 = texture2D(rubyTexture4Y, vTexCoord).r;\n" +
-                            "u4 = texture2D(rubyTexture4U, vTexCoord).r;\n" +
-                            "v4 = texture2D(rubyTexture4V, vTexCoord).r;\n"+
-                            "y4 = 1.1643*(y4-0.0625);\n"+
-                            "u4 = u4-0.5;\n" +
-                            "v4 = v4-0.5;\n" +
-                            "r4 = y4+1.5958*v4;\n" +
-                            "g4 = y4-0.39173*u4-0.81290*v4;\n" +
-                            "b4 = y4+2.017*u4;\n" +
-
-                            "if((aPositionTexCoord.x > 0.0)&&(aPositionTexCoord.y > 0.0))\n" +
-                            "gl_FragColor = vec4(b1,g1,r1, 1.0);\n" +
-                            "if((aPositionTexCoord.x > 0.0)&&(aPositionTexCoord.y < 0.0))\n" +
-                            "gl_FragColor = vec4(b2,g2,r2, 1.0);\n" +
-                            "if((aPositionTexCoord.x < 0.0)&&(aPositionTexCoord.y < 0.0))\n" +
-                            "gl_FragColor = vec4(b3,g3,r3, 1.0);\n" +
-                            "if((aPositionTexCoord.x < 0.0)&&(aPositionTexCoord.y > 0.0))\n" +
-//                            "gl_FragColor = vec4(b4,g4,r4, 1.0);\n" +
-//                            "gl_FragColor = vec4(b3,g3,r3, 1.0);\n" +
-                            "gl_FragColor.bgra = texture2D(rubyTexture5, vTexCoord);\n" +
-                    "}\n";
-
-    private static final int FLOAT_SIZE_BYTES = 4;
+
     public GLMergerWithShader(){
+        this(false);
+    }
+
+    /** batch selects lossless output for offscreen processing, see HeadlessRenderer. */
+    public GLMergerWithShader(boolean batch){
+        this(batch, FileSinks.jpeg(new File(OUTPUT_DIR), "myglreadpixel.jpg", 100),
+                FileSinks.rawI420(new File(OUTPUT_DIR), "Javmat_RGBA2YUV_I420.yuv"));
+        // batch output has to show every tile, so decode on the GL thread instead of handing it the previous image
+        Executor decoder = batch ? null : mDecodePool;
+        FrameSource fourBalls = new FileFrameSource(INPUT_DIR + "four_balls_color_jpg1920x1080.jpg", DecodedFrame.FORMAT_I420, mFrameCache, mBufferPool, mMetrics, decoder);
+        FrameSource apple = new FileFrameSource(INPUT_DIR + "apple-jpg-1920x1080.jpg", DecodedFrame.FORMAT_I420, mFrameCache, mBufferPool, mMetrics, decoder);
+        FrameSource lappy = new FileFrameSource(INPUT_DIR + "lappy-jpg-1920x1080.jpg", DecodedFrame.FORMAT_I420, mFrameCache, mBufferPool, mMetrics, decoder);
+        FrameSource wallpaper = new FileFrameSource(INPUT_DIR + "wpinjpg1920x1080.jpeg", DecodedFrame.FORMAT_BGR, mFrameCache, mBufferPool, mMetrics, decoder);
+        // the quadrants the old merge shader produced, as seen in the saved output
+        SetMosaic(MosaicLayout.of(
+                0.0f, 0.0f, 0.5f, 0.5f,
+                0.5f, 0.0f, 0.5f, 0.5f,
+                0.0f, 0.5f, 0.5f, 0.5f,
+                0.5f, 0.5f, 0.5f, 0.5f),
+                lappy, apple, wallpaper, fourBalls);
+    }
+
+    /**
+     * Writes every frame to sinks and nothing else; frames stay empty until
+     * SetMosaic gives the merger its inputs.
+     */
+    public GLMergerWithShader(boolean batch, FrameSink... sinks){
         Log.d(TAG,"GLMergerWithShader entry");
-        // Setup coordinate buffers
-        mPosTriangleVertices = ByteBuffer.allocateDirect(gTriangleVertices.length*FLOAT_SIZE_BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
-        mPosTriangleVertices.put(gTriangleVertices).position(0);
-        mTexVertices = ByteBuffer.allocateDirect(gTexVertices.length * FLOAT_SIZE_BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
-        mTexVertices.put(gTexVertices).position(0);
+        mBatch = batch;
+        mSinkStage = new SinkStage(SINK_QUEUE_CAPACITY,
+                batch ? SinkStage.OverflowPolicy.BLOCK : SinkStage.OverflowPolicy.DROP_OLDEST, mBufferPool, mMetrics);
+        for (FrameSink sink : sinks) {
+            mSinkStage.addSink(sink);
+        }
+        mSinkStage.start();
         Log.d(TAG,"GLMergerWithShader exit");
     }
 
+    /** One worker per core but the one the GL thread needs, FIFO since tasks are independent. */
+    private static ForkJoinPool createDecodePool() {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        return new ForkJoinPool(threads, pool -> {
+            ForkJoinWorkerThread worker = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            worker.setName("GLMergerDecode-" + worker.getPoolIndex());
+            return worker;
+        }, null, true);
+    }
+
     public void SetAssetContext(Context assetContext){
         Log.d(TAG,"SetAssetContext entry");
         mAssetContext = assetContext;
@@ -304,170 +181,104 @@ public static final float[] gTexVertices = {
     }
 
 
-public Boolean initProgram(){
-    Log.d(TAG,"initProgram entry");
-        mProgramId = createProgram(MERGE_VERTEX_SHADER, MERGE_FRAGMENT_SHADER);
-    if (mProgramId == 0) {
-        throw new RuntimeException("failed creating program");
+    /** Size of the composited frame; what a headless target has to be allocated at. */
+    public int GetOutputWidth() {
+        return mScreenWidth;
+    }
+
+    public int GetOutputHeight() {
+        return mScreenHeight;
+    }
+
+    /** Delivers every frame still in the readback ring to the sinks. GL thread only. */
+    public void FlushOutput() {
+        mReadback.flush();
+    }
+
+    /** Writes out what the sinks still have queued and stops the sink and decode threads. */
+    public void Close() {
+        mDecodePool.shutdown();
+        mSinkStage.shutdown();
+    }
+
+    /**
+     * A source that plays paths one per FileSequenceSource.advance, decoding
+     * through this merger's cache and buffer pool, for batch runs.
+     */
+    public FileSequenceSource CreateFileSequence(List<String> paths, int format) {
+        return new FileSequenceSource(paths, format, mFrameCache, mBufferPool, mMetrics);
+    }
+
+    /** Stage timings and recent frames; snapshot or dump from any thread. */
+    public FrameMetrics GetFrameMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Renders on demand: requester is called (from the producing thread) when
+     * a tile source has a new frame, typically GLSurfaceView::requestRender
+     * with RENDERMODE_WHEN_DIRTY. Announcements that arrive before the GL
+     * thread got to the previous one are folded into that frame. Null goes
+     * back to rendering only when asked.
+     */
+    public synchronized void SetRenderRequester(Runnable requester) {
+        mRenderRequester = requester;
+        if (mTileSources == null) {
+            return;
+        }
+        for (FrameSource source : mTileSources) {
+            source.setListener(requester != null ? mFrameListener : null);
+        }
+    }
+
+    private void requestRender() {
+        Runnable requester = mRenderRequester;
+        if (requester == null) {
+            return;
+        }
+        if (mRenderPending.compareAndSet(false, true)) {
+            requester.run();
+        } else {
+            mCoalescedRequests.incrementAndGet();
+        }
+    }
+
+    /**
+     * Frames drawn while no input had changed since the last output; they are
+     * put on screen but not read back or handed to the sinks. GL thread.
+     */
+    public long GetSkippedFrames() {
+        return mSkippedFrames;
+    }
+
+    /** Frames read back and handed to the sinks so far. GL thread. */
+    public long GetFramesReadBack() {
+        return mReadback != null ? mReadback.getFramesDelivered() : 0;
+    }
+
+    /** New frame announcements folded into a render that was already requested. */
+    public long GetCoalescedRequests() {
+        return mCoalescedRequests.get();
+    }
+
+    /** Capabilities of the current context, null before GLInit. */
+    public GLCapabilities GetCapabilities() {
+        return mCaps;
     }
 
-    aPosition = GLES20.glGetAttribLocation(mProgramId, "aPosition");
-    aTexCoord = GLES20.glGetAttribLocation(mProgramId, "aTexCoord");
-    rubyTexture1Y = GLES20.glGetUniformLocation(mProgramId, "rubyTexture1Y");
-    rubyTexture1U = GLES20.glGetUniformLocation(mProgramId, "rubyTexture1U");
-    rubyTexture1V = GLES20.glGetUniformLocation(mProgramId, "rubyTexture1V");
-    rubyTexture2Y = GLES20.glGetUniformLocation(mProgramId, "rubyTexture2Y");
-    rubyTexture2U = GLES20.glGetUniformLocation(mProgramId, "rubyTexture2U");
-    rubyTexture2V = GLES20.glGetUniformLocation(mProgramId, "rubyTexture2V");
-    rubyTexture3Y = GLES20.glGetUniformLocation(mProgramId, "rubyTexture3Y");
-    rubyTexture3U = GLES20.glGetUniformLocation(mProgramId, "rubyTexture3U");
-    rubyTexture3V = GLES20.glGetUniformLocation(mProgramId, "rubyTexture3V");
-    rubyTexture4Y = GLES20.glGetUniformLocation(mProgramId, "rubyTexture4Y");
-    rubyTexture4U = GLES20.glGetUniformLocation(mProgramId, "rubyTexture4U");
-    rubyTexture4V = GLES20.glGetUniformLocation(mProgramId, "rubyTexture4V");
-    rubyTexture5 = GLES20.glGetUniformLocation(mProgramId, "rubyTexture5");
-    rubyTextureSize = GLES20.glGetUniformLocation(mProgramId, "rubyTextureSize");
-    Log.d(TAG,"initProgram exit");
-    return true;
-}
     public void GLInit(){
         Log.d(TAG,"GLInit entry");
-        int[] textures1 = new int[1];  //create no.of based on our input streams
-        GLES20.glGenTextures(1, textures1,0);
-        texture_map1 = textures1[0];
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map1);
-
-//    glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0,GL_TEXTURE_2D, texture_map, 0);
-
-//    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-
-        int[] textures2 = new int[1];
-        GLES20.glGenTextures(1, textures2,0);
-        texture_map2 = textures2[0];
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map2);
-//    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-        //glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB, 1, 256, 0, GL_RGB, GL_UNSIGNED_BYTE, NULL);
-
-        int[] textures3 = new int[1];
-        GLES20.glGenTextures(1, textures3,0);
-        texture_map3 = textures3[0];
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE2);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map3);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-
-        int[] textures4 = new int[1];
-        GLES20.glGenTextures(1, textures4,0);
-        texture_map4 = textures4[0];
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map4);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-
-        int[] textures5 = new int[1];
-        GLES20.glGenTextures(1, textures5,0);
-        texture_map5 = textures5[0];
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE4);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map5);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-
-        int[] textures6 = new int[1];
-        GLES20.glGenTextures(1, textures6,0);
-        texture_map6 = textures6[0];
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE5);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map6);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-
-        int[] textures7 = new int[1];
-        GLES20.glGenTextures(1, textures7,0);
-        texture_map7 = textures7[0];
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE6);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map7);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-
-        int[] textures8 = new int[1];
-        GLES20.glGenTextures(1, textures8,0);
-        texture_map8 = textures8[0];
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE7);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map8);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-
-        int[] textures9 = new int[1];
-        GLES20.glGenTextures(1, textures9,0);
-        texture_map9 = textures9[0];
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE8);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map9);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-
-        int[] textures10 = new int[1];
-        GLES20.glGenTextures(1, textures10,0);
-        texture_map10 = textures10[0];
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE9);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map9);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-
-        int[] textures11 = new int[1];
-        GLES20.glGenTextures(1, textures11,0);
-        texture_map11 = textures11[0];
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE10);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map11);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-
-        int[] textures12 = new int[1];
-        GLES20.glGenTextures(1, textures12,0);
-        texture_map12 = textures12[0];
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE11);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map12);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-
-        int[] textures13 = new int[1];
-        GLES20.glGenTextures(1, textures13,0);
-        texture_map13 = textures13[0];
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE12);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map13);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-
+        mCaps = GLCapabilities.query();
+        mTextures = new TextureManager(mCaps);
+        // GLSurfaceView makes a new context on every resume, the programs come back from disk
+        File programDir = mAssetContext != null ? new File(mAssetContext.getCacheDir(), PROGRAM_CACHE_DIR) : null;
+        mCompositor = new MosaicCompositor(mCaps, new ProgramCache(programDir, mCaps));
+        synchronized (this) {
+            // a new context needs new textures for every input
+            mInputs = null;
+            mInputStreams = null;
+            mMosaicChanged = true;
+        }
 
         /*this is to read local file start*/
 //        std::string FileName = std::string("/storage/emulated/0/opencvTesting/videoFrmImouInrawrgb24short.rgb");
@@ -487,12 +298,103 @@ public Boolean initProgram(){
 //        }
         /*this is to read local file end*/
 
-        mat_RGBA2YUV_I420 = new Mat() ;
-        testConvertedImgYUVmat = new Mat();
+        // GLInit only runs again on a new context, the old ring died with the old one
+        if (mReadback != null) {
+            mReadback.abandon();
+        }
+        mReadback = new AsyncReadback(READBACK_RING_SIZE, mCaps, this::onReadbackFrame);
+        mReadback.setBlockWhenFull(mBatch);
         Log.d(TAG,"GLInit exit");
     }
     public void GLLoadShader(){
-        initProgram();
+        applyMosaic();
+        mCompositor.prepare();
+    }
+
+    /**
+     * Shows sources[i] in layout tile i. The same source may fill several tiles,
+     * it is decoded and uploaded once. Takes effect on the next frame.
+     */
+    public synchronized void SetMosaic(MosaicLayout layout, FrameSource... sources) {
+        if (layout.getTileCount() != sources.length) {
+            throw new IllegalArgumentException(layout.getTileCount() + " tiles but " + sources.length + " sources");
+        }
+        if (mRenderRequester != null) {
+            if (mTileSources != null) {
+                for (FrameSource source : mTileSources) {
+                    source.setListener(null);
+                }
+            }
+            for (FrameSource source : sources) {
+                source.setListener(mFrameListener);
+            }
+        }
+        mLayout = layout;
+        mTileSources = sources.clone();
+        mMosaicChanged = true;
+        requestRender();
+    }
+
+    private synchronized void applyMosaic() {
+        if (!mMosaicChanged) {
+            return;
+        }
+        if (mLayout == null) {
+            // nothing to show before the first SetMosaic, which stays pending
+            mInputs = new FrameSource[0];
+            mInputStreams = new TextureManager.Stream[0][];
+            return;
+        }
+        ArrayList<FrameSource> inputs = new ArrayList<>();
+        for (FrameSource source : mTileSources) {
+            if (!inputs.contains(source)) {
+                inputs.add(source);
+            }
+        }
+        TextureManager.Stream[][] streams = new TextureManager.Stream[inputs.size()][];
+        for (int i = 0; i < inputs.size(); i++) {
+            FrameSource source = inputs.get(i);
+            int previous = mInputs != null ? Arrays.asList(mInputs).indexOf(source) : -1;
+            if (previous >= 0) {
+                streams[i] = mInputStreams[previous];
+                mInputStreams[previous] = null;
+            } else {
+                streams[i] = createStreams(source.getFormat());
+            }
+        }
+        if (mInputStreams != null) {
+            for (TextureManager.Stream[] unused : mInputStreams) {
+                if (unused != null) {
+                    for (TextureManager.Stream stream : unused) {
+                        mTextures.release(stream);
+                    }
+                }
+            }
+        }
+        mInputs = inputs.toArray(new FrameSource[0]);
+        mInputStreams = streams;
+
+        mCompositor.setLayout(mLayout);
+        for (int t = 0; t < mTileSources.length; t++) {
+            int input = inputs.indexOf(mTileSources[t]);
+            mCompositor.setTileInput(t, mTileSources[t].getFormat(), streams[input]);
+        }
+        mMosaicChanged = false;
+        mOutputDirty = true;
+        Log.d(TAG, "mosaic of " + mTileSources.length + " tiles from " + mInputs.length + " inputs");
+    }
+
+    private TextureManager.Stream[] createStreams(int format) {
+        // storage is specified once here, GLDrawFrame only streams updates into it
+        int bw = 1920;
+        int bh = 1080;
+        TextureManager.Stream[] streams = new TextureManager.Stream[DecodedFrame.planeCount(format)];
+        for (int p = 0; p < streams.length; p++) {
+            // DecodedFrame channel counts are the TextureManager CHANNELS_ values
+            streams[p] = mTextures.createStream(DecodedFrame.planeChannels(format, p),
+                    DecodedFrame.planeWidth(format, p, bw), DecodedFrame.planeHeight(format, p, bh), GLES20.GL_LINEAR);
+        }
+        return streams;
     }
 
     public void ResizeOnSurfaceChange(int width, int height){
@@ -500,260 +402,72 @@ public Boolean initProgram(){
         //we would like to use input image size for screen
         Log.d(TAG,"ResizeOnSurfaceChange entry");
         GLES20.glViewport(0, 0, mScreenWidth, mScreenHeight);
+        mReadback.resize(mScreenWidth, mScreenHeight);
+        mOutputDirty = true;
         Log.d(TAG,"ResizeOnSurfaceChange exit");
     }
 
+    /**
+     * Steady state frames allocate nothing on the Java heap and do not log;
+     * diagnostics go through RenderTrace, which compiles out.
+     */
     public void GLDrawFrame() {
-        Log.d(TAG, "GLDrawFrame entry");
-
-        int[] max = new int[1];
-        glGetIntegerv(GL_MAX_TEXTURE_IMAGE_UNITS, max, 0);
-        Log.d(TAG,"maxtextureimageunits:" + max[0]);
-
-        int[] maxTextureSize = new int[1];
-        glGetIntegerv(GL_MAX_TEXTURE_SIZE, maxTextureSize, 0);
-        Log.d(TAG,"maxTextureSize:" + maxTextureSize[0]);
-
-        int[] maxrenderbufSize = new int[1];
-        glGetIntegerv(GL_MAX_RENDERBUFFER_SIZE, maxrenderbufSize, 0);
-        Log.d(TAG,"maxrenderbufSize:" + maxrenderbufSize[0]);
-
-        int[] glbufSize = new int[1];
-        glGetIntegerv(GL_BUFFER_SIZE, glbufSize, 0);
-        Log.d(TAG,"glbufSize:" + glbufSize[0]);
-
-        int[] glbufusage = new int[1];
-        glGetIntegerv(GL_BUFFER_USAGE, glbufusage, 0);
-        Log.d(TAG,"glbufusage:" + glbufusage[0]);
-
-
-
-
+        RenderTrace.beginFrame();
+        mMetrics.beginFrame(mFrameNumber++);
         float grey;
         grey = 0.00f;
-//        GLES20.glClearColor(grey, grey, grey, 1.0f);
-//        GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT | GLES20.GL_COLOR_BUFFER_BIT);
-        Log.d(TAG, "GLDrawFrame glClear");
-        int bw = 1920; //trying with hard code, later need to change
-        int bh = 1080;
-
-        Imgcodecs imageCodecs = new Imgcodecs();
-        /**image one**/
-        testInputImgJPEGmat =  imageCodecs.imread("/storage/emulated/0/opencvTesting/four_balls_color_jpg1920x1080.jpg",Imgcodecs.IMREAD_COLOR);;
-        Log.d(TAG,"testInputImgJPEGmat channels:"+testInputImgJPEGmat.channels());
-        Log.d(TAG,"testInputImgJPEGmat total:"+testInputImgJPEGmat.total());
-        Log.d(TAG,"testInputImgJPEGmat elementSize:"+testInputImgJPEGmat.elemSize());
-        Log.d(TAG,"testInputImgJPEGmat size:"+testInputImgJPEGmat.size());
-
-
-        Imgproc.cvtColor(testInputImgJPEGmat, testConvertedImgYUVmat, Imgproc.COLOR_RGB2YUV_I420);
-        Log.d(TAG,"testConvertedImgYUVmat channels:"+testConvertedImgYUVmat.channels());
-        Log.d(TAG,"testConvertedImgYUVmat total:"+testConvertedImgYUVmat.total());
-        Log.d(TAG,"testConvertedImgYUVmat elementSize:"+testConvertedImgYUVmat.elemSize());
-        Log.d(TAG,"testConvertedImgYUVmat size:"+testConvertedImgYUVmat.size());
-
-//        Imgcodecs.imwrite("/storage/emulated/0/opencvTesting/mygltest/testConvertedImgYUVmat.jpg", testConvertedImgYUVmat);
-
-        Log.d(TAG, "GLDrawFrame after bitmap read local jpeg");
-//        int LENGTH = testConvertedImgYUVmat.rows()*testConvertedImgYUVmat.cols();
-        int LENGTH = 1920*1080;
-        byte [] ydataarray = new byte[LENGTH];
-        byte [] Udataarray = new byte[LENGTH/4];
-        byte [] Vdataarray = new byte[LENGTH/4];
-        int U_INDEX = LENGTH;
-        int V_INDEX = LENGTH*5/4;
-        int totalbytesinmat = (int)(testConvertedImgYUVmat.total()*testConvertedImgYUVmat.channels());
-        byte [] totaldatafrommat = new byte[totalbytesinmat];
-        testConvertedImgYUVmat.get(0,0,totaldatafrommat);
-        System.arraycopy(totaldatafrommat, 0, ydataarray, 0, LENGTH);
-
-        System.arraycopy(totaldatafrommat, U_INDEX, Udataarray, 0, LENGTH/4);
-        System.arraycopy(totaldatafrommat, V_INDEX, Vdataarray, 0, LENGTH/4);
-        ByteBuffer yByteBuffer = ByteBuffer.allocateDirect(LENGTH);
-        ByteBuffer uByteBuffer = ByteBuffer.allocateDirect(LENGTH/4);
-        ByteBuffer vByteBuffer = ByteBuffer.allocateDirect(LENGTH/4);
-        yByteBuffer.put(ydataarray);
-        yByteBuffer.position(0);
-        uByteBuffer.put(Udataarray);
-        uByteBuffer.position(0);
-        vByteBuffer.put(Vdataarray);
-        vByteBuffer.position(0);
-/**image one end**/
-
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map1);
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, bw, bh, 0, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, yByteBuffer);
-//        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, imgbitmap, 0);  //working with bitmap
-        Log.d(TAG, "GLDrawFrame after first texture0");
-
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map2);
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, bw/2, bh/2, 0, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, uByteBuffer);
-//        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, bw, bh, 0, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, yByteBuffer);
-        Log.d(TAG, "GLDrawFrame after second texture1");
-
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE2);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map3);
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, bw/2, bh/2, 0, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, vByteBuffer);
-//        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, bw, bh, 0, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, yByteBuffer);
-        Log.d(TAG, "GLDrawFrame after third texture2");
-
-        /**second image start **/
-        testInputImgJPEGmat = imageCodecs.imread("/storage/emulated/0/opencvTesting/apple-jpg-1920x1080.jpg",Imgcodecs.IMREAD_COLOR);
-        Imgproc.cvtColor(testInputImgJPEGmat, testConvertedImgYUVmat, Imgproc.COLOR_RGB2YUV_I420);
-        testConvertedImgYUVmat.get(0,0,totaldatafrommat);
-        System.arraycopy(totaldatafrommat, 0, ydataarray, 0, LENGTH);
-        System.arraycopy(totaldatafrommat, U_INDEX, Udataarray, 0, LENGTH/4);
-        System.arraycopy(totaldatafrommat, V_INDEX, Vdataarray, 0, LENGTH/4);
-        yByteBuffer.put(ydataarray);
-        yByteBuffer.position(0);
-        uByteBuffer.put(Udataarray);
-        uByteBuffer.position(0);
-        vByteBuffer.put(Vdataarray);
-        vByteBuffer.position(0);
-
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map4);
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, bw, bh, 0, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, yByteBuffer);
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE4);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map5);
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, bw/2, bh/2, 0, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, uByteBuffer);
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE5);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map6);
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, bw/2, bh/2, 0, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, vByteBuffer);
-
-        /**3rd image start **/
-        testInputImgJPEGmat = imageCodecs.imread("/storage/emulated/0/opencvTesting/lappy-jpg-1920x1080.jpg",Imgcodecs.IMREAD_COLOR);
-        Imgproc.cvtColor(testInputImgJPEGmat, testConvertedImgYUVmat, Imgproc.COLOR_RGB2YUV_I420);
-        testConvertedImgYUVmat.get(0,0,totaldatafrommat);
-        System.arraycopy(totaldatafrommat, 0, ydataarray, 0, LENGTH);
-        System.arraycopy(totaldatafrommat, U_INDEX, Udataarray, 0, LENGTH/4);
-        System.arraycopy(totaldatafrommat, V_INDEX, Vdataarray, 0, LENGTH/4);
-        yByteBuffer.put(ydataarray);
-        yByteBuffer.position(0);
-        uByteBuffer.put(Udataarray);
-        uByteBuffer.position(0);
-        vByteBuffer.put(Vdataarray);
-        vByteBuffer.position(0);
-
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE6);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map7);
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, bw, bh, 0, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, yByteBuffer);
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE7);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map8);
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, bw/2, bh/2, 0, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, uByteBuffer);
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE8);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map9);
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, bw/2, bh/2, 0, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, vByteBuffer);
-
-        /**4th image start **/
-        testInputImgJPEGmat = imageCodecs.imread("/storage/emulated/0/opencvTesting/wpinjpg1920x1080.jpeg",Imgcodecs.IMREAD_COLOR);
-        Imgproc.cvtColor(testInputImgJPEGmat, testConvertedImgYUVmat, Imgproc.COLOR_RGB2YUV_I420);
-        testConvertedImgYUVmat.get(0,0,totaldatafrommat);
-        System.arraycopy(totaldatafrommat, 0, ydataarray, 0, LENGTH);
-        System.arraycopy(totaldatafrommat, U_INDEX, Udataarray, 0, LENGTH/4);
-        System.arraycopy(totaldatafrommat, V_INDEX, Vdataarray, 0, LENGTH/4);
-        yByteBuffer.put(ydataarray);
-        yByteBuffer.position(0);
-        uByteBuffer.put(Udataarray);
-        uByteBuffer.position(0);
-        vByteBuffer.put(Vdataarray);
-        vByteBuffer.position(0);
-
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE9);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map10);
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, bw, bh, 0, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, yByteBuffer);
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE10);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map11);
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, bw/2, bh/2, 0, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, uByteBuffer);
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE11);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map12);
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, bw/2, bh/2, 0, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, vByteBuffer);
-
-        /**5th image in rgb form start **/
-        testInputImgJPEGmat = imageCodecs.imread("/storage/emulated/0/opencvTesting/wpinjpg1920x1080.jpeg",Imgcodecs.IMREAD_COLOR);
-//        Imgproc.cvtColor(testInputImgJPEGmat, testConvertedImgYUVmat, Imgproc.COLOR_RGB2YUV_I420);
-        int totalbytesinrgbmat = (int)(testInputImgJPEGmat.total()*testInputImgJPEGmat.channels());
-        byte [] totaldatafromrgbmat = new byte[totalbytesinrgbmat];
-        testInputImgJPEGmat.get(0,0,totaldatafromrgbmat);
-        byte [] rgbdataarray = new byte[totalbytesinrgbmat];
-        System.arraycopy(totaldatafromrgbmat, 0, rgbdataarray, 0, totalbytesinrgbmat);
-        ByteBuffer rgbByteBuffer = ByteBuffer.allocateDirect(totalbytesinrgbmat);
-        rgbByteBuffer.put(rgbdataarray);
-        rgbByteBuffer.position(0);
-
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE12);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture_map13);
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGB, bw, bh, 0, GLES20.GL_RGB, GLES20.GL_UNSIGNED_BYTE, rgbByteBuffer);
-
-        GLES20.glUseProgram(mProgramId);
-        GLES20.glVertexAttribPointer(aPosition, 2, GLES20.GL_FLOAT, false, 0, mPosTriangleVertices);
-        GLES20.glEnableVertexAttribArray(aPosition);
-
-        GLES20.glVertexAttribPointer(aTexCoord, 2, GLES20.GL_FLOAT, false, 0, mTexVertices);
-        GLES20.glEnableVertexAttribArray(aTexCoord);
-
-        GLES20.glUniform2f(rubyTextureSize, bw, bh);
-        GLES20.glUniform1i(rubyTexture1Y, 0);
-        GLES20.glUniform1i(rubyTexture1U, 1);
-        GLES20.glUniform1i(rubyTexture1V, 2);
-        GLES20.glUniform1i(rubyTexture2Y, 3);
-        GLES20.glUniform1i(rubyTexture2U, 4);
-        GLES20.glUniform1i(rubyTexture2V, 5);
-        GLES20.glUniform1i(rubyTexture3Y, 6);
-        GLES20.glUniform1i(rubyTexture3U, 7);
-        GLES20.glUniform1i(rubyTexture3V, 8);
-        GLES20.glUniform1i(rubyTexture4Y, 9);
-        GLES20.glUniform1i(rubyTexture4U, 10);
-        GLES20.glUniform1i(rubyTexture4V, 11);
-        GLES20.glUniform1i(rubyTexture5, 12);
-
-
-//    glDrawArrays(GL_TRIANGLE_STRIP, 0, 4);  //for single input
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, 24);   // for four inputs
-
-        ByteBuffer pReadPixelBuf;
-        pReadPixelBuf = ByteBuffer.allocateDirect(mScreenHeight * mScreenWidth * 4);
-        pReadPixelBuf.order(ByteOrder.LITTLE_ENDIAN);
-
-        GLES20.glReadPixels(0, 0, mScreenWidth, mScreenHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pReadPixelBuf);
-
-            outputReadpixelInMat = new Mat(mScreenHeight,mScreenWidth, CvType.CV_8UC4,pReadPixelBuf);
-        Imgproc.cvtColor(outputReadpixelInMat, mat_RGBA2YUV_I420, Imgproc.COLOR_RGBA2YUV_I420);
-
-            Imgcodecs.imwrite("/storage/emulated/0/opencvTesting/mygltest/Javmat_RGBA2YUV_I420.jpg", mat_RGBA2YUV_I420);
-
-        Bitmap bitmapoutputFrmReadPixel = Bitmap.createBitmap(mScreenWidth, mScreenHeight, Bitmap.Config.ARGB_8888);
-        bitmapoutputFrmReadPixel.copyPixelsFromBuffer(pReadPixelBuf);
-
-//            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-//            bitmapoutputFrmReadPixel.compress(Bitmap.CompressFormat.PNG, 40, bytes);
-
-//you can create a new file name "test.BMP" in sdcard folder.
-//            File filepath = new File(Environment.getExternalStorageDirectory();
-            File  dirpath=new File("/storage/emulated/0/opencvTesting/mygltest/");
-            dirpath.mkdirs();
-            File glreadfile=new File(dirpath,"myglreadpixel.jpg");
-
-            OutputStream out=null;
-            try{
-                out=new FileOutputStream(glreadfile);
-                bitmapoutputFrmReadPixel.compress(Bitmap.CompressFormat.JPEG,100,out);
-                out.flush();
-                out.close();
-
-
-//                MediaStore.Images.Media.insertImage(getContentResolver(), bitmapoutputFrmReadPixel," yourTitle "," yourDescription");
-
-                bitmapoutputFrmReadPixel=null;
-
-
+        // layouts may leave cells empty, and a clear also spares tilers reloading the last frame
+        GLES20.glClearColor(grey, grey, grey, 1.0f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        // cleared before the sources are read, a frame published from here on asks for the next render
+        mRenderPending.set(false);
+        applyMosaic();
+        boolean changed = mOutputDirty;
+        RenderTrace.begin("upload");
+        // decode and convert of changed inputs are recorded by the sources themselves and excluded here
+        long uploadNs = 0;
+        for (int i = 0; i < mInputs.length; i++) {
+            DecodedFrame frame = mInputs[i].acquire();
+            if (frame == null) {
+                // keep showing the last good upload of a failing feed
+                continue;
             }
-            catch (IOException e)
-            {
-                e.printStackTrace();
+            // plane views alias the frame's pooled direct buffer; an unchanged frame is not re-uploaded
+            TextureManager.Stream[] planes = mInputStreams[i];
+            long generation = frame.getGeneration();
+            long uploadStart = System.nanoTime();
+            for (int p = 0; p < planes.length; p++) {
+                changed |= mTextures.update(planes[p], frame.getPlaneWidth(p), frame.getPlaneHeight(p), frame.getPlane(p), generation);
             }
-        Log.d(TAG, "GLDrawFrame exit");
+            uploadNs += System.nanoTime() - uploadStart;
+        }
+        mMetrics.record(FrameMetrics.Stage.UPLOAD, uploadNs);
+        RenderTrace.end();
+
+        RenderTrace.begin("compose");
+        long drawStart = System.nanoTime();
+        mCompositor.draw();
+        long readbackStart = System.nanoTime();
+        mMetrics.record(FrameMetrics.Stage.DRAW, readbackStart - drawStart);
+        RenderTrace.end();
+
+        // the screen needs every frame, the sinks only new content; batch output is every frame by definition
+        if (changed || mBatch) {
+            // frame N is packed here and handed to onReadbackFrame a few frames later
+            RenderTrace.begin("readback");
+            mReadback.queueFrame();
+            mMetrics.record(FrameMetrics.Stage.READBACK, System.nanoTime() - readbackStart);
+            RenderTrace.end();
+            mOutputDirty = false;
+        } else {
+            mSkippedFrames++;
+        }
+        mMetrics.endFrame();
+        RenderTrace.endFrame();
+    }
 
+    private void onReadbackFrame(ByteBuffer rgba, int width, int height, long frameId) {
+        // encoding and file writes happen on the sink thread
+        mSinkStage.submit(rgba, width, height, frameId);
     }
 }
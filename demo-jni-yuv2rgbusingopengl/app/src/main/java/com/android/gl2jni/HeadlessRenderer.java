@@ -0,0 +1,233 @@
+package com.android.gl2jni;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a {@link GLMergerWithShader} without a window: its own EGL context
+ * (surfaceless where EGL_KHR_surfaceless_context is available, a 1x1 pbuffer
+ * otherwise) on a dedicated thread, rendering into an FBO the size of the
+ * output rather than of a screen. Frames are produced back to back, as fast
+ * as the GPU and the sinks allow, with no vsync in the loop.
+ * <p>
+ * The merger should be constructed in batch mode so that no frame is dropped
+ * between the render loop and the sinks; for processing an archive, the
+ * constructor taking sinks plus {@link #render(MosaicLayout, int, List)}.
+ */
+public class HeadlessRenderer {
+    public final static String TAG = "HeadlessRenderer";
+
+    private final GLMergerWithShader mMerger;
+    private final ExecutorService mExecutor;
+
+    // render thread only
+    private EGLDisplay mDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext mContext = EGL14.EGL_NO_CONTEXT;
+    private EGLSurface mSurface = EGL14.EGL_NO_SURFACE;
+    private final int[] mFbo = new int[1];
+    private final int[] mTarget = new int[1];
+
+    public HeadlessRenderer(GLMergerWithShader merger) {
+        mMerger = merger;
+        mExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "GLMergerHeadless");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Creates the context and the output target, then initializes the merger on the render thread. */
+    public Future<Void> start() {
+        return mExecutor.submit((Callable<Void>) () -> {
+            createContext();
+            createTarget(mMerger.GetOutputWidth(), mMerger.GetOutputHeight());
+            mMerger.GLInit();
+            mMerger.GLLoadShader();
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFbo[0]);
+            mMerger.ResizeOnSurfaceChange(mMerger.GetOutputWidth(), mMerger.GetOutputHeight());
+            return null;
+        });
+    }
+
+    /**
+     * Renders frames back to back and waits until every one of them has been
+     * read back and handed to the sinks. Resolves to the elapsed nanoseconds.
+     */
+    public Future<Long> render(final int frames) {
+        return mExecutor.submit(() -> {
+            long start = System.nanoTime();
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFbo[0]);
+            for (int i = 0; i < frames; i++) {
+                mMerger.GLDrawFrame();
+            }
+            mMerger.FlushOutput();
+            long elapsed = System.nanoTime() - start;
+            Log.d(TAG, frames + " frames in " + elapsed / 1000000 + " ms");
+            return elapsed;
+        });
+    }
+
+    /**
+     * Composites image files: frames.get(n)[t] is the file shown in tile t of
+     * layout in output frame n, every tile decoding in the same format. Each
+     * output frame is read back and handed to the sinks, in order, before the
+     * future resolves to the elapsed nanoseconds. A file that cannot be
+     * decoded leaves its tile showing the previous one.
+     */
+    public Future<Long> render(final MosaicLayout layout, int format, final List<String[]> frames) {
+        final int tiles = layout.getTileCount();
+        final FileSequenceSource[] sources = new FileSequenceSource[tiles];
+        for (int t = 0; t < tiles; t++) {
+            List<String> paths = new ArrayList<>(frames.size());
+            for (String[] frame : frames) {
+                if (frame.length != tiles) {
+                    throw new IllegalArgumentException(frame.length + " files for " + tiles + " tiles");
+                }
+                paths.add(frame[t]);
+            }
+            sources[t] = mMerger.CreateFileSequence(paths, format);
+        }
+        return mExecutor.submit(() -> {
+            long start = System.nanoTime();
+            mMerger.SetMosaic(layout, sources);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFbo[0]);
+            for (int n = 0; n < frames.size(); n++) {
+                if (n > 0) {
+                    for (FileSequenceSource source : sources) {
+                        source.advance();
+                    }
+                }
+                mMerger.GLDrawFrame();
+            }
+            mMerger.FlushOutput();
+            long elapsed = System.nanoTime() - start;
+            Log.d(TAG, frames.size() + " frames of " + tiles + " files in " + elapsed / 1000000 + " ms");
+            return elapsed;
+        });
+    }
+
+    /** Runs task on the render thread with the context current, for work the merger does not cover. */
+    public <T> Future<T> run(Callable<T> task) {
+        return mExecutor.submit(task);
+    }
+
+    /** Tears down the target and the context; the merger's GL objects go with the context. */
+    public Future<Void> release() {
+        Future<Void> done = mExecutor.submit((Callable<Void>) () -> {
+            if (mFbo[0] != 0) {
+                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+                GLES20.glDeleteFramebuffers(1, mFbo, 0);
+                GLES20.glDeleteTextures(1, mTarget, 0);
+                mFbo[0] = 0;
+                mTarget[0] = 0;
+            }
+            destroyContext();
+            return null;
+        });
+        mExecutor.shutdown();
+        return done;
+    }
+
+    private void createContext() {
+        mDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        if (mDisplay == EGL14.EGL_NO_DISPLAY) {
+            throw new RuntimeException("eglGetDisplay failed");
+        }
+        int[] version = new int[2];
+        if (!EGL14.eglInitialize(mDisplay, version, 0, version, 1)) {
+            throw new RuntimeException("eglInitialize: egl error " + EGL14.eglGetError());
+        }
+        Log.d(TAG, "EGL " + version[0] + "." + version[1] + " " + EGL14.eglQueryString(mDisplay, EGL14.EGL_VENDOR));
+
+        // same preference as GL2JNIView: ES 3 for PBO readback, ES 2 otherwise
+        if (!tryCreateContext(3, EGLExt.EGL_OPENGL_ES3_BIT_KHR) && !tryCreateContext(2, EGL14.EGL_OPENGL_ES2_BIT)) {
+            throw new RuntimeException("no usable EGL config: egl error " + EGL14.eglGetError());
+        }
+    }
+
+    private boolean tryCreateContext(int clientVersion, int renderableType) {
+        int[] configAttribs = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, renderableType,
+                EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] numConfigs = new int[1];
+        if (!EGL14.eglChooseConfig(mDisplay, configAttribs, 0, configs, 0, 1, numConfigs, 0) || numConfigs[0] == 0) {
+            return false;
+        }
+        int[] contextAttribs = {EGL14.EGL_CONTEXT_CLIENT_VERSION, clientVersion, EGL14.EGL_NONE};
+        mContext = EGL14.eglCreateContext(mDisplay, configs[0], EGL14.EGL_NO_CONTEXT, contextAttribs, 0);
+        if (mContext == null || mContext == EGL14.EGL_NO_CONTEXT) {
+            mContext = EGL14.EGL_NO_CONTEXT;
+            return false;
+        }
+
+        // the FBO is the real target, a surface is only needed where EGL insists on one
+        String extensions = EGL14.eglQueryString(mDisplay, EGL14.EGL_EXTENSIONS);
+        boolean surfaceless = extensions != null && extensions.contains("EGL_KHR_surfaceless_context")
+                && EGL14.eglMakeCurrent(mDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, mContext);
+        if (!surfaceless) {
+            int[] surfaceAttribs = {EGL14.EGL_WIDTH, 1, EGL14.EGL_HEIGHT, 1, EGL14.EGL_NONE};
+            mSurface = EGL14.eglCreatePbufferSurface(mDisplay, configs[0], surfaceAttribs, 0);
+            if (mSurface == null || mSurface == EGL14.EGL_NO_SURFACE
+                    || !EGL14.eglMakeCurrent(mDisplay, mSurface, mSurface, mContext)) {
+                throw new RuntimeException("eglMakeCurrent: egl error " + EGL14.eglGetError());
+            }
+        }
+        Log.d(TAG, "ES " + clientVersion + " context, " + (surfaceless ? "surfaceless" : "1x1 pbuffer"));
+        return true;
+    }
+
+    private void createTarget(int width, int height) {
+        GLES20.glGenTextures(1, mTarget, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTarget[0]);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glGenFramebuffers(1, mFbo, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFbo[0]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, mTarget[0], 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            throw new RuntimeException("headless target incomplete: " + status);
+        }
+        GLMergerWithShader.checkGlError("HeadlessRenderer createTarget");
+        Log.d(TAG, "target " + width + "x" + height);
+    }
+
+    private void destroyContext() {
+        if (mDisplay == EGL14.EGL_NO_DISPLAY) {
+            return;
+        }
+        EGL14.eglMakeCurrent(mDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+        if (mSurface != EGL14.EGL_NO_SURFACE) {
+            EGL14.eglDestroySurface(mDisplay, mSurface);
+            mSurface = EGL14.EGL_NO_SURFACE;
+        }
+        if (mContext != EGL14.EGL_NO_CONTEXT) {
+            EGL14.eglDestroyContext(mDisplay, mContext);
+            mContext = EGL14.EGL_NO_CONTEXT;
+        }
+        EGL14.eglTerminate(mDisplay);
+        EGL14.eglReleaseThread();
+        mDisplay = EGL14.EGL_NO_DISPLAY;
+    }
+}
@@ -0,0 +1,370 @@
+package com.android.gl2jni;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Draws the tiles of a {@link MosaicLayout} from their input textures.
+ * <p>
+ * Tiles are packed in layout order into batches that fit the fragment sampler
+ * budget (three units per I420 tile, two per NV12/NV21 tile, one per BGR tile). Each batch is a single
+ * glDrawArrays; every vertex carries the slot of its tile inside the batch and
+ * the batch program branches on it. Programs are generated per batch signature
+ * and shared between batches that look the same.
+ * <p>
+ * In {@link Mode#PER_TILE}, the default, every batch holds one tile, so the
+ * programs are straight line single stream conversions: an I420 fragment
+ * fetches exactly three texels. {@link Mode#BATCHED} trades that for fewer
+ * draw calls, but relies on the driver honouring the slot branch; GPUs that
+ * flatten it pay for every tile of the batch in every fragment.
+ * <p>
+ * All methods must be called on the GL thread.
+ */
+public class MosaicCompositor {
+    public final static String TAG = "MosaicCompositor";
+
+    private static final int FLOAT_SIZE_BYTES = 4;
+    private static final int FLOATS_PER_VERTEX = 5;   // x, y, u, v, slot
+    private static final int STRIDE_BYTES = FLOATS_PER_VERTEX * FLOAT_SIZE_BYTES;
+    private static final int VERTICES_PER_TILE = 6;
+    // keeps the per fragment branch chain short even when the sampler budget is large
+    private static final int MAX_TILES_PER_BATCH = 8;
+
+    private static final int ATTRIB_POSITION = 0;
+    private static final int ATTRIB_TEXCOORD = 1;
+    private static final int ATTRIB_SLOT = 2;
+
+    private static final String VERTEX_SHADER =
+            "attribute vec2 aPosition;\n" +
+            "attribute vec2 aTexCoord;\n" +
+            "attribute float aSlot;\n" +
+            "varying vec2 vTexCoord;\n" +
+            "varying float vSlot;\n" +
+            "void main() {\n" +
+            "vTexCoord = aTexCoord;\n" +
+            "vSlot = aSlot;\n" +
+            "gl_Position = vec4(aPosition, 0.0, 1.0);\n" +
+            "}\n";
+
+    // BT.601 limited range, written out as b, g, r like the original merge shader
+    private static final String YUV_TO_BGR =
+            "vec4 yuvToBgr(float y, float u, float v) {\n" +
+            "y = 1.1643*(y-0.0625);\n" +
+            "u = u-0.5;\n" +
+            "v = v-0.5;\n" +
+            "return vec4(y+2.017*u, y-0.39173*u-0.81290*v, y+1.5958*v, 1.0);\n" +
+            "}\n";
+
+    private static final class Program {
+        int mId;
+    }
+
+    private static final class Batch {
+        int mFirstTile;
+        int mTileCount;
+        Program mProgram;
+    }
+
+    public enum Mode {
+        PER_TILE,
+        BATCHED
+    }
+
+    private final int mMaxUnits;
+    private final boolean mHighp;
+    // where the second byte of an interleaved chroma texel lands: .g of GL_RG, .a of GL_LUMINANCE_ALPHA
+    private final char mSecondChroma;
+    private Mode mMode = Mode.PER_TILE;
+    private MosaicLayout mLayout;
+    private int[] mTileFormats;
+    private TextureManager.Stream[][] mTilePlanes;
+    private final ArrayList<Batch> mBatches = new ArrayList<>();
+    private final HashMap<String, Program> mPrograms = new HashMap<>();
+    private final ProgramCache mProgramCache;
+    private FloatBuffer mVertices;
+    private boolean mDirty = true;
+
+    public MosaicCompositor(GLCapabilities caps, ProgramCache programCache) {
+        mProgramCache = programCache;
+        mMaxUnits = caps.getMaxTextureImageUnits();
+        mHighp = caps.hasHighpFragment();
+        mSecondChroma = caps.hasRedTextures() ? 'g' : 'a';
+    }
+
+    public void setLayout(MosaicLayout layout) {
+        mLayout = layout;
+        mTileFormats = new int[layout.getTileCount()];
+        mTilePlanes = new TextureManager.Stream[layout.getTileCount()][];
+        mDirty = true;
+    }
+
+    /**
+     * planes are Y, U, V for DecodedFrame.FORMAT_I420, Y and the interleaved
+     * chroma for FORMAT_NV12/NV21 and the packed texture for FORMAT_BGR.
+     */
+    public void setTileInput(int tile, int format, TextureManager.Stream... planes) {
+        if (planes.length != unitsFor(format)) {
+            throw new IllegalArgumentException("tile " + tile + " needs " + unitsFor(format) + " planes");
+        }
+        if (mTileFormats[tile] != format || mTilePlanes[tile] == null) {
+            mDirty = true;
+        }
+        mTileFormats[tile] = format;
+        mTilePlanes[tile] = planes;
+    }
+
+    private static int unitsFor(int format) {
+        return DecodedFrame.planeCount(format);
+    }
+
+    // one character per tile in a batch signature
+    private static char signatureOf(int format) {
+        switch (format) {
+            case DecodedFrame.FORMAT_I420:
+                return 'Y';
+            case DecodedFrame.FORMAT_NV12:
+                return 'N';
+            case DecodedFrame.FORMAT_NV21:
+                return 'V';
+            default:
+                return 'B';
+        }
+    }
+
+    private static int unitsFor(char signature) {
+        return signature == 'Y' ? 3 : (signature == 'B' ? 1 : 2);
+    }
+
+    public void setMode(Mode mode) {
+        if (mode != mMode) {
+            mMode = mode;
+            mDirty = true;
+        }
+    }
+
+    public int getBatchCount() {
+        return mBatches.size();
+    }
+
+    /** Builds geometry and compiles batch programs now instead of on the first draw. */
+    public void prepare() {
+        if (mLayout != null && mDirty) {
+            rebuild();
+        }
+    }
+
+    public void draw() {
+        if (mLayout == null) {
+            return;
+        }
+        prepare();
+        mVertices.position(0);
+        GLES20.glVertexAttribPointer(ATTRIB_POSITION, 2, GLES20.GL_FLOAT, false, STRIDE_BYTES, mVertices);
+        mVertices.position(2);
+        GLES20.glVertexAttribPointer(ATTRIB_TEXCOORD, 2, GLES20.GL_FLOAT, false, STRIDE_BYTES, mVertices);
+        mVertices.position(4);
+        GLES20.glVertexAttribPointer(ATTRIB_SLOT, 1, GLES20.GL_FLOAT, false, STRIDE_BYTES, mVertices);
+        GLES20.glEnableVertexAttribArray(ATTRIB_POSITION);
+        GLES20.glEnableVertexAttribArray(ATTRIB_TEXCOORD);
+        GLES20.glEnableVertexAttribArray(ATTRIB_SLOT);
+
+        Program current = null;
+        for (int b = 0; b < mBatches.size(); b++) {
+            Batch batch = mBatches.get(b);
+            if (batch.mProgram != current) {
+                current = batch.mProgram;
+                GLES20.glUseProgram(current.mId);
+            }
+            int unit = 0;
+            for (int t = batch.mFirstTile; t < batch.mFirstTile + batch.mTileCount; t++) {
+                TextureManager.Stream[] planes = mTilePlanes[t];
+                for (int p = 0; p < planes.length; p++) {
+                    GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + unit++);
+                    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, planes[p].getTexture());
+                }
+            }
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLES, batch.mFirstTile * VERTICES_PER_TILE, batch.mTileCount * VERTICES_PER_TILE);
+        }
+    }
+
+    private void rebuild() {
+        int tiles = mLayout.getTileCount();
+        for (int t = 0; t < tiles; t++) {
+            if (mTilePlanes[t] == null) {
+                throw new IllegalStateException("tile " + t + " has no input");
+            }
+        }
+        mBatches.clear();
+        float[] vertices = new float[tiles * VERTICES_PER_TILE * FLOATS_PER_VERTEX];
+        int maxTilesPerBatch = mMode == Mode.PER_TILE ? 1 : MAX_TILES_PER_BATCH;
+        Batch batch = null;
+        int batchUnits = 0;
+        StringBuilder signature = new StringBuilder();
+        for (int t = 0; t < tiles; t++) {
+            int units = unitsFor(mTileFormats[t]);
+            if (units > mMaxUnits) {
+                throw new IllegalStateException("tile " + t + " needs " + units + " texture units, device has " + mMaxUnits);
+            }
+            if (batch == null || batchUnits + units > mMaxUnits || batch.mTileCount == maxTilesPerBatch) {
+                if (batch != null) {
+                    batch.mProgram = programFor(signature.toString());
+                }
+                batch = new Batch();
+                batch.mFirstTile = t;
+                mBatches.add(batch);
+                batchUnits = 0;
+                signature.setLength(0);
+            }
+            putTile(vertices, t, batch.mTileCount);
+            signature.append(signatureOf(mTileFormats[t]));
+            batch.mTileCount++;
+            batchUnits += units;
+        }
+        if (batch != null) {
+            batch.mProgram = programFor(signature.toString());
+        }
+        if (mVertices == null || mVertices.capacity() < vertices.length) {
+            mVertices = ByteBuffer.allocateDirect(vertices.length * FLOAT_SIZE_BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+        mVertices.clear();
+        mVertices.put(vertices).position(0);
+        mDirty = false;
+        Log.d(TAG, tiles + " tiles in " + mBatches.size() + " " + mMode + " batches, " + mMaxUnits + " texture units");
+    }
+
+    private void putTile(float[] out, int tile, int slot) {
+        MosaicLayout.Tile r = mLayout.getTile(tile);
+        // output row 0 is the first row glReadPixels returns, i.e. the bottom of the framebuffer
+        float x0 = r.mX * 2.0f - 1.0f;
+        float x1 = (r.mX + r.mWidth) * 2.0f - 1.0f;
+        float y0 = r.mY * 2.0f - 1.0f;
+        float y1 = (r.mY + r.mHeight) * 2.0f - 1.0f;
+        int i = tile * VERTICES_PER_TILE * FLOATS_PER_VERTEX;
+        i = putVertex(out, i, x0, y0, 0.0f, 0.0f, slot);
+        i = putVertex(out, i, x1, y0, 1.0f, 0.0f, slot);
+        i = putVertex(out, i, x0, y1, 0.0f, 1.0f, slot);
+        i = putVertex(out, i, x0, y1, 0.0f, 1.0f, slot);
+        i = putVertex(out, i, x1, y0, 1.0f, 0.0f, slot);
+        putVertex(out, i, x1, y1, 1.0f, 1.0f, slot);
+    }
+
+    private static int putVertex(float[] out, int i, float x, float y, float u, float v, int slot) {
+        out[i] = x;
+        out[i + 1] = y;
+        out[i + 2] = u;
+        out[i + 3] = v;
+        out[i + 4] = slot;
+        return i + FLOATS_PER_VERTEX;
+    }
+
+    private Program programFor(String signature) {
+        Program program = mPrograms.get(signature);
+        if (program != null) {
+            return program;
+        }
+        program = new Program();
+        // attribute bindings are part of the binary, sampler units are set below either way
+        program.mId = mProgramCache.getProgram(VERTEX_SHADER, batchFragmentShader(signature, mHighp, mSecondChroma),
+                MosaicCompositor::linkProgram);
+        GLES20.glUseProgram(program.mId);
+        int unit = 0;
+        for (int s = 0; s < signature.length(); s++) {
+            int units = unitsFor(signature.charAt(s));
+            for (int p = 0; p < units; p++, unit++) {
+                GLES20.glUniform1i(GLES20.glGetUniformLocation(program.mId, "uTex" + unit), unit);
+            }
+        }
+        mPrograms.put(signature, program);
+        Log.d(TAG, "built batch program " + signature);
+        return program;
+    }
+
+    static String batchFragmentShader(String signature, boolean highp, char secondChroma) {
+        StringBuilder sb = new StringBuilder();
+        // mediump is enough for 8 bit planes, highp only where the fragment stage really has it
+        sb.append(highp ? "precision highp float;\n" : "precision mediump float;\n");
+        int unit = 0;
+        for (int s = 0; s < signature.length(); s++) {
+            int units = unitsFor(signature.charAt(s));
+            for (int p = 0; p < units; p++) {
+                sb.append("uniform sampler2D uTex").append(unit++).append(";\n");
+            }
+        }
+        sb.append("varying vec2 vTexCoord;\n")
+                .append("varying float vSlot;\n")
+                .append(YUV_TO_BGR)
+                .append("void main() {\n");
+        unit = 0;
+        for (int s = 0; s < signature.length(); s++) {
+            if (s > 0) {
+                sb.append("else ");
+            }
+            if (s < signature.length() - 1) {
+                sb.append("if (vSlot < ").append(s).append(".5) ");
+            }
+            sb.append("{\n");
+            char type = signature.charAt(s);
+            if (type == 'Y') {
+                sb.append("gl_FragColor = yuvToBgr(")
+                        .append("texture2D(uTex").append(unit).append(", vTexCoord).r, ")
+                        .append("texture2D(uTex").append(unit + 1).append(", vTexCoord).r, ")
+                        .append("texture2D(uTex").append(unit + 2).append(", vTexCoord).r);\n");
+                unit += 3;
+            } else if (type == 'N' || type == 'V') {
+                // one fetch gives both chroma samples, NV21 stores them as V, U
+                char u = type == 'N' ? 'r' : secondChroma;
+                char v = type == 'N' ? secondChroma : 'r';
+                sb.append("vec4 c = texture2D(uTex").append(unit + 1).append(", vTexCoord);\n")
+                        .append("gl_FragColor = yuvToBgr(")
+                        .append("texture2D(uTex").append(unit).append(", vTexCoord).r, ")
+                        .append("c.").append(u).append(", c.").append(v).append(");\n");
+                unit += 2;
+            } else {
+                // BGR data uploaded as GL_RGB, swap back on output
+                sb.append("gl_FragColor = texture2D(uTex").append(unit).append(", vTexCoord).bgra;\n");
+                unit += 1;
+            }
+            sb.append("}\n");
+        }
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    static int linkProgram(String vertexSource, String fragmentSource) {
+        int vertexShader = GLMergerWithShader.loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+        int pixelShader = GLMergerWithShader.loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glAttachShader(program, pixelShader);
+        GLES20.glBindAttribLocation(program, ATTRIB_POSITION, "aPosition");
+        GLES20.glBindAttribLocation(program, ATTRIB_TEXCOORD, "aTexCoord");
+        GLES20.glBindAttribLocation(program, ATTRIB_SLOT, "aSlot");
+        GLES20.glLinkProgram(program);
+        // the program keeps the compiled stages alive
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(pixelShader);
+        int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        if (linkStatus[0] != GLES20.GL_TRUE) {
+            String info = GLES20.glGetProgramInfoLog(program);
+            GLES20.glDeleteProgram(program);
+            throw new RuntimeException("Could not link program: " + info);
+        }
+        return program;
+    }
+
+    public void release() {
+        for (Program program : mPrograms.values()) {
+            GLES20.glDeleteProgram(program.mId);
+        }
+        mPrograms.clear();
+        mBatches.clear();
+        mDirty = true;
+    }
+}
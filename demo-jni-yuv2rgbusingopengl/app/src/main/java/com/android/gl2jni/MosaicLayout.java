@@ -0,0 +1,74 @@
+package com.android.gl2jni;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Placement of the input tiles in the output frame.
+ * <p>
+ * Rectangles are normalized to the output, x to the right and y down the rows
+ * of the read back image (row 0 is the first row glReadPixels returns), so a
+ * layout describes the saved frame rather than the on screen orientation.
+ */
+public class MosaicLayout {
+    public static final class Tile {
+        public final float mX;
+        public final float mY;
+        public final float mWidth;
+        public final float mHeight;
+
+        public Tile(float x, float y, float width, float height) {
+            mX = x;
+            mY = y;
+            mWidth = width;
+            mHeight = height;
+        }
+    }
+
+    private final List<Tile> mTiles;
+
+    private MosaicLayout(List<Tile> tiles) {
+        mTiles = Collections.unmodifiableList(tiles);
+    }
+
+    /** cols x rows equal cells filled row by row, count may leave trailing cells empty. */
+    public static MosaicLayout grid(int cols, int rows, int count) {
+        if (cols <= 0 || rows <= 0 || count < 0 || count > cols * rows) {
+            throw new IllegalArgumentException("bad grid " + cols + "x" + rows + " for " + count + " tiles");
+        }
+        List<Tile> tiles = new ArrayList<>(count);
+        float w = 1.0f / cols;
+        float h = 1.0f / rows;
+        for (int i = 0; i < count; i++) {
+            tiles.add(new Tile((i % cols) * w, (i / cols) * h, w, h));
+        }
+        return new MosaicLayout(tiles);
+    }
+
+    /** Smallest square grid holding count tiles, e.g. 9, 16 or 25 feeds. */
+    public static MosaicLayout squareGrid(int count) {
+        int side = (int) Math.ceil(Math.sqrt(count));
+        return grid(side, side, count);
+    }
+
+    /** Explicit rectangles as x, y, width, height quadruples. */
+    public static MosaicLayout of(float... rects) {
+        if (rects.length % 4 != 0) {
+            throw new IllegalArgumentException("rects must be x, y, width, height quadruples");
+        }
+        List<Tile> tiles = new ArrayList<>(rects.length / 4);
+        for (int i = 0; i < rects.length; i += 4) {
+            tiles.add(new Tile(rects[i], rects[i + 1], rects[i + 2], rects[i + 3]));
+        }
+        return new MosaicLayout(tiles);
+    }
+
+    public int getTileCount() {
+        return mTiles.size();
+    }
+
+    public Tile getTile(int index) {
+        return mTiles.get(index);
+    }
+}
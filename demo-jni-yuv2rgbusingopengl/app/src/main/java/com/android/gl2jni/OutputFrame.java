@@ -0,0 +1,48 @@
+package com.android.gl2jni;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A composited RGBA frame owned by the sink stage. The pixels are a copy of the
+ * readback buffer held in a pooled direct buffer, returned to the pool once
+ * every sink has consumed the frame. The frame object itself is recycled by
+ * the stage too, so sinks must not hold on to it after consume returns.
+ */
+public class OutputFrame {
+    private ByteBuffer mRgba;
+    private int mWidth;
+    private int mHeight;
+    private long mFrameId;
+
+    OutputFrame() {
+    }
+
+    void set(ByteBuffer rgba, int width, int height, long frameId) {
+        mRgba = rgba;
+        mWidth = width;
+        mHeight = height;
+        mFrameId = frameId;
+    }
+
+    /** Tightly packed RGBA, bottom row first as returned by glReadPixels. Do not keep a reference. */
+    public ByteBuffer getRgba() {
+        mRgba.position(0);
+        return mRgba;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public long getFrameId() {
+        return mFrameId;
+    }
+
+    public int getSizeBytes() {
+        return mWidth * mHeight * 4;
+    }
+}
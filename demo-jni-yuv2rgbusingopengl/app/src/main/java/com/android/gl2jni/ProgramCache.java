@@ -0,0 +1,176 @@
+package com.android.gl2jni;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Linked programs kept on disk as driver binaries, so a new context (every
+ * pause/resume of a GLSurfaceView) does not compile the same shaders again.
+ * <p>
+ * Entries are named by a hash of both sources, GL_RENDERER and GL_VERSION,
+ * and repeat the renderer and version inside so a stale file is recognized
+ * rather than fed to the driver. A binary the driver refuses, typically after
+ * a driver update, is deleted and the program is compiled from source and
+ * stored again. Without a directory, or where the context has no binary
+ * formats, every program is compiled from source.
+ */
+public class ProgramCache {
+    public final static String TAG = "ProgramCache";
+
+    private static final int MAGIC = 0x50524731;    // "PRG1"
+    private static final int FILE_VERSION = 1;
+
+    /** Compiles and links a program from source, throwing if it cannot. */
+    public interface Linker {
+        int link(String vertexSource, String fragmentSource);
+    }
+
+    private final File mDir;
+    private final boolean mEnabled;
+    private final String mDriver;
+    private int mHits;
+    private int mMisses;
+    private int mRejected;
+
+    public ProgramCache(File dir, GLCapabilities caps) {
+        mDir = dir;
+        mDriver = caps.getRenderer() + "\n" + caps.getVersion();
+        mEnabled = dir != null && caps.hasProgramBinaries() && (dir.isDirectory() || dir.mkdirs());
+        Log.d(TAG, mEnabled ? "binaries in " + dir : "disabled");
+    }
+
+    /** The cached program for these sources, or linker's result, which is then cached. GL thread. */
+    public int getProgram(String vertexSource, String fragmentSource, Linker linker) {
+        if (!mEnabled) {
+            return linker.link(vertexSource, fragmentSource);
+        }
+        File file = new File(mDir, key(vertexSource, fragmentSource) + ".bin");
+        if (file.exists()) {
+            int program = load(file);
+            if (program != 0) {
+                mHits++;
+                return program;
+            }
+            mRejected++;
+            if (!file.delete()) {
+                Log.w(TAG, "could not delete " + file);
+            }
+        }
+        mMisses++;
+        int program = linker.link(vertexSource, fragmentSource);
+        store(program, file);
+        return program;
+    }
+
+    private String key(String vertexSource, String fragmentSource) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            // separators keep "ab"+"c" and "a"+"bc" apart
+            digest.update(vertexSource.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(fragmentSource.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(mDriver.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private int load(File file) {
+        int format;
+        byte[] binary;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != MAGIC || in.readInt() != FILE_VERSION || !mDriver.equals(in.readUTF())) {
+                Log.d(TAG, file.getName() + " is from another driver or version");
+                return 0;
+            }
+            format = in.readInt();
+            binary = new byte[in.readInt()];
+            in.readFully(binary);
+        } catch (IOException e) {
+            Log.w(TAG, "could not read " + file, e);
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(binary.length).order(ByteOrder.nativeOrder());
+        buffer.put(binary).position(0);
+        int program = GLES20.glCreateProgram();
+        GLES30.glProgramBinary(program, format, buffer, binary.length);
+        int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        // an unknown format is GL_INVALID_ENUM, not something the caller's next checkGlError should see
+        int error = GLES20.glGetError();
+        if (linkStatus[0] != GLES20.GL_TRUE || error != GLES20.GL_NO_ERROR) {
+            Log.w(TAG, "driver rejected " + file.getName() + ", glError " + error);
+            GLES20.glDeleteProgram(program);
+            return 0;
+        }
+        return program;
+    }
+
+    private void store(int program, File file) {
+        int[] length = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] <= 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+        int[] written = new int[1];
+        int[] format = new int[1];
+        GLES30.glGetProgramBinary(program, length[0], written, 0, format, 0, buffer);
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR || written[0] <= 0) {
+            Log.w(TAG, "no binary for program " + program);
+            return;
+        }
+        byte[] binary = new byte[written[0]];
+        buffer.get(binary);
+        // written aside and renamed, a crash never leaves a truncated entry behind
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(mDriver);
+            out.writeInt(format[0]);
+            out.writeInt(binary.length);
+            out.write(binary);
+        } catch (IOException e) {
+            Log.w(TAG, "could not write " + tmp, e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.w(TAG, "could not rename " + tmp);
+            tmp.delete();
+        }
+    }
+
+    public int getHits() {
+        return mHits;
+    }
+
+    public int getMisses() {
+        return mMisses;
+    }
+
+    /** Entries the driver refused, each compiled again from source. */
+    public int getRejected() {
+        return mRejected;
+    }
+}
@@ -0,0 +1,115 @@
+package com.android.gl2jni;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frame source fed by a producer such as a camera callback. Frames are copied
+ * as they come into a pooled direct buffer (a bulk copy, the chroma stays
+ * interleaved) and the GL thread always picks up the newest one through a
+ * {@link FrameMailbox}, so neither side waits on the other. Frames are pushed
+ * from one thread at a time, as camera callbacks are.
+ * <p>
+ * Meant for the semi-planar formats cameras deliver: NV21 from
+ * Camera.PreviewCallback / JavaCameraView, and NV12 or NV21 from a
+ * YUV_420_888 Image whose chroma planes have a pixel stride of 2.
+ */
+public class PushFrameSource implements FrameSource {
+    public final static String TAG = "PushFrameSource";
+
+    private final String mName;
+    private final int mFormat;
+    private final DirectBufferPool mPool;
+    private final FrameMailbox<DecodedFrame> mMailbox = new FrameMailbox<>();
+    private volatile Listener mListener;
+
+    public PushFrameSource(String name, int format, DirectBufferPool pool) {
+        if (format == DecodedFrame.FORMAT_BGR) {
+            throw new IllegalArgumentException("push sources carry YUV frames");
+        }
+        mName = name;
+        mFormat = format;
+        mPool = pool;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public int getFormat() {
+        return mFormat;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /** A whole frame in one array, e.g. the NV21 byte[] of onPreviewFrame. */
+    public void push(byte[] data, int width, int height) {
+        int size = DecodedFrame.bufferSize(mFormat, width, height);
+        if (data.length < size) {
+            throw new IllegalArgumentException(data.length + " bytes for a " + width + "x" + height + " frame");
+        }
+        ByteBuffer buffer = mPool.acquire(size);
+        buffer.put(data, 0, size);
+        publish(buffer, width, height);
+    }
+
+    /**
+     * Y and interleaved chroma with their row strides, as in the planes of a
+     * YUV_420_888 Image. For NV12 pass the U plane buffer, for NV21 the V plane
+     * buffer; with a pixel stride of 2 either one already holds the pairs. The
+     * buffers' positions and limits are restored on return.
+     */
+    public void push(ByteBuffer y, int yRowStride, ByteBuffer chroma, int chromaRowStride, int width, int height) {
+        if (!DecodedFrame.isSemiPlanar(mFormat)) {
+            throw new IllegalStateException("plane push needs an NV12 or NV21 source");
+        }
+        ByteBuffer buffer = mPool.acquire(DecodedFrame.bufferSize(mFormat, width, height));
+        copyRows(y, yRowStride, width, height, buffer);
+        // the last chroma row may stop short of the stride (and of the second byte of its last pair)
+        copyRows(chroma, chromaRowStride, width, height / 2, buffer);
+        publish(buffer, width, height);
+    }
+
+    private static void copyRows(ByteBuffer src, int rowStride, int rowBytes, int rows, ByteBuffer dst) {
+        int position = src.position();
+        int limit = src.limit();
+        try {
+            for (int r = 0; r < rows; r++) {
+                int start = position + r * rowStride;
+                int end = Math.min(start + rowBytes, limit);
+                src.limit(end);
+                src.position(start);
+                dst.put(src);
+                // keep the destination rows aligned if the source ran out early
+                dst.position(dst.position() + (start + rowBytes - end));
+                src.limit(limit);
+            }
+        } finally {
+            src.limit(limit);
+            src.position(position);
+        }
+    }
+
+    private void publish(ByteBuffer buffer, int width, int height) {
+        // planes are sliced at absolute offsets
+        buffer.clear();
+        DecodedFrame displaced = mMailbox.publish(new DecodedFrame(mFormat, width, height, null, buffer, mPool));
+        if (displaced != null) {
+            // dropped unseen, or already replaced on the GL thread
+            displaced.release();
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onFrameAvailable(this);
+        }
+    }
+
+    @Override
+    public DecodedFrame acquire() {
+        return mMailbox.acquire();
+    }
+}
@@ -0,0 +1,82 @@
+package com.android.gl2jni;
+
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Diagnostics for the per frame path. {@link #ENABLED} is a compile time
+ * constant: with it off, code guarded by {@code if (RenderTrace.ENABLED)} is
+ * dropped by javac and the section calls below are empty inlinable methods, so
+ * the frame loop neither builds log strings nor allocates for them.
+ * <p>
+ * With it on, frames show up as systrace sections and every frame after
+ * {@link #WARMUP_FRAMES} is checked for Java heap allocations on the GL thread.
+ */
+public final class RenderTrace {
+    public final static String TAG = "RenderTrace";
+
+    /** Flip for a tracing build; keep false in anything that ships. */
+    public static final boolean ENABLED = false;
+
+    private static final int WARMUP_FRAMES = 30;
+
+    private static long sFrames;
+    private static int sAllocsAtFrameStart;
+
+    private RenderTrace() {
+    }
+
+    /** Debug's allocation counters, deprecated, but no non-deprecated per thread allocation counter exists. */
+    @SuppressWarnings("deprecation")
+    public static final class AllocCounter {
+        private AllocCounter() {
+        }
+
+        public static void start() {
+            Debug.startAllocCounting();
+        }
+
+        public static void stop() {
+            Debug.stopAllocCounting();
+        }
+
+        /** Objects the calling thread allocated since counting started. */
+        public static int threadCount() {
+            return Debug.getThreadAllocCount();
+        }
+    }
+
+    public static void begin(String section) {
+        if (ENABLED) {
+            android.os.Trace.beginSection(section);
+        }
+    }
+
+    public static void end() {
+        if (ENABLED) {
+            android.os.Trace.endSection();
+        }
+    }
+
+    /** Start of a frame on the GL thread; pairs with {@link #endFrame}. */
+    public static void beginFrame() {
+        if (ENABLED) {
+            if (sFrames == 0) {
+                AllocCounter.start();
+            }
+            android.os.Trace.beginSection("frame");
+            sAllocsAtFrameStart = AllocCounter.threadCount();
+        }
+    }
+
+    /** Ends the frame and reports any allocation once the pipeline is warm. */
+    public static void endFrame() {
+        if (ENABLED) {
+            int allocs = AllocCounter.threadCount() - sAllocsAtFrameStart;
+            android.os.Trace.endSection();
+            if (++sFrames > WARMUP_FRAMES && allocs > 0) {
+                Log.w(TAG, "frame " + sFrames + " allocated " + allocs + " objects on the GL thread");
+            }
+        }
+    }
+}
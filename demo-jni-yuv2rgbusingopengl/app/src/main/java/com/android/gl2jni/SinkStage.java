@@ -0,0 +1,254 @@
+package com.android.gl2jni;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves encoding and disk I/O of composited frames off the GL thread.
+ * <p>
+ * {@link #submit} copies the readback into a pooled buffer and queues it; a
+ * dedicated thread drains the queue and runs every sink on each frame. What
+ * happens when the queue is full is decided by the {@link OverflowPolicy}.
+ */
+public class SinkStage {
+    public final static String TAG = "SinkStage";
+
+    public enum OverflowPolicy {
+        /** Discard the oldest queued frame to make room, the GL thread never waits. */
+        DROP_OLDEST,
+        /** Discard the frame being submitted, the GL thread never waits. */
+        DROP_NEWEST,
+        /** Wait for the sink thread to make room, every frame is written. */
+        BLOCK
+    }
+
+    /** Throughput counters of one sink, safe to read from any thread. */
+    public static final class Metrics {
+        private final String mName;
+        private final AtomicLong mFrames = new AtomicLong();
+        private final AtomicLong mBytes = new AtomicLong();
+        private final AtomicLong mBusyNs = new AtomicLong();
+        private final AtomicLong mErrors = new AtomicLong();
+
+        Metrics(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getFrames() {
+            return mFrames.get();
+        }
+
+        public long getBytes() {
+            return mBytes.get();
+        }
+
+        public long getErrors() {
+            return mErrors.get();
+        }
+
+        public long getBusyNs() {
+            return mBusyNs.get();
+        }
+
+        /** Frames per second of sink busy time, i.e. the rate this sink could sustain alone. */
+        public double getFramesPerSecond() {
+            long busy = mBusyNs.get();
+            return busy == 0 ? 0 : mFrames.get() * 1e9 / busy;
+        }
+
+        public double getMegabytesPerSecond() {
+            long busy = mBusyNs.get();
+            return busy == 0 ? 0 : mBytes.get() * 1e3 / busy;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d frames, %d errors, %.1f fps, %.1f MB/s",
+                    mName, getFrames(), getErrors(), getFramesPerSecond(), getMegabytesPerSecond());
+        }
+    }
+
+    private final OverflowPolicy mPolicy;
+    private final ArrayBlockingQueue<OutputFrame> mQueue;
+    // frame holders go round between submit and the sink thread instead of being allocated per frame
+    private final ArrayDeque<OutputFrame> mFreeFrames;
+    private final DirectBufferPool mPool;
+    private final FrameMetrics mFrameMetrics;
+    private final List<FrameSink> mSinks = new ArrayList<>();
+    private final List<Metrics> mMetrics = new ArrayList<>();
+    private final ExecutorService mExecutor;
+    private final AtomicLong mSubmitted = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private volatile boolean mRunning;
+
+    public SinkStage(int queueCapacity, OverflowPolicy policy, DirectBufferPool pool, FrameMetrics frameMetrics) {
+        mPolicy = policy;
+        mQueue = new ArrayBlockingQueue<>(queueCapacity);
+        // queued frames, the one being written and the one being submitted
+        mFreeFrames = new ArrayDeque<>(queueCapacity + 2);
+        for (int i = 0; i < queueCapacity + 2; i++) {
+            mFreeFrames.add(new OutputFrame());
+        }
+        mPool = pool;
+        mFrameMetrics = frameMetrics;
+        mExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "GLMergerSink");
+            t.setDaemon(true);
+            t.setPriority(Thread.NORM_PRIORITY - 1);
+            return t;
+        });
+    }
+
+    /** Sinks must be added before {@link #start()}. */
+    public void addSink(FrameSink sink) {
+        if (mRunning) {
+            throw new IllegalStateException("addSink after start");
+        }
+        mSinks.add(sink);
+        mMetrics.add(new Metrics(sink.getName()));
+    }
+
+    public void start() {
+        mRunning = true;
+        mExecutor.execute(this::drainLoop);
+    }
+
+    /**
+     * Called from the readback listener on the GL thread. The rgba buffer is
+     * copied, so it may be reused as soon as this returns.
+     */
+    public void submit(ByteBuffer rgba, int width, int height, long frameId) {
+        if (!mRunning || mSinks.isEmpty()) {
+            return;
+        }
+        mSubmitted.incrementAndGet();
+        if (mPolicy == OverflowPolicy.DROP_NEWEST && mQueue.remainingCapacity() == 0) {
+            // decide before paying for the copy
+            mDropped.incrementAndGet();
+            return;
+        }
+        int size = width * height * 4;
+        ByteBuffer copy = mPool.acquire(size);
+        rgba.position(0);
+        rgba.limit(size);
+        copy.put(rgba);
+        copy.flip();
+        OutputFrame frame = obtainFrame();
+        frame.set(copy, width, height, frameId);
+
+        switch (mPolicy) {
+            case BLOCK:
+                try {
+                    mQueue.put(frame);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    drop(frame);
+                }
+                break;
+            case DROP_OLDEST:
+                while (!mQueue.offer(frame)) {
+                    OutputFrame oldest = mQueue.poll();
+                    if (oldest != null) {
+                        drop(oldest);
+                    }
+                }
+                break;
+            case DROP_NEWEST:
+            default:
+                if (!mQueue.offer(frame)) {
+                    drop(frame);
+                }
+                break;
+        }
+    }
+
+    private void drop(OutputFrame frame) {
+        mDropped.incrementAndGet();
+        recycle(frame);
+    }
+
+    private OutputFrame obtainFrame() {
+        synchronized (mFreeFrames) {
+            OutputFrame frame = mFreeFrames.pollFirst();
+            return frame != null ? frame : new OutputFrame();
+        }
+    }
+
+    private void recycle(OutputFrame frame) {
+        mPool.release(frame.getRgba());
+        frame.set(null, 0, 0, -1);
+        synchronized (mFreeFrames) {
+            mFreeFrames.addFirst(frame);
+        }
+    }
+
+    private void drainLoop() {
+        Log.d(TAG, "sink thread started with " + mSinks.size() + " sinks, policy " + mPolicy);
+        try {
+            while (mRunning || !mQueue.isEmpty()) {
+                OutputFrame frame = mQueue.poll(100, TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    continue;
+                }
+                for (int i = 0; i < mSinks.size(); i++) {
+                    Metrics metrics = mMetrics.get(i);
+                    long start = System.nanoTime();
+                    try {
+                        long bytes = mSinks.get(i).consume(frame);
+                        metrics.mBytes.addAndGet(bytes);
+                        metrics.mFrames.incrementAndGet();
+                    } catch (Exception e) {
+                        metrics.mErrors.incrementAndGet();
+                        Log.e(TAG, mSinks.get(i).getName() + " failed on frame " + frame.getFrameId(), e);
+                    }
+                    long busy = System.nanoTime() - start;
+                    metrics.mBusyNs.addAndGet(busy);
+                    mFrameMetrics.record(FrameMetrics.Stage.ENCODE, busy);
+                }
+                recycle(frame);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (FrameSink sink : mSinks) {
+                sink.close();
+            }
+            Log.d(TAG, "sink thread exit, submitted " + mSubmitted.get() + " dropped " + mDropped.get());
+        }
+    }
+
+    /** Writes what is still queued and stops the sink thread. */
+    public void shutdown() {
+        mRunning = false;
+        mExecutor.shutdown();
+    }
+
+    public long getSubmitted() {
+        return mSubmitted.get();
+    }
+
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    public List<Metrics> getMetrics() {
+        return mMetrics;
+    }
+}
@@ -0,0 +1,155 @@
+package com.android.gl2jni;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Owns the input textures of the merger. Storage for every stream is specified
+ * once (immutable glTexStorage2D on ES3, glTexImage2D with no data on ES2) and
+ * only re-specified when the stream size changes; frame data is streamed with
+ * glTexSubImage2D. Each stream remembers the generation of the frame it holds,
+ * so an unchanged source costs nothing at all.
+ * <p>
+ * Uploads go through texture unit 0; which unit a texture is sampled from at
+ * draw time is decided by the compositor.
+ */
+public class TextureManager {
+    public final static String TAG = "TextureManager";
+
+    public static final int CHANNELS_LUMA = 1;
+    // interleaved chroma pairs of NV12/NV21
+    public static final int CHANNELS_LUMA_ALPHA = 2;
+    public static final int CHANNELS_RGB  = 3;
+    private static final int UPLOAD_UNIT = 0;
+
+    public static final class Stream {
+        final int mChannels;
+        final int mFilter;
+        int mTexture;
+        int mWidth;
+        int mHeight;
+        long mGeneration = -1;
+
+        Stream(int channels, int filter) {
+            mChannels = channels;
+            mFilter = filter;
+        }
+
+        public int getTexture() {
+            return mTexture;
+        }
+    }
+
+    private final boolean mUseTexStorage;
+    // GL_RED/GL_RG on ES3, the pre-ES3 GL_LUMINANCE/GL_LUMINANCE_ALPHA otherwise
+    private final boolean mUseRed;
+    private final int mMaxSize;
+    private final int[] mTmp = new int[1];
+    private long mUploads;
+    private long mSkippedUploads;
+    private long mAllocations;
+
+    public TextureManager(GLCapabilities caps) {
+        mUseTexStorage = caps.hasTexStorage();
+        mUseRed = caps.hasRedTextures();
+        mMaxSize = caps.getMaxTextureSize();
+    }
+
+    /** Creates a stream and allocates its storage. */
+    public Stream createStream(int channels, int width, int height, int filter) {
+        Stream stream = new Stream(channels, filter);
+        allocate(stream, width, height);
+        return stream;
+    }
+
+    /** (Re)specifies the storage of a stream; immutable storage needs a fresh texture name. */
+    public void allocate(Stream stream, int width, int height) {
+        if (width > mMaxSize || height > mMaxSize) {
+            throw new IllegalArgumentException(width + "x" + height + " exceeds GL_MAX_TEXTURE_SIZE " + mMaxSize);
+        }
+        if (stream.mTexture != 0 && mUseTexStorage) {
+            mTmp[0] = stream.mTexture;
+            GLES20.glDeleteTextures(1, mTmp, 0);
+            stream.mTexture = 0;
+        }
+        if (stream.mTexture == 0) {
+            GLES20.glGenTextures(1, mTmp, 0);
+            stream.mTexture = mTmp[0];
+        }
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + UPLOAD_UNIT);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, stream.mTexture);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, stream.mFilter);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, stream.mFilter);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        if (mUseTexStorage) {
+            // single channel goes to R8, the shaders only ever read .r of a luma/chroma plane
+            int internalFormat = stream.mChannels == CHANNELS_LUMA ? GLES30.GL_R8
+                    : stream.mChannels == CHANNELS_LUMA_ALPHA ? GLES30.GL_RG8 : GLES30.GL_RGB8;
+            GLES30.glTexStorage2D(GLES20.GL_TEXTURE_2D, 1, internalFormat, width, height);
+        } else {
+            int format = uploadFormat(stream);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, width, height, 0, format, GLES20.GL_UNSIGNED_BYTE, null);
+        }
+        GLMergerWithShader.checkGlError("TextureManager allocate");
+        stream.mWidth = width;
+        stream.mHeight = height;
+        stream.mGeneration = -1;
+        mAllocations++;
+        Log.d(TAG, "allocated texture " + stream.mTexture + " " + width + "x" + height + "x" + stream.mChannels);
+    }
+
+    /**
+     * Uploads data unless the stream already holds this generation. Returns
+     * true when an upload happened.
+     */
+    public boolean update(Stream stream, int width, int height, ByteBuffer data, long generation) {
+        if (width != stream.mWidth || height != stream.mHeight) {
+            allocate(stream, width, height);
+        } else if (generation == stream.mGeneration) {
+            mSkippedUploads++;
+            return false;
+        } else {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + UPLOAD_UNIT);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, stream.mTexture);
+        }
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width, height, uploadFormat(stream), GLES20.GL_UNSIGNED_BYTE, data);
+        stream.mGeneration = generation;
+        mUploads++;
+        return true;
+    }
+
+    private int uploadFormat(Stream stream) {
+        if (stream.mChannels == CHANNELS_LUMA) {
+            return mUseRed ? GLES30.GL_RED : GLES20.GL_LUMINANCE;
+        }
+        if (stream.mChannels == CHANNELS_LUMA_ALPHA) {
+            return mUseRed ? GLES30.GL_RG : GLES20.GL_LUMINANCE_ALPHA;
+        }
+        return GLES20.GL_RGB;
+    }
+
+    public void release(Stream stream) {
+        if (stream.mTexture != 0) {
+            mTmp[0] = stream.mTexture;
+            GLES20.glDeleteTextures(1, mTmp, 0);
+            stream.mTexture = 0;
+        }
+    }
+
+    public long getUploads() {
+        return mUploads;
+    }
+
+    public long getSkippedUploads() {
+        return mSkippedUploads;
+    }
+
+    public long getAllocations() {
+        return mAllocations;
+    }
+}
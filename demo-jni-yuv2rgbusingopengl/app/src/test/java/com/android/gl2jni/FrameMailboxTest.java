@@ -0,0 +1,169 @@
+package com.android.gl2jni;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameMailboxTest {
+    private static final int PUBLISHES = 2000000;
+    // big enough that a torn write would be caught in the middle of it
+    private static final int PAYLOAD_LONGS = 64;
+
+    private static final class Payload {
+        final long[] mData = new long[PAYLOAD_LONGS];
+
+        void fill(long seq) {
+            for (int i = 0; i < mData.length; i++) {
+                mData[i] = seq;
+            }
+        }
+
+        /** The sequence number if the payload is whole, -1 if it is torn. */
+        long check() {
+            long seq = mData[0];
+            for (int i = 1; i < mData.length; i++) {
+                if (mData[i] != seq) {
+                    return -1;
+                }
+            }
+            return seq;
+        }
+    }
+
+    @Test
+    public void acquireBeforePublishIsNull() {
+        FrameMailbox<String> mailbox = new FrameMailbox<>();
+        assertFalse(mailbox.hasFresh());
+        assertNull(mailbox.acquire());
+    }
+
+    @Test
+    public void acquireKeepsNewestUntilReplaced() {
+        FrameMailbox<String> mailbox = new FrameMailbox<>();
+        mailbox.publish("a");
+        mailbox.publish("b");
+        assertTrue(mailbox.hasFresh());
+        assertEquals("b", mailbox.acquire());
+        assertFalse(mailbox.hasFresh());
+        assertEquals("b", mailbox.acquire());
+    }
+
+    @Test
+    public void publishHandsBackOnlyItemsTheConsumerDropped() {
+        FrameMailbox<String> mailbox = new FrameMailbox<>();
+        assertNull(mailbox.publish("a"));
+        // never picked up
+        assertEquals("a", mailbox.publish("b"));
+        assertEquals("b", mailbox.acquire());
+        // b is the consumer's until its next acquire
+        assertNull(mailbox.publish("c"));
+        assertEquals("c", mailbox.publish("d"));
+        assertEquals("d", mailbox.acquire());
+        // picked up and since replaced
+        assertEquals("b", mailbox.publish("e"));
+    }
+
+    /**
+     * The producer recycles every payload publish hands back, so a payload
+     * still in the consumer's hands would be overwritten while it is read.
+     * Every payload the consumer sees has to be whole, and sequence numbers
+     * never go backwards.
+     */
+    @Test(timeout = 60000)
+    public void payloadsAreNeverTornOrReordered() throws Throwable {
+        final FrameMailbox<Payload> mailbox = new FrameMailbox<>();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread producer = new Thread(() -> {
+            Payload spare = new Payload();
+            for (long seq = 1; seq <= PUBLISHES; seq++) {
+                spare.fill(seq);
+                Payload displaced = mailbox.publish(spare);
+                spare = displaced != null ? displaced : new Payload();
+            }
+        }, "FrameMailboxTestProducer");
+        Thread consumer = new Thread(() -> {
+            try {
+                long last = 0;
+                while (last < PUBLISHES) {
+                    Payload payload = mailbox.acquire();
+                    if (payload == null) {
+                        continue;
+                    }
+                    // read it twice, a producer writing into it would show up between the two
+                    long seq = payload.check();
+                    assertTrue("torn payload after " + last, seq > 0);
+                    assertTrue("went back from " + last + " to " + seq, seq >= last);
+                    assertEquals("payload changed while held", seq, payload.check());
+                    last = seq;
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        }, "FrameMailboxTestConsumer");
+        // a lost item leaves the consumer spinning, the timeout has to be able to end the run
+        producer.setDaemon(true);
+        consumer.setDaemon(true);
+        consumer.start();
+        producer.start();
+        producer.join();
+        consumer.join();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Once a publish has returned, the consumer's next acquire returns that
+     * item or a newer one: a publish racing with an acquire is never lost,
+     * and the consumer never has to be woken up to see it.
+     */
+    @Test(timeout = 60000)
+    public void completedPublishIsAlwaysSeen() throws Throwable {
+        final FrameMailbox<Long> mailbox = new FrameMailbox<>();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        // written after each publish returns, so reading it orders the acquire after that publish
+        final AtomicLong published = new AtomicLong();
+        Thread producer = new Thread(() -> {
+            for (long seq = 1; seq <= PUBLISHES; seq++) {
+                mailbox.publish(seq);
+                published.set(seq);
+            }
+        }, "FrameMailboxTestProducer");
+        Thread consumer = new Thread(() -> {
+            try {
+                long seen = 0;
+                while (seen < PUBLISHES) {
+                    long done = published.get();
+                    Long item = mailbox.acquire();
+                    long seq = item != null ? item : 0;
+                    if (seq < done) {
+                        fail("acquired " + seq + " after " + done + " was published");
+                    }
+                    seen = seq;
+                }
+                assertFalse(mailbox.hasFresh());
+                assertSame(mailbox.acquire(), mailbox.acquire());
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        }, "FrameMailboxTestConsumer");
+        // a lost item leaves the consumer spinning, the timeout has to be able to end the run
+        producer.setDaemon(true);
+        consumer.setDaemon(true);
+        consumer.start();
+        producer.start();
+        producer.join();
+        consumer.join();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+}